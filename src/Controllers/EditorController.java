@@ -0,0 +1,1144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Controllers;
+
+import Models.Document;
+import Models.DocumentListener;
+import Models.LineIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import javafx.util.Duration;
+
+/**
+ * Controller class of an Editor, which builds its own view.
+ * An Editor is a text editing control for a Document built on a virtual flow:
+ * only the lines within the viewport get a node, and the same nodes are
+ * reused while scrolling and typing. Lines are found in the LineIndex of the
+ * document, so the work done for a keystroke or a scroll depends on the size
+ * of the viewport and not on the length of the document.
+ * The vertical scroll bar maps to lines of the document.
+ */
+public class EditorController {
+    private static final Font FONT = Font.font("Monospaced", 13);
+    private static final double PADDING = 4;
+    private static final int TAB_SIZE = 4;
+    private static final int CHECKPOINT_INTERVAL = 1024;
+    private static final int MAX_CHECKPOINTED_LINES = 64;
+    private final List<Text> rows = new ArrayList<>();
+    private final List<Rectangle> selections = new ArrayList<>();
+    private final Rectangle caret = new Rectangle();
+    private final Map<Integer, Checkpoints> checkpoints = new LinkedHashMap<Integer, Checkpoints>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Checkpoints> eldest) {
+            return size() > MAX_CHECKPOINTED_LINES;
+        }
+    };
+    private final ReadOnlyIntegerWrapper caretPosition = new ReadOnlyIntegerWrapper(this, "caretPosition");
+    private final DocumentListener documentListener = documentListener();
+    private Document document;
+    private LineIndex lineIndex;
+    private int anchor;
+    private int topLine;
+    private double scrollX;
+    private int maxColumns;
+    private int preferredColumn = -1;
+    private double charWidth;
+    private double lineHeight;
+    private boolean editable = true;
+    private boolean renderPending;
+    private boolean updatingScrollBars;
+    private boolean caretBlinkOn = true;
+    private boolean caretInView;
+    private Timeline caretBlink;
+
+    /**
+     * Constructs a new EditorController and its view. The view is built in
+     * code rather than loaded from FXML, since every tab has an editor and
+     * parsing FXML costs about a hundred times more than creating the nodes.
+     */
+    public EditorController() {
+        viewport = new Pane();
+        viewport.setFocusTraversable(true);
+        viewport.setStyle("-fx-background-color: white; -fx-cursor: text;");
+        anchor(viewport, 0.0, 14.0, 14.0, 0.0);
+        vScrollBar = new ScrollBar();
+        vScrollBar.setOrientation(Orientation.VERTICAL);
+        vScrollBar.setPrefWidth(14);
+        vScrollBar.setFocusTraversable(false);
+        anchor(vScrollBar, 0.0, 0.0, 14.0, null);
+        hScrollBar = new ScrollBar();
+        hScrollBar.setPrefHeight(14);
+        hScrollBar.setFocusTraversable(false);
+        anchor(hScrollBar, null, 14.0, 0.0, 0.0);
+        editorPane = new AnchorPane(viewport, vScrollBar, hScrollBar);
+        editorPane.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        initialize();
+    }
+
+    /**
+     *
+     * @return the root node of the editor.
+     */
+    public AnchorPane getView() {
+        return editorPane;
+    }
+
+    /**
+     * Sets the anchors of a node within an AnchorPane.
+     * @param node to be anchored.
+     * @param top anchor, or null for none.
+     * @param right anchor, or null for none.
+     * @param bottom anchor, or null for none.
+     * @param left anchor, or null for none.
+     */
+    static void anchor(Node node, Double top, Double right, Double bottom, Double left) {
+        AnchorPane.setTopAnchor(node, top);
+        AnchorPane.setRightAnchor(node, right);
+        AnchorPane.setBottomAnchor(node, bottom);
+        AnchorPane.setLeftAnchor(node, left);
+    }
+
+    /**
+     * Initializes the controller class.
+     */
+    private void initialize() {
+        Text sample = new Text("X");
+        sample.setFont(FONT);
+        charWidth = sample.getLayoutBounds().getWidth();
+        lineHeight = Math.ceil(sample.getLayoutBounds().getHeight());
+        // Only draw within the viewport.
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(viewport.widthProperty());
+        clip.heightProperty().bind(viewport.heightProperty());
+        viewport.setClip(clip);
+        caret.setWidth(1.5);
+        caret.setHeight(lineHeight);
+        caret.setManaged(false);
+        viewport.getChildren().add(caret);
+        caretBlink = new Timeline(new KeyFrame(Duration.millis(500), (event) -> {
+            caretBlinkOn = !caretBlinkOn;
+            caret.setVisible(caretBlinkOn && caretInView);
+        }));
+        caretBlink.setCycleCount(Timeline.INDEFINITE);
+        viewport.focusedProperty().addListener((observable, oldValue, focused) -> {
+            if (focused) { caretBlink.play(); } else { caretBlink.stop(); }
+            requestRender();
+        });
+        viewport.widthProperty().addListener((observable) -> requestRender());
+        viewport.heightProperty().addListener((observable) -> requestRender());
+        viewport.setOnKeyPressed(keyPressedListener());
+        viewport.setOnKeyTyped(keyTypedListener());
+        viewport.setOnMousePressed(mousePressedListener());
+        viewport.setOnMouseDragged(mouseDraggedListener());
+        viewport.setOnScroll(scrollListener());
+        vScrollBar.valueProperty().addListener(vScrollBarListener());
+        hScrollBar.valueProperty().addListener(hScrollBarListener());
+    }
+
+    /**
+     * Sets the document edited by this editor.
+     * @param document to be edited.
+     * @param lineIndex of the document, updated before this editor is
+     * notified of the changes.
+     */
+    public void setDocument(Document document, LineIndex lineIndex) {
+        if (this.document != null) {
+            this.document.removeListener(documentListener);
+        }
+        this.document = document;
+        this.lineIndex = lineIndex;
+        document.addListener(documentListener);
+        reset();
+    }
+
+    /**
+     *
+     * @return the document edited by this editor.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Renders the editor again, for example once the text of its released
+     * document is back.
+     */
+    public void refresh() {
+        requestRender();
+    }
+
+    /**
+     *
+     * @return the AnchorPane holding the editor.
+     */
+    public AnchorPane getEditorPane() {
+        return editorPane;
+    }
+
+    /**
+     * Sets whether the user can edit the document.
+     * @param value true to allow editing.
+     */
+    public void setEditable(boolean value) {
+        editable = value;
+    }
+
+    /**
+     *
+     * @return true if the user can edit the document.
+     */
+    public boolean isEditable() {
+        return editable;
+    }
+
+    /**
+     *
+     * @return the offset of the caret in the document.
+     */
+    public int getCaretPosition() {
+        return caretPosition.get();
+    }
+
+    /**
+     *
+     * @return the caret position property.
+     */
+    public ReadOnlyIntegerProperty caretPositionProperty() {
+        return caretPosition.getReadOnlyProperty();
+    }
+
+    /**
+     *
+     * @return the offset of the anchor of the selection. The selection is
+     * empty if the anchor is at the caret.
+     */
+    public int getAnchor() {
+        return anchor;
+    }
+
+    /**
+     *
+     * @return the index of the first line shown in the viewport.
+     */
+    public int getTopLine() {
+        return topLine;
+    }
+
+    /**
+     *
+     * @return the horizontal scroll of the view, in pixels.
+     */
+    public double getScrollX() {
+        return scrollX;
+    }
+
+    /**
+     * Restores a selection and a scroll position, for example saved in a
+     * session, without scrolling to the caret.
+     * @param anchor of the selection.
+     * @param caretPosition of the selection.
+     * @param topLine index of the first line shown in the viewport.
+     * @param scrollX horizontal scroll of the view, in pixels.
+     */
+    public void restoreView(int anchor, int caretPosition, int topLine, double scrollX) {
+        this.anchor = clamp(anchor);
+        this.caretPosition.set(clamp(caretPosition));
+        this.topLine = clampLine(topLine);
+        this.scrollX = Math.max(0, scrollX);
+        preferredColumn = -1;
+        requestRender();
+    }
+
+    /**
+     *
+     * @return the selected text.
+     */
+    public String getSelectedText() {
+        return document.getText(getSelectionStart(), getSelectionEnd());
+    }
+
+    /**
+     * Selects a range of the document and scrolls to it.
+     * @param anchor of the selection.
+     * @param caretPosition of the selection.
+     */
+    public void selectRange(int anchor, int caretPosition) {
+        this.anchor = clamp(anchor);
+        moveCaret(caretPosition, true);
+    }
+
+    /**
+     * Moves the caret and clears the selection.
+     * @param position of the caret.
+     */
+    public void positionCaret(int position) {
+        moveCaret(position, false);
+    }
+
+    /**
+     * Replaces a range of the document with a text, if the editor is editable.
+     * @param start offset of the range, inclusive.
+     * @param end offset of the range, exclusive.
+     * @param text to be inserted in place of the range.
+     */
+    public void replaceText(int start, int end, String text) {
+        if (editable) {
+            document.replace(start, end, text);
+        }
+    }
+
+    /**
+     * Replaces the selection with a text and moves the caret after it.
+     * @param text to be inserted in place of the selection.
+     */
+    public void replaceSelection(String text) {
+        if (editable) {
+            int start = getSelectionStart();
+            document.replace(start, getSelectionEnd(), text);
+            positionCaret(start + text.length());
+        }
+    }
+
+    /**
+     * Copies the selection to the clipboard and removes it.
+     */
+    public void cut() {
+        if (editable && getSelectionStart() != getSelectionEnd()) {
+            copy();
+            replaceSelection("");
+        }
+    }
+
+    /**
+     * Copies the selection to the clipboard.
+     */
+    public void copy() {
+        if (getSelectionStart() != getSelectionEnd()) {
+            ClipboardContent content = new ClipboardContent();
+            content.putString(getSelectedText());
+            Clipboard.getSystemClipboard().setContent(content);
+        }
+    }
+
+    /**
+     * Replaces the selection with the text in the clipboard.
+     */
+    public void paste() {
+        String text = Clipboard.getSystemClipboard().getString();
+        if (text != null) {
+            replaceSelection(text);
+        }
+    }
+
+    /**
+     * Selects the whole document.
+     */
+    public void selectAll() {
+        selectRange(0, document.length());
+    }
+
+    /**
+     * Requests the focus for the editor.
+     */
+    public void requestFocus() {
+        viewport.requestFocus();
+    }
+
+    /**
+     * Scrolls the view by a number of lines, without moving the caret.
+     * @param lines to scroll, negative to scroll up.
+     */
+    public void scrollLines(int lines) {
+        topLine = clampLine(topLine + lines);
+        requestRender();
+    }
+
+    /**
+     * Moves the caret to the start of a line and scrolls to it.
+     * @param line index, starting at 0.
+     */
+    public void goToLine(int line) {
+        positionCaret(lineIndex.getLineStart(clampLine(line)));
+    }
+
+    // EVENT HANDLERS
+
+    /**
+     *
+     * @return a listener which keeps the caret, the selection and the view
+     * in place when the document changes.
+     */
+    private DocumentListener documentListener() {
+        return new DocumentListener() {
+            @Override
+            public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+                int delta = insertedText.length() - removedText.length();
+                updateCheckpoints(offset, removedText.length(), delta);
+                anchor = shift(anchor, offset, removedText.length(), delta);
+                caretPosition.set(shift(caretPosition.get(), offset, removedText.length(), delta));
+                // Lines before the edit keep their index, so the top line
+                // only moves when the edit starts above it.
+                int editLine = lineIndex.getLineOfOffset(offset);
+                if (editLine < topLine) {
+                    int lineDelta = countLineFeeds(insertedText) - countLineFeeds(removedText);
+                    topLine = Math.max(editLine, topLine + lineDelta);
+                }
+                topLine = clampLine(topLine);
+                requestRender();
+            }
+
+            @Override
+            public void documentReset(Document document) {
+                reset();
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a listener which moves the caret and edits the document with
+     * the keyboard. Shortcuts are left to the menu accelerators.
+     */
+    private EventHandler<KeyEvent> keyPressedListener() {
+        return (KeyEvent event) -> {
+            boolean shift = event.isShiftDown();
+            int caretPosition = getCaretPosition();
+            int page = Math.max(1, fullyVisibleRows() - 1);
+            switch (event.getCode()) {
+                case LEFT:
+                    moveCaret(!shift && hasSelection() ? getSelectionStart() : caretPosition - 1, shift);
+                    break;
+                case RIGHT:
+                    moveCaret(!shift && hasSelection() ? getSelectionEnd() : caretPosition + 1, shift);
+                    break;
+                case UP: moveCaretLines(-1, shift); break;
+                case DOWN: moveCaretLines(1, shift); break;
+                case PAGE_UP: moveCaretLines(-page, shift); break;
+                case PAGE_DOWN: moveCaretLines(page, shift); break;
+                case HOME:
+                    moveCaret(event.isShortcutDown() ? 0 : lineStart(caretPosition), shift);
+                    break;
+                case END:
+                    moveCaret(event.isShortcutDown() ? document.length() : lineEnd(caretPosition), shift);
+                    break;
+                case BACK_SPACE:
+                    if (!hasSelection() && caretPosition > 0) {
+                        anchor = caretPosition - 1;
+                    }
+                    replaceSelection("");
+                    break;
+                case DELETE:
+                    if (!hasSelection() && caretPosition < document.length()) {
+                        anchor = caretPosition + 1;
+                    }
+                    replaceSelection("");
+                    break;
+                case ENTER: replaceSelection("\n"); break;
+                case TAB: replaceSelection("\t"); break;
+                default: return;
+            }
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which inserts the typed characters.
+     */
+    private EventHandler<KeyEvent> keyTypedListener() {
+        return (KeyEvent event) -> {
+            String character = event.getCharacter();
+            if (character.isEmpty() || character.equals(KeyEvent.CHAR_UNDEFINED)) {
+                return;
+            }
+            char c = character.charAt(0);
+            boolean shortcut = (event.isControlDown() && !event.isAltDown()) || event.isMetaDown();
+            if (c < ' ' || c == 0x7f || shortcut) {
+                return;
+            }
+            replaceSelection(character);
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which moves the caret or selects a word with
+     * the mouse.
+     */
+    private EventHandler<MouseEvent> mousePressedListener() {
+        return (MouseEvent event) -> {
+            viewport.requestFocus();
+            int position = hitTest(event.getX(), event.getY());
+            if (event.getClickCount() == 2) {
+                int start = position;
+                int end = position;
+                while (start > 0 && isWordChar(document.charAt(start - 1))) { start--; }
+                while (end < document.length() && isWordChar(document.charAt(end))) { end++; }
+                selectRange(start, end);
+            }
+            else {
+                moveCaret(position, event.isShiftDown());
+            }
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which extends the selection with the mouse,
+     * scrolling when the mouse leaves the viewport.
+     */
+    private EventHandler<MouseEvent> mouseDraggedListener() {
+        return (MouseEvent event) -> {
+            if (event.getY() < 0) {
+                scrollLines(-1);
+            }
+            else if (event.getY() > viewport.getHeight()) {
+                scrollLines(1);
+            }
+            moveCaret(hitTest(event.getX(), Math.max(0, Math.min(event.getY(), viewport.getHeight() - 1))), true);
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which scrolls the view with the mouse wheel.
+     */
+    private EventHandler<ScrollEvent> scrollListener() {
+        return (ScrollEvent event) -> {
+            int lines = (int) Math.round(-event.getDeltaY() / lineHeight);
+            if (lines == 0 && event.getDeltaY() != 0) {
+                lines = event.getDeltaY() < 0 ? 1 : -1;
+            }
+            if (lines != 0) {
+                scrollLines(lines);
+            }
+            if (event.getDeltaX() != 0) {
+                hScrollBar.setValue(clampScrollX(scrollX - event.getDeltaX()));
+            }
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which scrolls the view to the line chosen in the
+     * vertical scroll bar.
+     */
+    private ChangeListener<Number> vScrollBarListener() {
+        return (ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
+            if (!updatingScrollBars && document != null) {
+                topLine = clampLine((int) Math.round(newValue.doubleValue()));
+                requestRender();
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a listener which scrolls the view horizontally.
+     */
+    private ChangeListener<Number> hScrollBarListener() {
+        return (ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
+            if (!updatingScrollBars) {
+                scrollX = newValue.doubleValue();
+                requestRender();
+            }
+        };
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Moves the caret to the start of the document and renders it.
+     */
+    private void reset() {
+        anchor = 0;
+        caretPosition.set(0);
+        topLine = 0;
+        scrollX = 0;
+        maxColumns = 0;
+        preferredColumn = -1;
+        checkpoints.clear();
+        requestRender();
+    }
+
+    /**
+     * Moves the caret, keeping it visible.
+     * @param position of the caret.
+     * @param extendSelection true to keep the anchor in place.
+     */
+    private void moveCaret(int position, boolean extendSelection) {
+        int caretPosition = clamp(position);
+        this.caretPosition.set(caretPosition);
+        if (!extendSelection) {
+            anchor = caretPosition;
+        }
+        preferredColumn = -1;
+        caretBlinkOn = true;
+        scrollToCaret();
+        requestRender();
+    }
+
+    /**
+     * Moves the caret up or down by a number of lines, keeping its column.
+     * @param lines to move, negative to move up.
+     * @param extendSelection true to keep the anchor in place.
+     */
+    private void moveCaretLines(int lines, boolean extendSelection) {
+        int caretPosition = getCaretPosition();
+        int line = lineIndex.getLineOfOffset(caretPosition);
+        int column = preferredColumn >= 0 ? preferredColumn : column(lineIndex.getLineStart(line), caretPosition);
+        int lineStart = lineIndex.getLineStart(clampLine(line + lines));
+        moveCaret(offsetAtColumn(lineStart, column), extendSelection);
+        preferredColumn = column;
+    }
+
+    /**
+     * Scrolls the view so the caret is visible.
+     */
+    private void scrollToCaret() {
+        int caretPosition = getCaretPosition();
+        int caretLine = lineIndex.getLineOfOffset(caretPosition);
+        int caretLineStart = lineIndex.getLineStart(caretLine);
+        int visibleRows = fullyVisibleRows();
+        if (caretLine < topLine) {
+            topLine = caretLine;
+        }
+        else if (caretLine >= topLine + visibleRows) {
+            topLine = caretLine - visibleRows + 1;
+        }
+        double x = column(caretLineStart, caretPosition) * charWidth;
+        double width = viewport.getWidth() - 2 * PADDING - charWidth;
+        if (x < scrollX) {
+            scrollX = Math.max(0, x - 4 * charWidth);
+        }
+        else if (width > 0 && x > scrollX + width) {
+            scrollX = x - width + 4 * charWidth;
+        }
+    }
+
+    /**
+     * Renders the view on the next pulse, so several changes in a row are
+     * rendered only once.
+     */
+    private void requestRender() {
+        if (!renderPending) {
+            renderPending = true;
+            Platform.runLater(() -> {
+                renderPending = false;
+                render();
+            });
+        }
+    }
+
+    /**
+     * Renders the lines within the viewport, with the selection and the
+     * caret, creating row nodes only when the viewport grows.
+     */
+    private void render() {
+        // A released document is not read back just to be rendered.
+        if (document == null || !document.isResident()) {
+            return;
+        }
+        int visibleRows = (int) Math.ceil(viewport.getHeight() / lineHeight) + 1;
+        while (rows.size() < visibleRows) {
+            Rectangle selection = new Rectangle();
+            selection.setFill(Color.LIGHTSKYBLUE);
+            selection.setManaged(false);
+            Text row = new Text();
+            row.setFont(FONT);
+            row.setTextOrigin(VPos.TOP);
+            row.setManaged(false);
+            selections.add(selection);
+            rows.add(row);
+            viewport.getChildren().add(0, selection);
+            viewport.getChildren().add(viewport.getChildren().size() - 1, row);
+        }
+        int firstColumn = (int) (scrollX / charWidth);
+        int columns = (int) Math.ceil(viewport.getWidth() / charWidth) + 1;
+        int caretPosition = getCaretPosition();
+        int selectionStart = getSelectionStart();
+        int selectionEnd = getSelectionEnd();
+        caretInView = false;
+        int lineCount = lineIndex.getLineCount();
+        for (int i = 0; i < rows.size(); i++) {
+            Text row = rows.get(i);
+            Rectangle selection = selections.get(i);
+            selection.setVisible(false);
+            int line = topLine + i;
+            if (i >= visibleRows || line >= lineCount) {
+                row.setText("");
+                row.setVisible(false);
+                continue;
+            }
+            double y = i * lineHeight;
+            int lineStart = lineIndex.getLineStart(line);
+            int lineEnd = lineIndex.getLineEnd(line);
+            row.setText(lineText(lineStart, lineEnd, firstColumn, columns));
+            row.setLayoutX(x(firstColumn));
+            row.setLayoutY(y);
+            row.setVisible(true);
+            if (selectionStart < selectionEnd && selectionStart <= lineEnd && selectionEnd > lineStart) {
+                double startX = x(column(lineStart, Math.max(selectionStart, lineStart)));
+                double endX = x(column(lineStart, Math.min(selectionEnd, lineEnd)));
+                if (selectionEnd > lineEnd) {
+                    endX += charWidth / 2;
+                }
+                selection.setX(startX);
+                selection.setY(y);
+                selection.setWidth(Math.max(0, endX - startX));
+                selection.setHeight(lineHeight);
+                selection.setVisible(true);
+            }
+            if (caretPosition >= lineStart && caretPosition <= lineEnd) {
+                caret.setX(x(column(lineStart, caretPosition)));
+                caret.setY(y);
+                caretInView = true;
+            }
+        }
+        caret.setVisible(viewport.isFocused() && caretBlinkOn && caretInView);
+        updateScrollBars(lineCount);
+    }
+
+    /**
+     * Builds the text shown for the visible columns of a line, expanding tabs.
+     * Only the chars up to the last visible column are read, from the last
+     * checkpoint before the first one. Also records the widest line seen for
+     * the horizontal scroll bar, counting one column for each char left
+     * after the visible ones.
+     * @param lineStart offset of the start of the line.
+     * @param lineEnd offset of the end of the line.
+     * @param firstColumn first visible column.
+     * @param columns number of visible columns.
+     * @return the visible text of the line.
+     */
+    private String lineText(int lineStart, int lineEnd, int firstColumn, int columns) {
+        StringBuilder text = new StringBuilder(Math.min(columns, lineEnd - lineStart));
+        int lastColumn = firstColumn + columns;
+        int[] start = checkpointAtColumn(lineStart, lineEnd, firstColumn);
+        int column = start[1];
+        int i = start[0];
+        for (; i < lineEnd && column < lastColumn; i++) {
+            char c = document.charAt(i);
+            int width = charColumns(c, column);
+            if (column + width > firstColumn) {
+                if (c == '\t') {
+                    for (int j = Math.max(column, firstColumn); j < column + width; j++) {
+                        text.append(' ');
+                    }
+                }
+                else if (width > 0) {
+                    text.append(c);
+                }
+            }
+            column += width;
+        }
+        maxColumns = Math.max(maxColumns, column + lineEnd - i);
+        return text.toString();
+    }
+
+    /**
+     * Updates the scroll bars to match the rendered lines.
+     * @param lineCount number of lines of the document.
+     */
+    private void updateScrollBars(int lineCount) {
+        updatingScrollBars = true;
+        int visibleRows = fullyVisibleRows();
+        vScrollBar.setMin(0);
+        vScrollBar.setMax(Math.max(1, lineCount - 1));
+        vScrollBar.setVisibleAmount(visibleRows);
+        vScrollBar.setUnitIncrement(1);
+        vScrollBar.setBlockIncrement(visibleRows);
+        vScrollBar.setValue(topLine);
+        double width = Math.max(0, viewport.getWidth());
+        hScrollBar.setMin(0);
+        hScrollBar.setMax(Math.max(0, maxColumns * charWidth + 2 * PADDING - width));
+        hScrollBar.setVisibleAmount(width);
+        hScrollBar.setUnitIncrement(charWidth);
+        hScrollBar.setBlockIncrement(width);
+        hScrollBar.setValue(scrollX);
+        updatingScrollBars = false;
+    }
+
+    /**
+     *
+     * @param x in the viewport.
+     * @param y in the viewport.
+     * @return the offset in the document closest to the point.
+     */
+    private int hitTest(double x, double y) {
+        int row = (int) Math.max(0, Math.floor(y / lineHeight));
+        int lineStart = lineIndex.getLineStart(clampLine(topLine + row));
+        int column = (int) Math.max(0, Math.round((x - PADDING + scrollX) / charWidth));
+        return offsetAtColumn(lineStart, column);
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @param column to be found.
+     * @return the offset of the line at the column, or the end of the line if
+     * it is shorter.
+     */
+    private int offsetAtColumn(int lineStart, int column) {
+        int lineEnd = lineEnd(lineStart);
+        int[] start = checkpointAtColumn(lineStart, lineEnd, column);
+        int current = start[1];
+        int offset = start[0];
+        while (offset < lineEnd) {
+            int width = charColumns(document.charAt(offset), current);
+            if (current + width > column) {
+                break;
+            }
+            current += width;
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @param offset in the line.
+     * @return the column of the offset, with tabs expanded, counted from the
+     * last checkpoint before the offset.
+     */
+    private int column(int lineStart, int offset) {
+        if (offset - lineStart < CHECKPOINT_INTERVAL) {
+            return columns(lineStart, offset, 0);
+        }
+        Checkpoints line = checkpoints(lineStart);
+        int index = (offset - lineStart) / CHECKPOINT_INTERVAL;
+        while (line.count <= index) {
+            addCheckpoint(lineStart, line);
+        }
+        return columns(lineStart + index * CHECKPOINT_INTERVAL, offset, line.columns[index]);
+    }
+
+    /**
+     *
+     * @param start offset in a line.
+     * @param end offset in the line, not before the start.
+     * @param column of the start offset.
+     * @return the column of the end offset.
+     */
+    private int columns(int start, int end, int column) {
+        for (int i = start; i < end; i++) {
+            column += charColumns(document.charAt(i), column);
+        }
+        return column;
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @param lineEnd offset of the end of the line.
+     * @param column in the line.
+     * @return the offset and the column of the last checkpoint of the line
+     * not after the column, adding the checkpoints needed to find it. Lines
+     * shorter than a checkpoint interval start from their first char.
+     */
+    private int[] checkpointAtColumn(int lineStart, int lineEnd, int column) {
+        if (lineEnd - lineStart < CHECKPOINT_INTERVAL) {
+            return new int[] {lineStart, 0};
+        }
+        Checkpoints line = checkpoints(lineStart);
+        while (line.columns[line.count - 1] <= column && lineStart + line.count * CHECKPOINT_INTERVAL <= lineEnd) {
+            addCheckpoint(lineStart, line);
+        }
+        int low = 0;
+        int high = line.count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (line.columns[middle] <= column) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return new int[] {lineStart + low * CHECKPOINT_INTERVAL, line.columns[low]};
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @return the checkpoints of the line, created with the first one if the
+     * line has none yet.
+     */
+    private Checkpoints checkpoints(int lineStart) {
+        Checkpoints line = checkpoints.get(lineStart);
+        if (line == null) {
+            line = new Checkpoints();
+            checkpoints.put(lineStart, line);
+        }
+        return line;
+    }
+
+    /**
+     * Adds the next checkpoint of a line, one interval after the last one.
+     * @param lineStart offset of the start of the line.
+     * @param line checkpoints of the line.
+     */
+    private void addCheckpoint(int lineStart, Checkpoints line) {
+        int last = line.count - 1;
+        int start = lineStart + last * CHECKPOINT_INTERVAL;
+        line.add(columns(start, start + CHECKPOINT_INTERVAL, line.columns[last]));
+    }
+
+    /**
+     * Keeps the checkpoints of the lines valid after an edit. The lines
+     * after the edit are moved with their text, the checkpoints after the
+     * edit are dropped from the line holding it, and the lines whose start
+     * was removed are forgotten.
+     * @param offset of the edit.
+     * @param removedLength of the edit.
+     * @param delta change in length of the document.
+     */
+    private void updateCheckpoints(int offset, int removedLength, int delta) {
+        List<Map.Entry<Integer, Checkpoints>> moved = new ArrayList<>();
+        for (Iterator<Map.Entry<Integer, Checkpoints>> i = checkpoints.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Integer, Checkpoints> entry = i.next();
+            int lineStart = entry.getKey();
+            if (lineStart <= offset) {
+                Checkpoints line = entry.getValue();
+                line.count = Math.min(line.count, (offset - lineStart) / CHECKPOINT_INTERVAL + 1);
+            }
+            else {
+                i.remove();
+                // The char before the line, a line feed, is kept.
+                if (lineStart > offset + removedLength) {
+                    moved.add(entry);
+                }
+            }
+        }
+        for (Map.Entry<Integer, Checkpoints> entry : moved) {
+            checkpoints.put(entry.getKey() + delta, entry.getValue());
+        }
+    }
+
+    /**
+     *
+     * @param c a char.
+     * @param column at which the char is shown.
+     * @return the number of columns the char takes.
+     */
+    private int charColumns(char c, int column) {
+        if (c == '\t') {
+            return TAB_SIZE - column % TAB_SIZE;
+        }
+        return c == '\r' ? 0 : 1;
+    }
+
+    /**
+     *
+     * @param column in a line.
+     * @return the x coordinate of the column in the viewport.
+     */
+    private double x(int column) {
+        return PADDING + column * charWidth - scrollX;
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the offset of the start of the line holding the offset.
+     */
+    private int lineStart(int offset) {
+        return lineIndex.getLineStart(lineIndex.getLineOfOffset(offset));
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the offset of the end of the line holding the offset, before
+     * its line feed.
+     */
+    private int lineEnd(int offset) {
+        return lineIndex.getLineEnd(lineIndex.getLineOfOffset(offset));
+    }
+
+    /**
+     *
+     * @param line index of a line.
+     * @return the index clamped to the lines of the document.
+     */
+    private int clampLine(int line) {
+        return Math.max(0, Math.min(line, lineIndex.getLineCount() - 1));
+    }
+
+    /**
+     *
+     * @param text an edited text.
+     * @return the number of line feeds in the text.
+     */
+    private static int countLineFeeds(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return the number of rows fully visible in the viewport.
+     */
+    private int fullyVisibleRows() {
+        return Math.max(1, (int) Math.floor(viewport.getHeight() / lineHeight));
+    }
+
+    /**
+     *
+     * @return true if the selection is not empty.
+     */
+    private boolean hasSelection() {
+        return anchor != getCaretPosition();
+    }
+
+    /**
+     *
+     * @return the offset of the start of the selection.
+     */
+    private int getSelectionStart() {
+        return Math.min(anchor, getCaretPosition());
+    }
+
+    /**
+     *
+     * @return the offset of the end of the selection.
+     */
+    private int getSelectionEnd() {
+        return Math.max(anchor, getCaretPosition());
+    }
+
+    /**
+     *
+     * @param position an offset.
+     * @return the offset within the document closest to the position.
+     */
+    private int clamp(int position) {
+        return Math.max(0, Math.min(position, document.length()));
+    }
+
+    /**
+     *
+     * @param value of the horizontal scroll.
+     * @return the value within the horizontal scroll bar range.
+     */
+    private double clampScrollX(double value) {
+        return Math.max(hScrollBar.getMin(), Math.min(value, hScrollBar.getMax()));
+    }
+
+    /**
+     *
+     * @param position an offset before the edit.
+     * @param offset of the edit.
+     * @param removedLength number of chars removed by the edit.
+     * @param delta change of the document length.
+     * @return the offset after the edit.
+     */
+    private static int shift(int position, int offset, int removedLength, int delta) {
+        if (position <= offset) {
+            return position;
+        }
+        if (position >= offset + removedLength) {
+            return position + delta;
+        }
+        return offset;
+    }
+
+    /**
+     *
+     * @param c a char.
+     * @return true if the char is part of a word.
+     */
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * The columns of a long line at every CHECKPOINT_INTERVAL chars, from its
+     * start, so the column of an offset or the offset of a column is found
+     * without reading the line from its start. They are added as far as
+     * needed.
+     */
+    private static final class Checkpoints {
+        private int[] columns = new int[16];
+        private int count = 1;
+
+        /**
+         * Adds the column of the next checkpoint.
+         * @param column of the checkpoint.
+         */
+        private void add(int column) {
+            if (count == columns.length) {
+                columns = Arrays.copyOf(columns, count * 2);
+            }
+            columns[count++] = column;
+        }
+    }
+
+    // VIEW VARIABLES
+    private final AnchorPane editorPane;
+    private final Pane viewport;
+    private final ScrollBar vScrollBar;
+    private final ScrollBar hScrollBar;
+    // END OF VIEW VARIABLES
+}
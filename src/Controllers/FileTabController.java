@@ -24,51 +24,80 @@
 
 package Controllers;
 
+import Models.Document;
+import Models.DocumentListener;
+import Models.FileLoader;
+import Models.FileSaver;
 import Models.FileTab;
-import com.sun.javafx.scene.control.behavior.TextInputControlBehavior;
-import com.sun.javafx.scene.control.skin.BehaviorSkinBase;
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import Models.Journal;
+import Models.Residency;
+import Models.Session;
+import Models.Settings;
+import Models.UndoManager;
+import Models.Workers;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.URL;
-import java.util.ResourceBundle;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.concurrent.Task;
 import javafx.event.Event;
 import javafx.event.EventHandler;
-import javafx.fxml.FXML;
-import javafx.fxml.Initializable;
+import javafx.geometry.Pos;
 import javafx.print.PrinterJob;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.Tab;
-import javafx.scene.control.TextArea;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.AnchorPane;
 import javafx.stage.FileChooser;
 
 /**
- * FXML Controller class for FileTab.fxml and FileTab.
- * A FileTab is a Tab with an editable TextArea. A File can be opened and edited
- * within the TextArea of the Tab. It can also be saved.
+ * Controller class for FileTab, which builds the Tab of the file.
+ * A FileTab is a Tab with an Editor. A File can be opened and edited
+ * within the Editor of the Tab. It can also be saved.
  */
-public class FileTabController implements Initializable {
+public class FileTabController {
     private FileTab fileTab;
     private FileTabPaneController fileTabPaneController;
+    private FileLoader fileLoader;
+    private FileSaver fileSaver;
+    private final ReadOnlyStringWrapper saveError = new ReadOnlyStringWrapper(this, "saveError");
+    private Task<CharBuffer> documentReader;
+    private int[] pendingSelection;
+    private Session.Entry pendingView;
+    private boolean deferred;
+
+    /**
+     * Constructs a new FileTabController and its Tab, holding an Editor, a
+     * LargeFileView and a placeholder shown while the document is read. The
+     * views are built in code rather than loaded from FXML, since a tab is
+     * built for every opened file.
+     */
+    public FileTabController() {
+        editorController = new EditorController();
+        largeFileViewController = new LargeFileViewController();
+        placeholder = new Label("Loading...");
+        placeholder.setAlignment(Pos.CENTER);
+        placeholder.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        placeholder.setVisible(false);
+        AnchorPane content = new AnchorPane(editorController.getView(), largeFileViewController.getView(), placeholder);
+        content.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        for (Node node : content.getChildren()) {
+            EditorController.anchor(node, 0.0, 0.0, 0.0, 0.0);
+        }
+        tab = new Tab("Untitled Tab", content);
+        initialize();
+    }
 
     /**
      * Initializes the controller class.
-     * @param url
-     * @param rb 
      */
-    @Override
-    public void initialize(URL url, ResourceBundle rb) {
-        // Add a listener to the text area to set unsaved state on input.
-        textArea.textProperty().addListener(savedStateListener());
+    private void initialize() {
         // Overrides the tab closing with our closeTabIfSaved() method so we 
         // can listen for saved state.
         tab.setOnCloseRequest(removeSelectedTabIfSavedListener());
@@ -91,16 +120,19 @@ public class FileTabController implements Initializable {
     }
     
     /**
-     * Will save the contents of the TextArea to the associated File
+     * Will save the contents of the Editor to the associated File
      * if it is valid. If it is not valid, a prompt will ask for 
-     * file selection.
+     * file selection. Nothing is saved while the file is still loading or
+     * when it is shown in the read only large file view.
      * @throws java.io.IOException
      */
     public void saveToFile() throws IOException {
+        if (isLoading() || isLargeFile()) {
+            return;
+        }
         File file = fileTab.getFile();
         if (file != null && file.isFile()) {
-            writeToFile();
-            updateFileTab();
+            writeToFile(file);
         }
         else {
             promptSaveToFile();
@@ -108,16 +140,24 @@ public class FileTabController implements Initializable {
     }
     
     /**
-     * Prompts the user to select a file to which we can write the textarea.
+     * Prompts the user to select a file to which we can write the document.
+     * A file open in another tab is not overwritten: that tab is selected
+     * instead, so a file never has two tabs with different texts.
      * @throws java.io.IOException
      */
     public void promptSaveToFile() throws IOException {
+        if (isLoading() || isLargeFile()) {
+            return;
+        }
         FileChooser fileChooser = fileTabPaneController.getFileTabPane().getFileChooser();
         File file = fileChooser.showSaveDialog(fileTabPaneController.getWindow());
-        if (file != null) {
-            fileTab.setFile(file);
-            writeToFile();
-            updateFileTab();
+        FileTabController openController = file != null ? fileTabPaneController.getFileTabPane().getFileTabController(file) : null;
+        if (openController != null && openController != this) {
+            Tab openTab = openController.getTab();
+            openTab.getTabPane().getSelectionModel().select(openTab);
+        }
+        else if (file != null) {
+            writeToFile(file);
         }
     }
     
@@ -134,8 +174,42 @@ public class FileTabController implements Initializable {
      * @throws java.io.IOException
      */
     public void setFileTab(FileTab fileTab) throws IOException {
+        setFileTab(fileTab, false);
+    }
+    
+    /**
+     * @param fileTab to be set as the controller file tab.
+     * @param deferLoad true to only load the file once the tab is selected,
+     * for example for the tabs of a session. The tab is loading until then.
+     * @throws java.io.IOException
+     */
+    public void setFileTab(FileTab fileTab, boolean deferLoad) throws IOException {
         this.fileTab = fileTab;
-        updateFileTab();
+        // Add a listener to the document to update the saved state on input.
+        fileTab.getDocument().addListener(savedStateListener());
+        editorController.setDocument(fileTab.getDocument(), fileTab.getLineIndex());
+        if (deferLoad) {
+            deferred = true;
+            tab.setText(fileTab.getFile().getName());
+            editorController.setEditable(false);
+        }
+        else {
+            updateFileTab();
+        }
+    }
+    
+    /**
+     * Sets the file tab, whose file was already loaded in the background,
+     * for example by a batch of files opened together. The file tab pane
+     * controller must be set first.
+     * @param fileTab to be set as the controller file tab.
+     * @param loader which succeeded loading the file of the file tab.
+     * @throws java.io.IOException
+     */
+    public void setFileTab(FileTab fileTab, FileLoader loader) throws IOException {
+        setFileTab(fileTab, true);
+        deferred = false;
+        loadSucceeded(fileTab.getFile(), loader);
     }
     
     /**
@@ -150,60 +224,294 @@ public class FileTabController implements Initializable {
     }
     
     /**
-     * Undo the last change to the text area.
+     * Undo the last change to the document.
      */
     public void undo() {
-        ((TextInputControlBehavior)((BehaviorSkinBase)textArea.getSkin()).getBehavior()).callAction("Undo");
+        if (editorController.isEditable()) {
+            int caretPosition = fileTab.getUndoManager().undo();
+            if (caretPosition >= 0) {
+                editorController.positionCaret(caretPosition);
+            }
+        }
     }
     
      /**
-     * Redo the last change to the text area.
+     * Redo the last change to the document.
      */
     public void redo() {
-        ((TextInputControlBehavior)((BehaviorSkinBase)textArea.getSkin()).getBehavior()).callAction("Redo");
+        if (editorController.isEditable()) {
+            int caretPosition = fileTab.getUndoManager().redo();
+            if (caretPosition >= 0) {
+                editorController.positionCaret(caretPosition);
+            }
+        }
     }
     
      /**
-     * Cut the current selection in the text area.
+     * Cut the current selection in the editor. It is undone as one edit,
+     * never merged with typing.
      */
     public void cut() {
-        textArea.cut();
+        UndoManager undoManager = fileTab.getUndoManager();
+        undoManager.beginTransaction();
+        try {
+            editorController.cut();
+        }
+        finally {
+            undoManager.endTransaction();
+        }
     }
     
     /**
-     * Copy the current selection in the text area.
+     * Copy the current selection in the editor.
      */
     public void copy() {
-        textArea.copy();
+        editorController.copy();
     }
     
      /**
-     * Paste the currently cut/copied text to the text area.
+     * Paste the currently cut/copied text to the editor. It is undone as one
+     * edit, never merged with typing.
      */
     public void paste() {
-        textArea.paste();
+        UndoManager undoManager = fileTab.getUndoManager();
+        undoManager.beginTransaction();
+        try {
+            editorController.paste();
+        }
+        finally {
+            undoManager.endTransaction();
+        }
     }
     
     /**
-     * Select all the text in the text area.
+     * Select all the text in the editor.
      */
     public void selectAll() {
-        textArea.selectAll();
+        editorController.selectAll();
+    }
+    
+    /**
+     * Moves the caret to the start of a line of the document.
+     * Large files have no line index, so they are left as they are.
+     * @param line index, starting at 0.
+     */
+    public void goToLine(int line) {
+        if (!isLargeFile()) {
+            editorController.goToLine(line);
+            editorController.requestFocus();
+        }
+    }
+    
+    /**
+     * Selects a range of the document, once it is loaded if it is still
+     * loading. Large files are not loaded in the document, so they are left
+     * as they are.
+     * @param start offset of the range, inclusive.
+     * @param end offset of the range, exclusive.
+     */
+    public void selectRange(int start, int end) {
+        if (isLoading()) {
+            pendingSelection = new int[] {start, end};
+        }
+        else if (!isLargeFile()) {
+            editorController.selectRange(start, end);
+            editorController.requestFocus();
+        }
+    }
+    
+    /**
+     * Restores the selection and the scroll position of the editor saved in
+     * a session, once the file is loaded if it is still loading.
+     * @param entry of the session.
+     */
+    public void restoreView(Session.Entry entry) {
+        if (isLoading()) {
+            pendingView = entry;
+        }
+        else if (!isLargeFile()) {
+            editorController.restoreView(entry.getAnchor(), entry.getCaretPosition(), entry.getTopLine(), entry.getScrollX());
+        }
+    }
+    
+    /**
+     * 
+     * @return the entry of this tab in a session, or null if its document is
+     * not saved in a file. A tab which is not loaded yet keeps the view it
+     * was restored with.
+     */
+    public Session.Entry getSessionEntry() {
+        File file = fileTab.getFile();
+        if (isLoading() && pendingView != null) {
+            return pendingView;
+        }
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        if (isLoading() || isLargeFile()) {
+            return new Session.Entry(file.getAbsoluteFile(), 0, 0, 0, 0);
+        }
+        return new Session.Entry(file.getAbsoluteFile(), editorController.getAnchor(), editorController.getCaretPosition(),
+                editorController.getTopLine(), editorController.getScrollX());
     }
     
     /**
-     * Prints the text area on the default printer.
+     * Prints the visible part of the editor on the default printer.
      */
     public void print() {
         PrinterJob job = PrinterJob.createPrinterJob();
         if (job != null) {
-            boolean success = job.printPage(textArea);
+            boolean success = job.printPage(editorController.getEditorPane());
             if (success) {
             job.endJob();
             }
         }
     }
 
+    /**
+     * 
+     * @return true if the file is still being loaded into the document, or
+     * will be once the tab is selected.
+     */
+    public boolean isLoading() {
+        return fileLoader != null || deferred;
+    }
+    
+    /**
+     * 
+     * @return true if the document is being saved to the file.
+     */
+    public boolean isSaving() {
+        return fileSaver != null;
+    }
+    
+    /**
+     * 
+     * @return the property holding why the last save failed, or null if it
+     * did not fail.
+     */
+    public ReadOnlyStringProperty saveErrorProperty() {
+        return saveError.getReadOnlyProperty();
+    }
+    
+    /**
+     * 
+     * @return true if the file is shown in the read only large file view
+     * instead of the editor.
+     */
+    public boolean isLargeFile() {
+        return largeFileViewController.isOpen();
+    }
+    
+    /**
+     * Records that the tab was selected, which may release the documents of
+     * the least recently selected tabs, and requests the focus. The file of
+     * a tab restored from a session is loaded the first time. If the
+     * document of this tab was released, it is read back in the background
+     * first, while a placeholder replaces the editor.
+     */
+    public void select() {
+        if (deferred) {
+            deferred = false;
+            editorController.setEditable(true);
+            try {
+                updateFileTab();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(FileTabController.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (documentReader != null) {
+            return;
+        }
+        Residency residency = fileTabPaneController.getFileTabPane().getResidency();
+        Task<CharBuffer> reader = residency.select(fileTab);
+        if (reader == null) {
+            requestFocus();
+            return;
+        }
+        documentReader = reader;
+        placeholder.setText("Loading...");
+        placeholder.setOnMouseClicked(null);
+        ProgressIndicator progressIndicator = new ProgressIndicator();
+        progressIndicator.setPrefSize(16, 16);
+        tab.setGraphic(progressIndicator);
+        editorController.setEditable(false);
+        editorController.getEditorPane().setVisible(false);
+        placeholder.setVisible(true);
+        reader.setOnSucceeded((event) -> {
+            if (documentReader == reader) {
+                residency.restore(fileTab, reader.getValue());
+                readFinished();
+            }
+        });
+        reader.setOnFailed((event) -> {
+            if (documentReader == reader) {
+                Logger.getLogger(FileTabController.class.getName()).log(Level.WARNING, null, reader.getException());
+                documentReader = null;
+                if (fileTab.getSavedState()) {
+                    // The saved file changed, so it is only loaded again
+                    // once asked, and its new text does not silently
+                    // replace the released one.
+                    tab.setGraphic(null);
+                    placeholder.setText("The file changed since the text of this tab was released. Click to load it again.");
+                    placeholder.setOnMouseClicked((MouseEvent clicked) -> reloadReleasedFile());
+                }
+                else {
+                    // The spill file could not be read, which is tried
+                    // again the next time the tab is selected.
+                    tab.setGraphic(null);
+                    placeholder.setText("The text of this tab could not be read back.");
+                }
+            }
+        });
+        Workers.io().execute(reader);
+    }
+    
+    /**
+     * Requests the focus for the editor, or for the large file view if
+     * the file is too large for the editor.
+     */
+    public void requestFocus() {
+        if (isLargeFile()) {
+            largeFileViewController.requestFocus();
+        }
+        else {
+            editorController.requestFocus();
+        }
+    }
+    
+    /**
+     * Releases the background work and the files associated with this tab,
+     * and deletes its crash recovery journal. Its spill file is deleted by
+     * the residency when the tab is removed. This is called when the tab is
+     * removed from the tab pane.
+     */
+    public void close() {
+        if (documentReader != null) {
+            documentReader.cancel();
+            documentReader = null;
+        }
+        stopLoading();
+        fileTab.getJournal().close();
+    }
+    
+    /**
+     * Replaces the document with a text recovered from a crash recovery
+     * journal. The text is unsaved, so it is journaled from scratch before
+     * the replayed journal is deleted.
+     * @param recovery of the document.
+     */
+    public void recover(Journal.Recovery recovery) {
+        stopLoading();
+        editorController.setEditable(true);
+        fileTab.setEncoding(recovery.getEncoding());
+        fileTab.load(recovery.getText(), null);
+        fileTab.markUnsaved();
+        fileTab.getJournal().reset(fileTab.getFile(), fileTab.getDocument(), fileTab.getEncoding(), false);
+        recovery.discard();
+    }
+    
     /**
      * 
      * @return the Tab associated with this controller.
@@ -214,62 +522,220 @@ public class FileTabController implements Initializable {
 
     /**
      * 
-     * @return the TextArea associated with this controller.
+     * @return the Editor associated with this controller.
      */
-    public TextArea getTextArea() {
-        return textArea;
+    public EditorController getEditor() {
+        return editorController;
     }
     
     // PRIVATE METHODS
     
     /**
-     * Updates the text area to match the file text and the
-     * tab text to match the file name.
+     * Updates the tab text to match the file name and starts loading the
+     * file text into the document in the background. Files larger than the
+     * large file threshold are shown in the large file view instead.
      */
     private void updateFileTab() throws IOException {
         File file = fileTab.getFile();
         if (file.isFile()) {
             tab.setText(file.getName());
-            textArea.setText(getFileOutputAsString(file));
-            fileTab.setSavedState(true);
+            if (file.length() > Settings.getLargeFileThreshold()) {
+                openLargeFile(file);
+            }
+            else {
+                loadFile(file);
+            }
+        }
+        else {
+            // A new file is journaled from its empty text.
+            fileTab.getJournal().reset(file, fileTab.getDocument(), fileTab.getEncoding(), false);
         }
     }
     
     /**
-     * Saves the current text in the text area to the file and sets 
-     * the current saved state to true.
+     * Shows the file in the read only large file view, which memory maps
+     * the file instead of loading it in the document.
+     * @param file to be viewed.
+     * @throws IOException 
      */
-    private void writeToFile() throws IOException {
-        File file = fileTab.getFile();
-        if (file != null) {
-            try(FileOutputStream fos = new FileOutputStream(file);
-                OutputStreamWriter osw = new OutputStreamWriter(fos);
-                Writer writer = new BufferedWriter(osw)) {
-                    writer.write(textArea.getText());
-                    // Set saved state to true.
-                    fileTab.setSavedState(true);
+    private void openLargeFile(File file) throws IOException {
+        stopLoading();
+        fileTab.getDocument().load(CharBuffer.allocate(0));
+        editorController.setEditable(false);
+        editorController.getEditorPane().setVisible(false);
+        largeFileViewController.open(file);
+        fileTab.markSaved();
+        fileTab.getJournal().reset(file, fileTab.getDocument(), fileTab.getEncoding(), true);
+    }
+    
+    /**
+     * Loads the file on a background thread. The editor is read only and
+     * the tab shows the load progress until the file is decoded. Any load
+     * still in progress is cancelled.
+     * @param file to be loaded in the text area.
+     */
+    private void loadFile(File file) {
+        stopLoading();
+        FileLoader loader = new FileLoader(file);
+        fileLoader = loader;
+        ProgressIndicator progressIndicator = new ProgressIndicator();
+        progressIndicator.setPrefSize(16, 16);
+        progressIndicator.progressProperty().bind(loader.progressProperty());
+        tab.setGraphic(progressIndicator);
+        editorController.setEditable(false);
+        loader.setOnSucceeded((event) -> {
+            if (fileLoader == loader) {
+                loadSucceeded(file, loader);
+            }
+        });
+        loader.setOnFailed((event) -> {
+            if (fileLoader == loader) {
+                Logger.getLogger(FileTabController.class.getName()).log(Level.SEVERE, null, loader.getException());
+                loadFinished();
+            }
+        });
+        loader.setOnCancelled((event) -> {
+            if (fileLoader == loader) {
+                loadFinished();
             }
+        });
+        Workers.load().execute(loader);
+    }
+    
+    /**
+     * Sets the loaded text in the document, applies the selection or the
+     * view waiting for it, and restores the tab.
+     * @param file which was loaded.
+     * @param loader which succeeded loading the file.
+     */
+    private void loadSucceeded(File file, FileLoader loader) {
+        fileTab.setEncoding(loader.getEncoding());
+        fileTab.load(loader.getValue(), loader.getLineStarts());
+        fileTab.getContentHash().setBlockHashes(loader.getBlockHashes());
+        fileTab.markSaved();
+        fileTab.getJournal().reset(file, fileTab.getDocument(), fileTab.getEncoding(), true);
+        int[] selection = pendingSelection;
+        Session.Entry view = pendingView;
+        loadFinished();
+        if (view != null) {
+            restoreView(view);
+        }
+        // Make room for the loaded text.
+        fileTabPaneController.getFileTabPane().getResidency().trim();
+        if (selection != null) {
+            selectRange(selection[0], selection[1]);
         }
     }
     
     /**
-     * 
-     * @param file to be returned as a String.
-     * @return the File output as a String.
-     * @throws FileNotFoundException
-     * @throws IOException 
+     * Cancels any load in progress and closes the large file view.
      */
-    private String getFileOutputAsString(File file) throws FileNotFoundException, IOException {
-        try(FileInputStream fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);) {
-                StringBuilder sb = new StringBuilder();
-                while (bis.available() > 0) {
-                    sb.append((char) bis.read());
-                }
-                return sb.toString();
+    private void stopLoading() {
+        if (fileLoader != null) {
+            fileLoader.cancel();
+            loadFinished();
+        }
+        largeFileViewController.close();
+        editorController.getEditorPane().setVisible(true);
+    }
+    
+    /**
+     * Restores the tab once the background load is over.
+     */
+    private void loadFinished() {
+        fileLoader = null;
+        pendingSelection = null;
+        pendingView = null;
+        tab.setGraphic(null);
+        editorController.setEditable(true);
+    }
+    
+    /**
+     * Loads the file of the tab again, once its released text could not be
+     * read back because the file changed.
+     */
+    private void reloadReleasedFile() {
+        placeholder.setOnMouseClicked(null);
+        readFinished();
+        fileTab.load(CharBuffer.allocate(0), null);
+        try {
+            updateFileTab();
+        }
+        catch (IOException ex) {
+            Logger.getLogger(FileTabController.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
- 
+    
+    /**
+     * Restores the tab once the released document was read back.
+     */
+    private void readFinished() {
+        documentReader = null;
+        tab.setGraphic(null);
+        placeholder.setVisible(false);
+        editorController.getEditorPane().setVisible(true);
+        editorController.setEditable(true);
+        editorController.refresh();
+        if (tab.isSelected()) {
+            requestFocus();
+        }
+    }
+    
+    /**
+     * Saves a snapshot of the document to a file, in the encoding of the
+     * tab, on a background thread, so the editor stays usable while saving.
+     * Once the new file has replaced the old one, the hash of the snapshot is
+     * recorded as the saved one, so the saved state is true unless the
+     * document was edited in the meantime and not undone since. Only then
+     * does the tab take the file, when it is saved as another file, so a
+     * failed save leaves the tab on its previous file, unsaved, and tells
+     * why in the save error.
+     * @param file to be written.
+     */
+    private void writeToFile(File file) {
+        saveError.set(null);
+        Document snapshot = fileTab.getDocument().snapshot();
+        long hash = fileTab.getContentHash().getHash();
+        FileSaver saver = new FileSaver(snapshot, file, fileTab.getEncoding(), Settings.getSyncPolicy());
+        fileSaver = saver;
+        ProgressIndicator progressIndicator = new ProgressIndicator();
+        progressIndicator.setPrefSize(16, 16);
+        progressIndicator.progressProperty().bind(saver.progressProperty());
+        tab.setGraphic(progressIndicator);
+        saver.setOnSucceeded((event) -> {
+            if (!file.equals(fileTab.getFile())) {
+                fileTab.setFile(file);
+                tab.setText(file.getName());
+            }
+            // Compact the journal, keeping the edits made while saving.
+            fileTab.markSaved(hash, snapshot.length());
+            fileTab.getJournal().reset(saver.getFile(), fileTab.getDocument(), fileTab.getEncoding(), fileTab.getSavedState());
+            saveFinished(saver);
+        });
+        saver.setOnFailed((event) -> {
+            if (saver.getException() instanceof CharacterCodingException) {
+                saveError.set("Cannot Save: Text Not Encodable In " + fileTab.getEncoding().getCharset().name() + ".");
+            }
+            else {
+                Logger.getLogger(FileTabController.class.getName()).log(Level.SEVERE, null, saver.getException());
+                saveError.set("Save Failed.");
+            }
+            saveFinished(saver);
+        });
+        Workers.save().execute(saver);
+    }
+    
+    /**
+     * Restores the tab once the last background save is over.
+     * @param saver which is over.
+     */
+    private void saveFinished(FileSaver saver) {
+        if (fileSaver == saver) {
+            fileSaver = null;
+            tab.setGraphic(null);
+        }
+    }
+    
     // EVENT METHODS
     
     /**
@@ -290,20 +756,33 @@ public class FileTabController implements Initializable {
     }
     
     /**
-     * @return a saved state listener which sets a file tab saved state
-     * to false.
+     * @return a saved state listener which updates a file tab saved state
+     * when its document changes, from the hash of the document, so undoing
+     * back to the saved text makes it saved again.
      */
-    private ChangeListener<String> savedStateListener() {
-        return (new ChangeListener<String>() {
+    private DocumentListener savedStateListener() {
+        return new DocumentListener() {
             @Override
-            public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue) {
-                fileTab.setSavedState(false);
+            public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+                fileTab.updateSavedState();
             }
-        });
+
+            @Override
+            public void documentReplacedAll(Document document, int[] offsets, String removedText, String insertedText) {
+                fileTab.updateSavedState();
+            }
+
+            @Override
+            public void documentReplacedRanges(Document document, int[] offsets, String[] removedTexts, String[] insertedTexts) {
+                fileTab.updateSavedState();
+            }
+        };
     }
     
-    //FXML VARIABLES: DO NOT CHANGE.
-    @FXML private Tab tab;
-    @FXML private TextArea textArea;
-    // END OF FXML VARIABLES
+    // VIEW VARIABLES
+    private final Tab tab;
+    private final EditorController editorController;
+    private final LargeFileViewController largeFileViewController;
+    private final Label placeholder;
+    // END OF VIEW VARIABLES
 }
\ No newline at end of file
@@ -24,25 +24,41 @@
 
 package Controllers;
 
+import Models.FileLoader;
 import Models.FileTab;
 import Models.FileTabPane;
+import Models.Journal;
 import Models.SaveDialog;
+import Models.Session;
+import Models.Settings;
+import Models.Workers;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.image.Image;
+import javafx.scene.input.DragEvent;
+import javafx.scene.input.Dragboard;
+import javafx.scene.input.TransferMode;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.Window;
@@ -55,6 +71,11 @@ import javafx.stage.Window;
  */
 public class FileTabPaneController implements Initializable {
     private FileTabPane fileTabPane;
+    private Stage saveDialogStage;
+    private SaveDialogController saveDialogController;
+    private final Map<File, FileLoader> openLoads = new HashMap<>();
+    private int openTotal;
+    private int openDone;
 
     /**
      * Initializes the controller class.
@@ -66,19 +87,74 @@ public class FileTabPaneController implements Initializable {
         fileTabPane = new FileTabPane(this);
         // Select the text area of the tab when a tab is selected.
         tabPane.getSelectionModel().selectedItemProperty().addListener(selectTextAreaOnTabSelection());
+        // Open the files dropped on the tab pane.
+        tabPane.setOnDragOver(acceptFilesListener());
+        tabPane.setOnDragDropped(openDroppedFilesListener());
     }
     
     /**
-     * Prompts the user to open a file.
+     * Prompts the user to open one or more files.
      * @throws IOException 
      */
     public void openFile() throws IOException {
-        File file = fileTabPane.getFileChooser().showOpenDialog(getWindow());
-        if (file != null) {
-            openUniqueFile(file);      
+        List<File> files = fileTabPane.getFileChooser().showOpenMultipleDialog(getWindow());
+        if (files != null) {
+            openFiles(files);
         }
     }
     
+    /**
+     * Opens the files which are not already open. A single file gets its tab
+     * at once, showing its own load progress. Otherwise the files are loaded
+     * concurrently by the load workers, each tab is added as soon as its file
+     * is loaded, and the progress bar shows how much of the files opened so
+     * far is loaded. The tab of the first file is selected once it is added.
+     * Folders are skipped.
+     * @param files to be opened.
+     * @throws IOException 
+     */
+    public void openFiles(List<File> files) throws IOException {
+        if (files.size() == 1 && files.get(0).isFile()) {
+            openUniqueFile(files.get(0));
+            return;
+        }
+        boolean select = true;
+        for (File file : files) {
+            File key = FileTabPane.fileKey(file);
+            FileTabController fileTabController = getFileTabController(file);
+            if (fileTabController != null) {
+                if (select) {
+                    tabPane.getSelectionModel().select(fileTabController.getTab());
+                }
+            }
+            else if (!file.isFile() || openLoads.containsKey(key)) {
+                continue;
+            }
+            else if (file.length() > Settings.getLargeFileThreshold()) {
+                // The large file view maps the file without loading it.
+                addFileTab(createFileTab(file, false), select);
+            }
+            else {
+                loadFileTab(file, key, select);
+            }
+            select = false;
+        }
+    }
+    
+    /**
+     * Opens a file, unless it is already open, and selects a range of it once
+     * it is loaded.
+     * @param file to be opened.
+     * @param start offset of the range, inclusive.
+     * @param end offset of the range, exclusive.
+     * @throws IOException 
+     */
+    public void openFile(File file, int start, int end) throws IOException {
+        FileTabController fileTabController = openUniqueFile(file);
+        tabPane.getSelectionModel().select(fileTabController.getTab());
+        fileTabController.selectRange(start, end);
+    }
+    
      /**
      * Closes the file if the tab saved state is true. Otherwise
      * it will prompot the user with a dialog.
@@ -91,8 +167,7 @@ public class FileTabPaneController implements Initializable {
             if (fileTab != null) {
                 // If the FileTab saved state is true, close the file.
                 if (fileTab.getSavedState()) {
-                    tabPane.getTabs().remove(tab);
-                    fileTabPane.removeFileTab(fileTab);
+                    removeFileTab(tab, fileTab);
                 }
                 // Else prompt the user if the file should be saved.
                 else {
@@ -110,8 +185,7 @@ public class FileTabPaneController implements Initializable {
         if (tab != null) {
             FileTab fileTab = getFileTab(tab);
             if (fileTab != null) {
-                tabPane.getTabs().remove(tab);
-                fileTabPane.removeFileTab(fileTab);
+                removeFileTab(tab, fileTab);
             }
         }
     }
@@ -183,7 +257,9 @@ public class FileTabPaneController implements Initializable {
     
     /**
      * Will try to close all tabs. If the save state of any tab is false
-     * the user will be prompted for a save.
+     * the user will be prompted for a save. A tab whose edits were all undone
+     * holds the text of its file again, so it is saved and not prompted.
+     * The open files are saved in the session before the application exits.
      * @throws java.io.IOException
      */
     public void closeTabsAndExit() throws IOException {
@@ -194,9 +270,98 @@ public class FileTabPaneController implements Initializable {
                 return;
             }
         }
+        saveSession();
+        cancelOpenFiles();
+        // Every file is saved, so the journals are no longer needed.
+        for (Tab tab : tabPane.getTabs()) {
+            getFileTabController(tab).close();
+        }
+        // Delete the spill files of the released documents.
+        fileTabPane.getResidency().clear();
             Platform.exit();
     }
     
+    /**
+     * Opens a tab for each document recovered from the crash recovery
+     * journals left behind by an instance which died. The recovered tabs
+     * are unsaved.
+     * @throws IOException 
+     */
+    public void recoverFiles() throws IOException {
+        for (Journal.Recovery recovery : Journal.recover()) {
+            File file = recovery.getFile() != null ? recovery.getFile() : new File("new file");
+            newFile(file).recover(recovery);
+        }
+    }
+    
+    /**
+     * Opens the files of the session saved on exit, in their order, and
+     * selects the tab which was selected. Only the selected file is loaded:
+     * the other tabs load their file when they are first selected. Files
+     * which are already open are skipped.
+     * @throws IOException 
+     */
+    public void restoreSession() throws IOException {
+        if (!Settings.isSessionEnabled()) {
+            return;
+        }
+        Session session = Session.load(Settings.getSessionFile());
+        List<Tab> tabs = new ArrayList<>();
+        List<FileTabController> controllers = new ArrayList<>();
+        Tab selectedTab = null;
+        List<Session.Entry> entries = session.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            Session.Entry entry = entries.get(i);
+            if (getFileTabController(entry.getFile()) != null) {
+                continue;
+            }
+            FileTabController fileTabController = createFileTab(entry.getFile(), true);
+            fileTabController.restoreView(entry);
+            tabs.add(fileTabController.getTab());
+            controllers.add(fileTabController);
+            if (i == session.getSelected()) {
+                selectedTab = fileTabController.getTab();
+            }
+        }
+        // Adds the tabs at once, so the tab pane is laid out once.
+        tabPane.getTabs().addAll(tabs);
+        for (FileTabController fileTabController : controllers) {
+            fileTabPane.addFileTab(fileTabController.getFileTab(), fileTabController);
+        }
+        if (selectedTab != null) {
+            tabPane.getSelectionModel().select(selectedTab);
+        }
+    }
+    
+    /**
+     * Saves the files open in the tabs, with the selection and the scroll
+     * position of their editors, so they are opened again on startup.
+     * Documents which were never saved in a file are left out.
+     */
+    public void saveSession() {
+        if (!Settings.isSessionEnabled()) {
+            return;
+        }
+        Session session = new Session();
+        Tab selectedTab = tabPane.getSelectionModel().getSelectedItem();
+        for (Tab tab : tabPane.getTabs()) {
+            FileTabController controller = getFileTabController(tab);
+            Session.Entry entry = controller != null ? controller.getSessionEntry() : null;
+            if (entry != null) {
+                session.add(entry);
+                if (tab == selectedTab) {
+                    session.setSelected(session.getEntries().size() - 1);
+                }
+            }
+        }
+        try {
+            session.save(Settings.getSessionFile());
+        }
+        catch (IOException ex) {
+            Logger.getLogger(FileTabPaneController.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
     /**
      * 
      * @return the file tab controller.
@@ -209,6 +374,14 @@ public class FileTabPaneController implements Initializable {
         return null;
     }
     
+    /**
+     * 
+     * @return the property of the selected tab.
+     */
+    public ReadOnlyObjectProperty<Tab> selectedTabProperty() {
+        return tabPane.getSelectionModel().selectedItemProperty();
+    }
+    
     /*
     * @return the FileTabPane associated with this controller.
     */
@@ -240,7 +413,8 @@ public class FileTabPaneController implements Initializable {
      * 
      * @return a change listener which will select the corresponding text area
      * of the selected tab. This means a user can switch tabs without losing
-     * the text area selection.
+     * the text area selection. The document of the tab is read back first if
+     * it was released.
      */
    private ChangeListener<Tab> selectTextAreaOnTabSelection() {
         return (new ChangeListener<Tab>() {
@@ -250,8 +424,10 @@ public class FileTabPaneController implements Initializable {
                     Platform.runLater(() -> {
                         Tab tab = newValue;
                         FileTabController controller = getFileTabController(tab);
-                        if (controller != null) {
-                            controller.getTextArea().requestFocus();
+                        // Tabs selected and unselected in a row, like the
+                        // first tab of a session, are not loaded.
+                        if (controller != null && tab.isSelected()) {
+                            controller.select();
                         }
                     });
                 }   
@@ -259,63 +435,218 @@ public class FileTabPaneController implements Initializable {
         });
     }
     
+    /**
+     * 
+     * @return a drag listener accepting files dragged over the tab pane.
+     */
+    private EventHandler<DragEvent> acceptFilesListener() {
+        return (DragEvent event) -> {
+            if (event.getDragboard().hasFiles()) {
+                event.acceptTransferModes(TransferMode.COPY);
+            }
+            event.consume();
+        };
+    }
+    
+    /**
+     * 
+     * @return a drop listener opening the files dropped on the tab pane.
+     */
+    private EventHandler<DragEvent> openDroppedFilesListener() {
+        return (DragEvent event) -> {
+            Dragboard dragboard = event.getDragboard();
+            boolean opened = false;
+            if (dragboard.hasFiles()) {
+                try {
+                    openFiles(dragboard.getFiles());
+                    opened = true;
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(FileTabPaneController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            event.setDropCompleted(opened);
+            event.consume();
+        };
+    }
+    
    // PRIVATE METHODS
    
     /**
      * Adds a new empty file tab and selects it.
+     * @return the controller of the new tab.
      * @throws java.io.IOException
      */
-    private void newFile(File file) throws IOException {
-        // Loads a new tab from FXML.
-        FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("/Views/FileTab.fxml"));
-        Tab tab = fxmlLoader.load();
-        // Loads the controller.
-        FileTabController fileTabController = fxmlLoader.getController();
+    private FileTabController newFile(File file) throws IOException {
+        FileTabController fileTabController = createFileTab(file, false);
+        addFileTab(fileTabController, true);
+        return fileTabController;
+    }
+    
+    /**
+     * Adds the tab of a controller to the tab pane and its file tab to the
+     * model.
+     * @param fileTabController of the tab.
+     * @param select true to select the tab.
+     */
+    private void addFileTab(FileTabController fileTabController, boolean select) {
+        Tab tab = fileTabController.getTab();
+        // Updates the view and the model.
+        tabPane.getTabs().add(tab);
+        fileTabPane.addFileTab(fileTabController.getFileTab(), fileTabController);
+        if (select) {
+            tabPane.getSelectionModel().select(tab);
+        }
+    }
+    
+    /**
+     * Loads a file of a batch on the load workers, and adds its tab once it
+     * is loaded, unless the file was opened in the meantime.
+     * @param file to be loaded.
+     * @param key of the file, see FileTabPane.fileKey.
+     * @param select true to select the tab once it is added.
+     */
+    private void loadFileTab(File file, File key, boolean select) {
+        FileLoader loader = new FileLoader(file);
+        openLoads.put(key, loader);
+        openTotal++;
+        updateOpenProgress();
+        loader.setOnSucceeded((event) -> {
+            if (openLoads.remove(key, loader)) {
+                if (getFileTabController(file) == null) {
+                    try {
+                        FileTabController fileTabController = new FileTabController();
+                        fileTabController.setFileTabPaneController(this);
+                        fileTabController.setFileTab(new FileTab(file), loader);
+                        addFileTab(fileTabController, select);
+                    }
+                    catch (IOException ex) {
+                        Logger.getLogger(FileTabPaneController.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                openFileFinished();
+            }
+        });
+        loader.setOnFailed((event) -> {
+            if (openLoads.remove(key, loader)) {
+                Logger.getLogger(FileTabPaneController.class.getName()).log(Level.SEVERE, null, loader.getException());
+                openFileFinished();
+            }
+        });
+        loader.setOnCancelled((event) -> {
+            if (openLoads.remove(key, loader)) {
+                openFileFinished();
+            }
+        });
+        Workers.load().execute(loader);
+    }
+    
+    /**
+     * Counts a file of a batch whose load is over.
+     */
+    private void openFileFinished() {
+        openDone++;
+        if (openLoads.isEmpty()) {
+            openTotal = 0;
+            openDone = 0;
+        }
+        updateOpenProgress();
+    }
+    
+    /**
+     * Shows the part of the files being opened which is loaded, or hides
+     * the progress bar once they are all loaded.
+     */
+    private void updateOpenProgress() {
+        openProgressBar.setVisible(openTotal > 0);
+        openProgressBar.setProgress(openTotal > 0 ? (double) openDone / openTotal : 0);
+    }
+    
+    /**
+     * Cancels the loads of the files being opened.
+     */
+    private void cancelOpenFiles() {
+        List<FileLoader> loaders = new ArrayList<>(openLoads.values());
+        openLoads.clear();
+        for (FileLoader loader : loaders) {
+            loader.cancel();
+        }
+        openTotal = 0;
+        openDone = 0;
+        updateOpenProgress();
+    }
+    
+    /**
+     * Creates a file tab, which is not added to the tab pane yet.
+     * @param file of the tab.
+     * @param deferLoad true to only load the file once the tab is selected.
+     * @return the controller of the new tab.
+     * @throws IOException 
+     */
+    private FileTabController createFileTab(File file, boolean deferLoad) throws IOException {
+        // Builds a new tab with its controller.
+        FileTabController fileTabController = new FileTabController();
         // Creates a new FileTab that is set on the controller.
         FileTab fileTab = new FileTab(file);
-        fileTabController.setFileTab(fileTab);
+        fileTabController.setFileTab(fileTab, deferLoad);
         // Sets this on the FileTab controller.
         fileTabController.setFileTabPaneController(this);
-        // Updates the view and the model.
-        tabPane.getTabs().add(tab);
-        fileTabPane.addFileTab(fileTab, fileTabController);
-        // Selects the new tab.
-        tabPane.getSelectionModel().select(tab);
+        return fileTabController;
     }
     
         
     /**
      * Opens a file if it is not already open.
      * @param file to be open.
+     * @return the controller of the tab of the file.
      * @throws IOException 
      */
-    private void openUniqueFile(File file) throws IOException {
+    private FileTabController openUniqueFile(File file) throws IOException {
         FileTabController fileTabController = getFileTabController(file);
         if (fileTabController == null) {
-            newFile(file);
+            return newFile(file);
+        }
+        return fileTabController;
+    }
+    
+    /**
+     * Removes the tab from the view and its file tab from the model, stopping
+     * any background work of the tab.
+     * @param tab to be removed.
+     * @param fileTab associated with the tab.
+     */
+    private void removeFileTab(Tab tab, FileTab fileTab) {
+        FileTabController controller = getFileTabController(tab);
+        if (controller != null) {
+            controller.close();
         }
+        tabPane.getTabs().remove(tab);
+        fileTabPane.removeFileTab(fileTab);
     }
     
     /**
      * Prompts the user with a save dialog. This action is associated with
-     * closing the file when the saved state is false.
+     * closing the file when the saved state is false. The dialog is loaded
+     * the first time only, and its stage is shown again for the next tabs.
      */
     private void promptSaveDialog(Tab tab) throws IOException {
-        FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("/Views/SaveDialog.fxml"));
-        Parent node = fxmlLoader.load();
-        SaveDialogController controller = fxmlLoader.getController();
-        // Set the scene.
-        Scene scene = new Scene(node);
-        // Set the stage.
-        Stage stage = new Stage();
-        stage.setScene(scene);
-        stage.initModality(Modality.APPLICATION_MODAL);
-        stage.setResizable(false);
-        stage.getIcons().add(new Image("/Styling/iconsmall.png"));
-        stage.show();
+        if (saveDialogStage == null) {
+            FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("/Views/SaveDialog.fxml"));
+            Parent node = fxmlLoader.load();
+            saveDialogController = fxmlLoader.getController();
+            // Set the scene.
+            Scene scene = new Scene(node);
+            // Set the stage.
+            saveDialogStage = new Stage();
+            saveDialogStage.setScene(scene);
+            saveDialogStage.initModality(Modality.APPLICATION_MODAL);
+            saveDialogStage.setResizable(false);
+            saveDialogStage.getIcons().add(new Image("/Styling/iconsmall.png"));
+        }
         // Set the SaveDialog model.
-        SaveDialog saveDialog = new SaveDialog(stage, tab, this);
-        controller.setSaveDialog(saveDialog);
+        SaveDialog saveDialog = new SaveDialog(saveDialogStage, tab, this);
+        saveDialogController.setSaveDialog(saveDialog);
+        saveDialogStage.show();
     }
     
     /**
@@ -324,14 +655,8 @@ public class FileTabPaneController implements Initializable {
      * @return the FileTab associated with tab.
      */
     private FileTab getFileTab(Tab tab) {
-        Iterator<FileTabController> iter = fileTabPane.getFileTabControllerMap().values().iterator();
-        for (Iterator<FileTabController> i = iter; iter.hasNext();) {
-            FileTabController controller = i.next();
-            if (controller.getTab().equals(tab)) {
-                return controller.getFileTab();
-            }
-        }
-        return null;
+        FileTabController controller = fileTabPane.getFileTabController(tab);
+        return controller != null ? controller.getFileTab() : null;
     }
     
     /**
@@ -340,33 +665,20 @@ public class FileTabPaneController implements Initializable {
      * @return the FileTabController associated with tab.
      */
     private FileTabController getFileTabController(Tab tab) {
-        Iterator<FileTabController> iter = fileTabPane.getFileTabControllerMap().values().iterator();
-        for (Iterator<FileTabController> i = iter; iter.hasNext();) {
-            FileTabController controller = i.next();
-            if (controller.getTab().equals(tab)) {
-                return controller;
-            }
-        }
-        return null;
+        return fileTabPane.getFileTabController(tab);
     }
     
     /**
      * 
-     * @param file associated with the controller.
+     * @param file associated with the controller, given by any of its paths.
      * @return the FileTabController associated with file.
      */
     private FileTabController getFileTabController(File file) {
-        Iterator<FileTabController> iter = fileTabPane.getFileTabControllerMap().values().iterator();
-        for (Iterator<FileTabController> i = iter; iter.hasNext();) {
-            FileTabController controller = i.next();
-            if (controller.getFileTab().getFile().equals(file)) {
-                return controller;
-            }
-        }
-        return null;
+        return fileTabPane.getFileTabController(file);
     }
  
     // FXML VARIABLES: DO NOT CHANGE
     @FXML private TabPane tabPane;
+    @FXML private ProgressBar openProgressBar;
     // END OF FXML VARIABLES
 }
@@ -25,23 +25,52 @@
 package Controllers;
 
 import Models.Context;
+import Models.Document;
+import Models.DocumentListener;
+import Models.FindAll;
+import Models.FindEngine;
+import Models.LineIndex;
+import Models.Regex;
+import Models.Settings;
+import Models.Workers;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.AbstractList;
 import java.util.ResourceBundle;
+import java.util.regex.PatternSyntaxException;
+import javafx.animation.PauseTransition;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.collections.FXCollections;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.HBox;
+import javafx.util.Duration;
 
 /**
  * FXML Controller class of FindDialog.fxml and FindDialog.
  */
 public class FindDialogController implements Initializable {
+    private static final int COUNT_LIMIT = 1000;
+    private static final int PREVIEW_LENGTH = 120;
+    private static final int PREVIEW_CONTEXT = 40;
     private Context context;
+    private PauseTransition findDelay;
+    private Task<FindEngine.Result> search;
+    private FindAll findAll;
+    private FindAll.Result results;
+    private FileTabController resultsTab;
+    private DocumentListener resultsListener;
 
     /**
      * Initializes the controller class.
@@ -51,8 +80,13 @@ public class FindDialogController implements Initializable {
     @Override
     public void initialize(URL url, ResourceBundle rb) {
         // Listen for changes to the text field and automatically finds the
-        // input text.
+        // input text, once the user stops typing.
+        findDelay = new PauseTransition(Duration.millis(Settings.getFindDelay()));
+        findDelay.setOnFinished((ActionEvent event) -> find());
+        resultList.setCellFactory((ListView<Integer> list) -> resultCell());
+        resultList.getSelectionModel().selectedIndexProperty().addListener(resultSelectionListener());
         textField.textProperty().addListener(findChangeListener());
+        regexCheckBox.selectedProperty().addListener(regexChangeListener());
     }
     
     /**
@@ -71,139 +105,354 @@ public class FindDialogController implements Initializable {
         return context;
     }
     
+    /**
+     * 
+     * @return the text to find, or the regular expression.
+     */
+    public String getTextToFind() {
+        return textField.getText();
+    }
+    
+    /**
+     * 
+     * @return true if the text to find is a regular expression.
+     */
+    public boolean isRegex() {
+        return regexCheckBox.isSelected();
+    }
+    
+    /**
+     * Shows a message next to the find dialog buttons.
+     * @param message to be shown.
+     */
+    public void setMessage(String message) {
+        setMessage(message, null);
+    }
+    
+    /**
+     * Shows a message next to the find dialog buttons, with details shown
+     * when the mouse hovers over it.
+     * @param message to be shown.
+     * @param details of the message, or null.
+     */
+    public void setMessage(String message, String details) {
+        messageLabel.setText(message);
+        messageLabel.setTooltip(details != null ? new Tooltip(details) : null);
+    }
+    
     // FXML ACTIONS
         
     /**
      * Closes the find dialog.
      */
     @FXML public void close() {
+        cancelFind();
+        clearResults();
         context.getMainPaneController().removeFindOrReplaceDialog();
     }
     
     /**
-     * Calls find on any previous existing text in the text area
+     * Calls find on any previous existing text in the editor
      * from the selected text.
      */
     @FXML public void previous() {
-        TextArea textArea = getSelectedTextArea();
-        if (textArea != null) {
-            int caretPosition = textArea.getCaretPosition()  - textArea.getSelectedText().length() - 1;
+        EditorController editor = getSelectedEditor();
+        if (editor != null) {
+            int caretPosition = editor.getCaretPosition()  - editor.getSelectedText().length() - 1;
             boolean findNext = false;
-            find(textArea, caretPosition, findNext);
+            find(editor, caretPosition, findNext);
         }
     }
     
     /**
-     * Calls find on any next existing text in the text area
+     * Calls find on any next existing text in the editor
      * from the selected text.
      */
     @FXML public void next() {
-        TextArea textArea = getSelectedTextArea();
-        if (textArea != null) {
-            int caretPosition = textArea.getCaretPosition();
+        EditorController editor = getSelectedEditor();
+        if (editor != null) {
+            int caretPosition = editor.getCaretPosition();
             boolean findNext = true;
-            find(textArea, caretPosition, findNext);
+            find(editor, caretPosition, findNext);
         }
     }
 
+    /**
+     * Searches the whole document for the text of the text field, in the
+     * background, and lists every occurence found.
+     */
+    @FXML public void findAll() {
+        clearResults();
+        FileTabController fileTabController = context.getFileTabPaneController().getCurrentFileTabController();
+        String textToFind = textField.getText();
+        if (fileTabController == null || textToFind.isEmpty()) {
+            return;
+        }
+        Document document = fileTabController.getFileTab().getDocument();
+        FindAll task = new FindAll(document.snapshot(), textToFind, isRegex());
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (findAll != task) {
+                return;
+            }
+            findAll = null;
+            FindAll.Result result = task.getValue();
+            if (result.getVersion() == document.getVersion() && findDialogHBox.getScene() != null) {
+                showResults(fileTabController, result);
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (findAll == task) {
+                findAll = null;
+                searchFailed(task.getException());
+            }
+        });
+        findAll = task;
+        messageLabel.setText("Searching...");
+        Workers.io().execute(task);
+    }
+
     // EVENT HANDLERS
     
     /**
      * 
-     * @return a listener which calls find on the find dialog text field change.
+     * @return a listener which calls find on the find dialog text field
+     * change, once the user stops typing.
      */
     private ChangeListener<String> findChangeListener() {
         return (ObservableValue<? extends String> observable, String oldValue, String newValue) -> {
             unsetNoTextFound();
+            cancelFind();
+            clearResults();
             String textToFind = newValue;
             if (!textToFind.isEmpty()) {
+                findDelay.playFromStart();
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @return a list cell showing the line of an occurence found by find all.
+     */
+    private ListCell<Integer> resultCell() {
+        return new ListCell<Integer>() {
+            @Override
+            protected void updateItem(Integer offset, boolean empty) {
+                super.updateItem(offset, empty);
+                setText(empty || offset == null || resultsTab == null ? null : preview(offset));
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @return a listener which selects the occurence clicked in the list of
+     * results.
+     */
+    private ChangeListener<Number> resultSelectionListener() {
+        return (ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
+            int index = newValue.intValue();
+            if (index >= 0 && results != null) {
+                int offset = results.getOffset(index);
+                resultsTab.getEditor().selectRange(offset, offset + results.getLength(index));
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @return a listener which finds the text again when the regular
+     * expression mode is switched.
+     */
+    private ChangeListener<Boolean> regexChangeListener() {
+        return (ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> {
+            unsetNoTextFound();
+            cancelFind();
+            clearResults();
+            if (!textField.getText().isEmpty()) {
                 find();
             }
         };
     }
     
+    /**
+     * 
+     * @return a listener which clears the list of results once the document
+     * they were found in changes.
+     */
+    private DocumentListener resultsListener() {
+        return new DocumentListener() {
+            @Override
+            public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+                clearResults();
+            }
+
+            @Override
+            public void documentReset(Document document) {
+                clearResults();
+            }
+        };
+    }
+    
     // PRIVATE METHODS
     
     /**
-     * Searches the text area for the current text at the find dialog text field.
+     * Searches the editor for the current text at the find dialog text field.
      */
     private void find() {
-        TextArea textArea = getSelectedTextArea();
-        if (textArea != null) {
-            int caretPosition = textArea.getCaretPosition() - textArea.getSelectedText().length();
+        EditorController editor = getSelectedEditor();
+        if (editor != null) {
+            int caretPosition = editor.getCaretPosition() - editor.getSelectedText().length();
             boolean findNext = true;
-            find(textArea, caretPosition, findNext);
+            find(editor, caretPosition, findNext);
         }
     }
     
     /**
-     * A helper method for find().
-     * @param textArea
+     * A helper method for find(). Starts a search in the background, which
+     * replaces any search still running, and shows its result once done.
+     * The result is dropped if the document was edited in the meantime.
+     * @param editor
      * @param caretPosition
      * @param findNext 
      */
-    private void find(TextArea textArea, int caretPosition, boolean findNext) {
-        int firstOcurrence;
-        if (findNext) { firstOcurrence = getFirstOcurrenceIndex(textArea, caretPosition); }
-        else { firstOcurrence = getLastOcurrenceIndex(textArea, caretPosition); }
-        if (firstOcurrence != -1) {
-            unsetNoTextFound();
-            updateTextArea(textArea, firstOcurrence);
+    private void find(EditorController editor, int caretPosition, boolean findNext) {
+        cancelFind();
+        String textToFind = textField.getText();
+        Document document = getSelectedDocument();
+        if (textToFind.isEmpty() || document == null) {
+            return;
         }
-        else {
-            noTextFound(textArea);
+        Task<FindEngine.Result> task = getSelectedFindEngine().find(textToFind, caretPosition, findNext, COUNT_LIMIT, isRegex());
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (search != task) {
+                return;
+            }
+            search = null;
+            FindEngine.Result result = task.getValue();
+            if (result.getVersion() != document.getVersion() || findDialogHBox.getScene() == null) {
+                return;
+            }
+            if (result.getOffset() != -1) {
+                showMatchCount(result.getCount(), result.getCount() >= COUNT_LIMIT);
+                updateEditor(editor, result.getOffset(), result.getLength());
+            }
+            else {
+                noTextFound(editor);
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (search == task) {
+                search = null;
+                searchFailed(task.getException());
+            }
+        });
+        search = task;
+        Workers.io().execute(task);
+    }
+    
+    /**
+     * Cancels the search waiting for the user to stop typing and the search
+     * running in the background, if any.
+     */
+    private void cancelFind() {
+        findDelay.stop();
+        if (search != null) {
+            search.cancel();
+            search = null;
         }
     }
     
     /**
-     * 
-     * @param textArea to be searched.
-     * @param caretPosition from where to search.
-     * @return the index of the first occurence of the text field in the text area
-     * searching backwards from the caret position.
+     * Sets up a message when no text is found.
+     * @param editor 
+     */
+    private void noTextFound(EditorController editor) {
+        editor.selectRange(0, 0);
+        messageLabel.setText("No Text Found.");
+    }
+    
+    /**
+     * Shows the occurences found by find all in the list of results.
+     * @param fileTabController of the document searched.
+     * @param result of the search.
      */
-    private int getLastOcurrenceIndex(TextArea textArea, int caretPosition) {
-        // If the caret is in the last position look backwards.
-        if (caretPosition == textArea.getText().length()) {
-            return findLastOccurence(textArea, caretPosition);
+    private void showResults(FileTabController fileTabController, FindAll.Result result) {
+        if (result.getCount() == 0) {
+            noTextFound(fileTabController.getEditor());
+            return;
         }
-        // If the caret is not in the last position look backwards and if unsucessfull forward.
-        else {
-            int firstOcurrence = findLastOccurence(textArea, caretPosition);
-            // if it is still null find from the start.
-            if (firstOcurrence == -1) { return findLastOccurence(textArea, textArea.getText().length()); }
-            else { return firstOcurrence; }
+        results = result;
+        resultsTab = fileTabController;
+        resultsListener = resultsListener();
+        fileTabController.getFileTab().getDocument().addListener(resultsListener);
+        // The list reads the offsets from the result, without boxing them all.
+        resultList.setItems(FXCollections.observableList(new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return results.getOffset(index);
+            }
+
+            @Override
+            public int size() {
+                return results.getCount();
+            }
+        }));
+        resultList.setManaged(true);
+        resultList.setVisible(true);
+        showMatchCount(result.getCount(), result.isTruncated());
+    }
+    
+    /**
+     * Cancels find all if it is running and hides the list of results.
+     */
+    private void clearResults() {
+        if (findAll != null) {
+            findAll.cancel();
+            findAll = null;
+        }
+        if (resultsListener != null) {
+            resultsTab.getFileTab().getDocument().removeListener(resultsListener);
+            resultsListener = null;
         }
+        results = null;
+        resultsTab = null;
+        resultList.setItems(FXCollections.observableArrayList());
+        resultList.setManaged(false);
+        resultList.setVisible(false);
     }
     
     /**
      * 
-     * @param textArea to be searched.
-     * @param caretPosition from where to search.
-     * @return the index of the first occurence of the text field in the text area
-     * searching forward from the caret position.
+     * @param offset of an occurence found by find all.
+     * @return the number of the line of the occurence and the text around it,
+     * or only the number if the document of the tab is released, since it is
+     * not read back on the FX thread.
      */
-    private int getFirstOcurrenceIndex(TextArea textArea, int caretPosition) {
-        // If the caret is in the first position look all the way.
-        if (caretPosition == 0) {
-            return findFirstOccurence(textArea, caretPosition);
-        }
-        // If the caret is not in the first position look forward and if unsucessful backwards.
-        else {
-            int firstOcurrence = findFirstOccurence(textArea, caretPosition);
-            // if it is still null find from the start.
-            if (firstOcurrence == -1) { return findFirstOccurence(textArea, 0); }
-            else { return firstOcurrence; }
+    private String preview(int offset) {
+        LineIndex lineIndex = resultsTab.getFileTab().getLineIndex();
+        int line = lineIndex.getLineOfOffset(offset);
+        Document document = resultsTab.getFileTab().getDocument();
+        if (!document.isResident()) {
+            return (line + 1) + ":";
         }
+        int start = Math.max(lineIndex.getLineStart(line), offset - PREVIEW_CONTEXT);
+        int end = Math.min(lineIndex.getLineEnd(line), start + PREVIEW_LENGTH);
+        return (line + 1) + ": " + document.getText(start, end);
     }
     
     /**
-     * Sets up a message when no text is found.
-     * @param textArea 
+     * Shows how many times the text of the text field occurs in the document.
+     * @param count of the matches.
+     * @param more true if there may be more matches than the count.
      */
-    private void noTextFound(TextArea textArea) {
-        textArea.selectRange(0, 0);
-        messageLabel.setText("No Text Found.");
+    private void showMatchCount(int count, boolean more) {
+        if (more) {
+            messageLabel.setText(count + "+ Matches.");
+        }
+        else {
+            messageLabel.setText(count + (count == 1 ? " Match." : " Matches."));
+        }
     }
     
     /**
@@ -211,51 +460,73 @@ public class FindDialogController implements Initializable {
      */
     private void unsetNoTextFound() {
         messageLabel.setText("");
+        messageLabel.setTooltip(null);
     }
 
     /**
-     * Update the text area when text if found.
-     * @param textArea to be udpated.
-     * @param textFound is the text found.
+     * Shows why a search failed.
+     * @param exception thrown by the search.
      */
-    private void updateTextArea(TextArea textArea, int textFound) {
-        int selectedTextLength = textField.getText().length();
-        textArea.selectRange(textFound, textFound + selectedTextLength);
+    private void searchFailed(Throwable exception) {
+        if (exception instanceof PatternSyntaxException) {
+            messageLabel.setText("Invalid Regular Expression.");
+        }
+        else if (exception instanceof Regex.TimeoutException) {
+            messageLabel.setText("Search Timed Out.");
+        }
+        else if (exception instanceof UncheckedIOException) {
+            messageLabel.setText("Text Could Not Be Read Back.");
+        }
+        else {
+            messageLabel.setText("");
+        }
     }
-    
+
     /**
-     * A helper for getLastOccurenceIndex().
-     * @param textArea of the occurence to be found.
-     * @param startIndex of the text area in which to find.
-     * @return the first occurence of the text to be find searching backwards.
+     * Update the editor when text if found.
+     * @param editor to be udpated.
+     * @param textFound is the offset of the text found.
+     * @param length of the text found.
      */
-    private int findLastOccurence(TextArea textArea, int startIndex) {
-        String textToFind = textField.getText();
-        String textToLook = textArea.getText();
-        return textToLook.lastIndexOf(textToFind, startIndex);
+    private void updateEditor(EditorController editor, int textFound, int length) {
+        editor.selectRange(textFound, textFound + length);
     }
     
     /**
-     * A helper for getFirsttOccurenceIndex().
-     * @param textArea of the occurence to be found.
-     * @param startIndex of the text area in which to find.
-     * @return the first occurence of the text to be find searching forward.
+     * 
+     * @return the currently selected editor of the tab pane.
      */
-    private int findFirstOccurence(TextArea textArea, int startIndex) {
-        String textToFind = textField.getText();
-        String textToLook = textArea.getText();
-        return textToLook.indexOf(textToFind, startIndex);
+    private EditorController getSelectedEditor() {
+        FileTabPaneController fileTabPaneController = context.getFileTabPaneController();
+        FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
+        if (fileTabController != null) {
+            return fileTabController.getEditor();
+        }
+        return null;
     }
     
     /**
      * 
-     * @return the currently selected text area of the tab pane.
+     * @return the document of the currently selected file tab.
+     */
+    private Document getSelectedDocument() {
+        FileTabPaneController fileTabPaneController = context.getFileTabPaneController();
+        FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
+        if (fileTabController != null) {
+            return fileTabController.getFileTab().getDocument();
+        }
+        return null;
+    }
+        
+    /**
+     * 
+     * @return the find engine of the currently selected file tab.
      */
-    private TextArea getSelectedTextArea() {
+    private FindEngine getSelectedFindEngine() {
         FileTabPaneController fileTabPaneController = context.getFileTabPaneController();
         FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
         if (fileTabController != null) {
-            return fileTabController.getTextArea();
+            return fileTabController.getFileTab().getFindEngine();
         }
         return null;
     }
@@ -263,9 +534,12 @@ public class FindDialogController implements Initializable {
     // FXML VARIABLES: DO NOT CHANGE
     @FXML private HBox findDialogHBox;
     @FXML private TextField textField;
+    @FXML private CheckBox regexCheckBox;
     @FXML private Button previousButton;
     @FXML private Button nextButton;
+    @FXML private Button findAllButton;
     @FXML private Button closeButton;
     @FXML private Label messageLabel;
+    @FXML private ListView<Integer> resultList;
     // END OF FXML VARIABLES
 }
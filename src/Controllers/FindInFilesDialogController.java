@@ -0,0 +1,486 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Controllers;
+
+import Models.Context;
+import Models.Document;
+import Models.FileReplace;
+import Models.FileSearch;
+import Models.FileTab;
+import Models.Workers;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.stage.DirectoryChooser;
+
+/**
+ * FXML Controller class of FindInFilesDialog.fxml.
+ * Searches the files of a folder in the background and lists the hits as
+ * they are found. Clicking a hit opens its file at the hit.
+ * Replacing in the files of the folder is done in two steps: a preview lists
+ * the number of replacements of each file, then Replace All makes them. The
+ * files open in a tab are replaced in their document, where the replacements
+ * can be undone, and the others on the disk.
+ */
+public class FindInFilesDialogController implements Initializable {
+    private Context context;
+    private FileSearch search;
+    private FileReplace replace;
+    private FileReplace preview;
+    private Map<Path, FileTabController> previewTabs;
+
+    /**
+     * Initializes the controller class.
+     * @param url
+     * @param rb
+     */
+    @Override
+    public void initialize(URL url, ResourceBundle rb) {
+        directoryTextField.setText(System.getProperty("user.dir"));
+        resultList.getSelectionModel().selectedItemProperty().addListener(hitSelectionListener());
+        previewList.getSelectionModel().selectedItemProperty().addListener(fileResultSelectionListener());
+        // A preview is only replaced as it was made.
+        InvalidationListener previewListener = previewInvalidationListener();
+        textField.textProperty().addListener(previewListener);
+        replaceTextField.textProperty().addListener(previewListener);
+        directoryTextField.textProperty().addListener(previewListener);
+        regexCheckBox.selectedProperty().addListener(previewListener);
+        Platform.runLater(() -> textField.requestFocus());
+    }
+    
+    /**
+     * Sets a context for this class.
+     * @param context to be associated with the find in files dialog.
+     */
+    public void setContext(Context context) {
+        this.context = context;
+        // Search the folder of the selected file by default.
+        FileTabController fileTabController = context.getFileTabPaneController().getCurrentFileTabController();
+        if (fileTabController != null) {
+            File parent = fileTabController.getFileTab().getFile().getAbsoluteFile().getParentFile();
+            if (parent != null && parent.isDirectory()) {
+                directoryTextField.setText(parent.getPath());
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return the Context for this class.
+     */
+    public Context getContext() {
+        return context;
+    }
+    
+    // FXML ACTIONS
+        
+    /**
+     * Stops the search and closes the find in files dialog.
+     */
+    @FXML public void close() {
+        cancelSearch();
+        context.getMainPaneController().removeFindOrReplaceDialog();
+    }
+    
+    /**
+     * Prompts the user for the folder to be searched.
+     */
+    @FXML public void browse() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        File directory = new File(directoryTextField.getText());
+        if (directory.isDirectory()) {
+            directoryChooser.setInitialDirectory(directory);
+        }
+        File chosen = directoryChooser.showDialog(context.getFileTabPaneController().getWindow());
+        if (chosen != null) {
+            directoryTextField.setText(chosen.getPath());
+        }
+    }
+    
+    /**
+     * Starts searching the folder for the text of the text field, stopping
+     * the previous search if it is still running.
+     */
+    @FXML public void search() {
+        cancelSearch();
+        showPreviewList(false);
+        resultList.getItems().clear();
+        String textToFind = textField.getText();
+        Path directory = getDirectory();
+        if (textToFind.isEmpty() || directory == null) {
+            return;
+        }
+        FileSearch task = new FileSearch(directory, textToFind, regexCheckBox.isSelected(), (List<FileSearch.Hit> hits) -> {
+            resultList.getItems().addAll(hits);
+        });
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (search == task) {
+                search = null;
+                searchFinished(task);
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (search == task) {
+                search = null;
+                messageLabel.textProperty().unbind();
+                if (task.getException() instanceof PatternSyntaxException) {
+                    messageLabel.setText("Invalid Regular Expression.");
+                }
+                else {
+                    messageLabel.setText("Search Failed.");
+                    Logger.getLogger(FindInFilesDialogController.class.getName()).log(Level.SEVERE, null, task.getException());
+                }
+            }
+        });
+        search = task;
+        messageLabel.textProperty().bind(task.messageProperty());
+        Workers.io().execute(task);
+    }
+    
+    /**
+     * Counts, in the background, the replacements of the text of the text
+     * field by the text of the replace text field in each file of the
+     * folder, and lists them. The files open in a tab which can be edited
+     * are counted in their document, and those open in another tab are left
+     * out.
+     */
+    @FXML public void preview() {
+        cancelSearch();
+        clearPreview();
+        showPreviewList(true);
+        previewList.getItems().clear();
+        String textToReplace = textField.getText();
+        Path directory = getDirectory();
+        if (textToReplace.isEmpty() || directory == null) {
+            return;
+        }
+        FileReplace task = new FileReplace(directory, textToReplace, replaceTextField.getText(), regexCheckBox.isSelected());
+        Map<Path, FileTabController> tabs = new HashMap<>();
+        for (FileTabController fileTabController : context.getFileTabPaneController().getFileTabPane().getFileTabControllerMap().values()) {
+            FileTab fileTab = fileTabController.getFileTab();
+            Path file = key(fileTab.getFile());
+            if (fileTabController.getEditor().isEditable()) {
+                Document snapshot = fileTab.getDocument().snapshot();
+                task.addOpenFile(file, snapshot, fileTab.getSearchIndex().snapshot(snapshot));
+                tabs.put(file, fileTabController);
+            }
+            else {
+                task.excludeFile(file);
+            }
+        }
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (replace == task) {
+                replace = null;
+                preview = task;
+                previewTabs = tabs;
+                previewList.getItems().setAll(task.getValue());
+                replaceAllButton.setDisable(false);
+                replaceFinished("", task.getValue(), 0);
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (replace == task) {
+                replace = null;
+                replaceFailed(task.getException());
+            }
+        });
+        replace = task;
+        messageLabel.textProperty().bind(task.messageProperty());
+        Workers.io().execute(task);
+    }
+    
+    /**
+     * Makes the replacements of the preview. Those of the files open in a tab
+     * are made at once in their documents, unless they were edited since the
+     * preview, and those of the other files are made in the background, on
+     * the disk.
+     */
+    @FXML public void replaceAll() {
+        if (preview == null) {
+            return;
+        }
+        FileReplace previewed = preview;
+        Map<Path, FileTabController> tabs = previewTabs;
+        cancelSearch();
+        clearPreview();
+        Map<FileTab, FileTabController> openTabs = context.getFileTabPaneController().getFileTabPane().getFileTabControllerMap();
+        List<FileReplace.FileResult> replacedInTabs = new ArrayList<>();
+        int skipped = 0;
+        for (FileReplace.FileResult result : previewed.getValue()) {
+            if (result.getReplacement() != null) {
+                FileTab fileTab = tabs.get(result.getFile()).getFileTab();
+                // A document released since the preview is not read back
+                // on the FX thread.
+                if (openTabs.containsKey(fileTab) && fileTab.getDocument().isResident()
+                        && result.getReplacement().apply(fileTab.getDocument())) {
+                    replacedInTabs.add(result);
+                }
+                else {
+                    skipped++;
+                }
+            }
+        }
+        FileReplace task = previewed.replacing();
+        // Files opened since the preview are not written under their tab.
+        for (FileTab fileTab : openTabs.keySet()) {
+            task.excludeFile(key(fileTab.getFile()));
+        }
+        int skippedInTabs = skipped;
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (replace == task) {
+                replace = null;
+                List<FileReplace.FileResult> results = new ArrayList<>(replacedInTabs);
+                results.addAll(task.getValue());
+                previewList.getItems().setAll(results);
+                replaceFinished("Replaced ", results, skippedInTabs);
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (replace == task) {
+                replace = null;
+                replaceFailed(task.getException());
+            }
+        });
+        replace = task;
+        previewList.getItems().clear();
+        messageLabel.textProperty().bind(task.messageProperty());
+        Workers.io().execute(task);
+    }
+
+    // EVENT HANDLERS
+    
+    /**
+     * 
+     * @return a listener which opens the file of the clicked hit and selects
+     * the hit.
+     */
+    private ChangeListener<FileSearch.Hit> hitSelectionListener() {
+        return (ObservableValue<? extends FileSearch.Hit> observable, FileSearch.Hit oldValue, FileSearch.Hit newValue) -> {
+            if (newValue != null) {
+                try {
+                    int offset = newValue.getOffset();
+                    context.getFileTabPaneController().openFile(newValue.getFile().toFile(), offset, offset + newValue.getLength());
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(FindInFilesDialogController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @return a listener which opens the file of the clicked file result.
+     */
+    private ChangeListener<FileReplace.FileResult> fileResultSelectionListener() {
+        return (ObservableValue<? extends FileReplace.FileResult> observable, FileReplace.FileResult oldValue, FileReplace.FileResult newValue) -> {
+            if (newValue != null) {
+                try {
+                    context.getFileTabPaneController().openFile(newValue.getFile().toFile(), 0, 0);
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(FindInFilesDialogController.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @return a listener which forgets the preview when the text, the
+     * replacement, the folder or the regular expression mode change.
+     */
+    private InvalidationListener previewInvalidationListener() {
+        return (Observable observable) -> {
+            clearPreview();
+        };
+    }
+    
+    // PRIVATE METHODS
+    
+    /**
+     * Shows the totals of a finished search.
+     * @param task which finished.
+     */
+    private void searchFinished(FileSearch task) {
+        messageLabel.textProperty().unbind();
+        int hits = task.getHitCount();
+        String message = hits + (task.isLimitReached() ? "+" : "") + (hits == 1 ? " Match in " : " Matches in ")
+                + task.getMatchingFileCount() + " of " + task.getFileCount() + " Files.";
+        if (task.getSkippedFileCount() > 0) {
+            message += " " + task.getSkippedFileCount() + " Skipped.";
+        }
+        messageLabel.setText(message);
+    }
+    
+    /**
+     * Shows the totals of a finished preview or replacement.
+     * @param prefix of the message.
+     * @param results of each file.
+     * @param skipped number of files which were skipped before.
+     */
+    private void replaceFinished(String prefix, List<FileReplace.FileResult> results, int skipped) {
+        messageLabel.textProperty().unbind();
+        int count = 0;
+        int files = 0;
+        int skippedFiles = skipped;
+        for (FileReplace.FileResult result : results) {
+            if (result.getError() == null) {
+                count += result.getCount();
+                files++;
+            }
+            else {
+                skippedFiles++;
+            }
+        }
+        String message = prefix + count + (count == 1 ? " Replacement in " : " Replacements in ") + files + (files == 1 ? " File." : " Files.");
+        if (skippedFiles > 0) {
+            message += " " + skippedFiles + " Skipped.";
+        }
+        messageLabel.setText(message);
+    }
+    
+    /**
+     * Shows why a preview or a replacement failed.
+     * @param exception thrown by the task.
+     */
+    private void replaceFailed(Throwable exception) {
+        messageLabel.textProperty().unbind();
+        if (exception instanceof PatternSyntaxException) {
+            messageLabel.setText("Invalid Regular Expression.");
+        }
+        else if (exception instanceof IllegalArgumentException || exception instanceof IndexOutOfBoundsException) {
+            messageLabel.setText("Invalid Replacement.");
+        }
+        else {
+            messageLabel.setText("Replace Failed.");
+            Logger.getLogger(FindInFilesDialogController.class.getName()).log(Level.SEVERE, null, exception);
+        }
+    }
+    
+    /**
+     * Forgets the preview, so it can no longer be replaced.
+     */
+    private void clearPreview() {
+        preview = null;
+        previewTabs = null;
+        replaceAllButton.setDisable(true);
+    }
+    
+    /**
+     * Shows the list of the files of the preview, or the list of the hits.
+     * @param value true to show the files of the preview.
+     */
+    private void showPreviewList(boolean value) {
+        previewList.setManaged(value);
+        previewList.setVisible(value);
+        resultList.setManaged(!value);
+        resultList.setVisible(!value);
+    }
+    
+    /**
+     * 
+     * @return the folder of the directory text field, or null if it is not
+     * a folder.
+     */
+    private Path getDirectory() {
+        Path directory = Paths.get(directoryTextField.getText().trim());
+        if (!Files.isDirectory(directory)) {
+            messageLabel.setText("Not a Folder.");
+            return null;
+        }
+        return directory;
+    }
+    
+    /**
+     * 
+     * @param file of a tab.
+     * @return the path of the file as found by a FileReplace.
+     */
+    private static Path key(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+    
+    /**
+     * Stops the running search, preview or replacement, if any. The files
+     * already replaced on the disk stay replaced.
+     */
+    private void cancelSearch() {
+        if (search != null || replace != null) {
+            if (search != null) {
+                search.cancel();
+                search = null;
+            }
+            if (replace != null) {
+                replace.cancel();
+                replace = null;
+            }
+            messageLabel.textProperty().unbind();
+            messageLabel.setText("");
+        }
+    }
+        
+    // FXML VARIABLES: DO NOT CHANGE
+    @FXML private HBox findInFilesDialogHBox;
+    @FXML private TextField textField;
+    @FXML private CheckBox regexCheckBox;
+    @FXML private Button searchButton;
+    @FXML private Button closeButton;
+    @FXML private TextField directoryTextField;
+    @FXML private Button browseButton;
+    @FXML private Label messageLabel;
+    @FXML private TextField replaceTextField;
+    @FXML private Button previewButton;
+    @FXML private Button replaceAllButton;
+    @FXML private ListView<FileSearch.Hit> resultList;
+    @FXML private ListView<FileReplace.FileResult> previewList;
+    // END OF FXML VARIABLES
+}
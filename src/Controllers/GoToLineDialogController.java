@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Controllers;
+
+import Models.Context;
+import java.net.URL;
+import java.util.ResourceBundle;
+import javafx.application.Platform;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+
+/**
+ * FXML Controller class of GoToLineDialog.fxml.
+ * Moves the caret of the selected file tab to the start of a line.
+ */
+public class GoToLineDialogController implements Initializable {
+    private Context context;
+
+    /**
+     * Initializes the controller class.
+     * @param url
+     * @param rb
+     */
+    @Override
+    public void initialize(URL url, ResourceBundle rb) {
+        Platform.runLater(() -> textField.requestFocus());
+    }
+    
+    /**
+     * Sets a context for this class.
+     * @param context to be associated with the go to line dialog.
+     */
+    public void setContext(Context context) {
+        this.context = context;
+    }
+    
+    /**
+     * 
+     * @return the Context for this class.
+     */
+    public Context getContext() {
+        return context;
+    }
+    
+    // FXML ACTIONS
+        
+    /**
+     * Closes the go to line dialog.
+     */
+    @FXML public void close() {
+        context.getMainPaneController().removeFindOrReplaceDialog();
+    }
+    
+    /**
+     * Moves the caret to the line in the text field, counting from 1.
+     */
+    @FXML public void go() {
+        FileTabController fileTabController = context.getFileTabPaneController().getCurrentFileTabController();
+        if (fileTabController == null) {
+            return;
+        }
+        int lineCount = fileTabController.getFileTab().getLineIndex().getLineCount();
+        try {
+            int line = Integer.parseInt(textField.getText().trim());
+            if (line < 1 || line > lineCount) {
+                messageLabel.setText("Line 1 to " + lineCount + ".");
+                return;
+            }
+            messageLabel.setText("");
+            fileTabController.goToLine(line - 1);
+        }
+        catch (NumberFormatException e) {
+            messageLabel.setText("Not a Line Number.");
+        }
+    }
+        
+    // FXML VARIABLES: DO NOT CHANGE
+    @FXML private HBox goToLineDialogHBox;
+    @FXML private TextField textField;
+    @FXML private Button goButton;
+    @FXML private Button closeButton;
+    @FXML private Label messageLabel;
+    // END OF FXML VARIABLES
+}
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Controllers;
+
+import Models.MappedFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+/**
+ * Controller class of a LargeFileView, which builds its own view.
+ * A LargeFileView is a read only, paged view of a file too large to be loaded
+ * in a TextArea. The file is memory mapped and only the lines within the
+ * viewport are read and rendered, reusing the same Text nodes while
+ * scrolling. The scroll bar maps to byte offsets in the file.
+ */
+public class LargeFileViewController {
+    private static final Font FONT = Font.font("Monospaced", 12);
+    private static final double LEFT_PADDING = 4;
+    private final List<Text> rows = new ArrayList<>();
+    private MappedFile mappedFile;
+    private long topLineStart;
+    private double lineHeight;
+    private boolean updatingScrollBar;
+
+    /**
+     * Constructs a new LargeFileViewController and its view, which is hidden
+     * until a file is opened.
+     */
+    public LargeFileViewController() {
+        viewport = new Pane();
+        viewport.setFocusTraversable(true);
+        viewport.setStyle("-fx-background-color: white;");
+        EditorController.anchor(viewport, 0.0, 14.0, 0.0, 0.0);
+        scrollBar = new ScrollBar();
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.setPrefWidth(14);
+        scrollBar.setFocusTraversable(false);
+        EditorController.anchor(scrollBar, 0.0, 0.0, 0.0, null);
+        largeFileViewPane = new AnchorPane(viewport, scrollBar);
+        largeFileViewPane.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        largeFileViewPane.setVisible(false);
+        initialize();
+    }
+
+    /**
+     *
+     * @return the root node of the view.
+     */
+    public AnchorPane getView() {
+        return largeFileViewPane;
+    }
+
+    /**
+     * Initializes the controller class.
+     */
+    private void initialize() {
+        Text sample = new Text("X");
+        sample.setFont(FONT);
+        lineHeight = Math.ceil(sample.getLayoutBounds().getHeight());
+        // Only draw within the viewport.
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(viewport.widthProperty());
+        clip.heightProperty().bind(viewport.heightProperty());
+        viewport.setClip(clip);
+        viewport.heightProperty().addListener((observable) -> render());
+        viewport.setOnScroll(scrollListener());
+        viewport.setOnKeyPressed(keyListener());
+        viewport.setOnMousePressed((event) -> viewport.requestFocus());
+        scrollBar.valueProperty().addListener(scrollBarListener());
+    }
+
+    /**
+     * Opens the file in the view and shows it from its first line.
+     * @param file to be viewed.
+     * @throws IOException
+     */
+    public void open(File file) throws IOException {
+        close();
+        mappedFile = new MappedFile(file);
+        topLineStart = 0;
+        largeFileViewPane.setVisible(true);
+        render();
+    }
+
+    /**
+     * Closes the file currently in the view, if any.
+     */
+    public void close() {
+        if (mappedFile != null) {
+            try {
+                mappedFile.close();
+            } catch (IOException ex) {
+                Logger.getLogger(LargeFileViewController.class.getName()).log(Level.WARNING, null, ex);
+            }
+            mappedFile = null;
+            viewport.getChildren().removeAll(rows);
+            rows.clear();
+            largeFileViewPane.setVisible(false);
+        }
+    }
+
+    /**
+     *
+     * @return true if a file is open in the view.
+     */
+    public boolean isOpen() {
+        return mappedFile != null;
+    }
+
+    /**
+     * Requests the focus for the view so it can be scrolled with the keyboard.
+     */
+    public void requestFocus() {
+        viewport.requestFocus();
+    }
+
+    /**
+     * Scrolls the view by a number of lines.
+     * @param lines to scroll, negative to scroll up.
+     */
+    public void scrollLines(int lines) {
+        if (mappedFile == null) {
+            return;
+        }
+        long position = topLineStart;
+        for (int i = 0; i < lines; i++) {
+            long next = mappedFile.nextLineStart(position);
+            if (next >= mappedFile.size()) {
+                break;
+            }
+            position = next;
+        }
+        for (int i = 0; i > lines && position > 0; i--) {
+            position = mappedFile.previousLineStart(position);
+        }
+        setTopLineStart(position);
+    }
+
+    /**
+     * Scrolls the view to the line holding a byte offset.
+     * @param position of a byte in the file.
+     */
+    public void scrollTo(long position) {
+        if (mappedFile != null) {
+            setTopLineStart(mappedFile.lineStart(Math.max(0, Math.min(position, mappedFile.size()))));
+        }
+    }
+
+    // EVENT HANDLERS
+
+    /**
+     *
+     * @return a listener which scrolls the view to the offset chosen in
+     * the scroll bar.
+     */
+    private ChangeListener<Number> scrollBarListener() {
+        return (ObservableValue<? extends Number> observable, Number oldValue, Number newValue) -> {
+            if (updatingScrollBar || mappedFile == null) {
+                return;
+            }
+            long position = mappedFile.lineStart(newValue.longValue());
+            // Always move at least one line, even inside very long lines.
+            if (position == topLineStart && newValue.doubleValue() > oldValue.doubleValue()) {
+                scrollLines(1);
+            }
+            else {
+                setTopLineStart(position);
+            }
+        };
+    }
+
+    /**
+     *
+     * @return a listener which scrolls the view with the mouse wheel.
+     */
+    private EventHandler<ScrollEvent> scrollListener() {
+        return (ScrollEvent event) -> {
+            int lines = (int) Math.round(-event.getDeltaY() / lineHeight);
+            if (lines == 0 && event.getDeltaY() != 0) {
+                lines = event.getDeltaY() < 0 ? 1 : -1;
+            }
+            scrollLines(lines);
+            event.consume();
+        };
+    }
+
+    /**
+     *
+     * @return a listener which scrolls the view with the keyboard.
+     */
+    private EventHandler<KeyEvent> keyListener() {
+        return (KeyEvent event) -> {
+            int page = Math.max(1, visibleRows() - 1);
+            switch (event.getCode()) {
+                case UP: scrollLines(-1); break;
+                case DOWN: scrollLines(1); break;
+                case PAGE_UP: scrollLines(-page); break;
+                case PAGE_DOWN: scrollLines(page); break;
+                case HOME: scrollTo(0); break;
+                case END: scrollTo(mappedFile == null ? 0 : mappedFile.size()); scrollLines(1 - page); break;
+                default: return;
+            }
+            event.consume();
+        };
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Sets the first visible line and renders the view.
+     * @param lineStart offset of the first visible line.
+     */
+    private void setTopLineStart(long lineStart) {
+        topLineStart = lineStart;
+        render();
+    }
+
+    /**
+     *
+     * @return the number of rows which fit in the viewport.
+     */
+    private int visibleRows() {
+        return (int) Math.ceil(viewport.getHeight() / lineHeight) + 1;
+    }
+
+    /**
+     * Renders the lines within the viewport, creating row nodes only when
+     * the viewport grows.
+     */
+    private void render() {
+        if (mappedFile == null) {
+            return;
+        }
+        int visibleRows = visibleRows();
+        while (rows.size() < visibleRows) {
+            Text row = new Text();
+            row.setFont(FONT);
+            row.setTextOrigin(VPos.TOP);
+            row.setLayoutX(LEFT_PADDING);
+            rows.add(row);
+            viewport.getChildren().add(row);
+        }
+        long position = topLineStart;
+        for (int i = 0; i < rows.size(); i++) {
+            Text row = rows.get(i);
+            if (i < visibleRows && position < mappedFile.size()) {
+                row.setText(mappedFile.readLine(position));
+                row.setLayoutY(i * lineHeight);
+                row.setVisible(true);
+                position = mappedFile.nextLineStart(position);
+            }
+            else {
+                row.setText("");
+                row.setVisible(false);
+            }
+        }
+        updateScrollBar(position);
+    }
+
+    /**
+     * Updates the scroll bar to match the rendered lines.
+     * @param bottomPosition offset after the last rendered line.
+     */
+    private void updateScrollBar(long bottomPosition) {
+        updatingScrollBar = true;
+        long visibleBytes = Math.max(1, bottomPosition - topLineStart);
+        scrollBar.setMin(0);
+        scrollBar.setMax(Math.max(1, mappedFile.size()));
+        scrollBar.setVisibleAmount(visibleBytes);
+        scrollBar.setUnitIncrement(Math.max(1, visibleBytes / visibleRows()));
+        scrollBar.setBlockIncrement(visibleBytes);
+        scrollBar.setValue(topLineStart);
+        updatingScrollBar = false;
+    }
+
+    // VIEW VARIABLES
+    private final AnchorPane largeFileViewPane;
+    private final Pane viewport;
+    private final ScrollBar scrollBar;
+    // END OF VIEW VARIABLES
+}
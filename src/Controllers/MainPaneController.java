@@ -25,15 +25,22 @@
 package Controllers;
 
 import Models.Context;
+import Models.LineIndex;
 import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.value.ChangeListener;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
 import javafx.scene.image.Image;
 import javafx.scene.layout.VBox;
 import javafx.stage.Modality;
@@ -44,14 +51,23 @@ import javafx.stage.Stage;
  * This is the controller for the view MainPane.fxml. This is a VBox with
  * a MenuBar, and AnchorPane and an HBox.
  * The Anchor Pane includes FileTabPane.fxml. See FileTabPane.
- * The HBox holds a few labels.
+ * The HBox holds a few labels, one of them showing the line and column of
+ * the caret of the selected file tab.
  * This class implements the methods for the MenuBar, while the FileTabController
  * implements the application logic.
  */
 public class MainPaneController implements Initializable {
+    private final InvalidationListener caretListener = (observable) -> updateStatus();
+    private final ChangeListener<String> saveErrorListener = (observable, oldValue, error) -> showSaveError(error);
+    private EditorController statusEditor;
+    private FileTabController statusFileTab;
+    private final Map<String, FXMLLoader> dialogLoaders = new HashMap<>();
+    private Stage helpStage;
     
     @Override
     public void initialize(URL location, ResourceBundle resources) {
+        // Follow the caret of the editor of the selected tab.
+        fileTabPaneController.selectedTabProperty().addListener((observable) -> watchSelectedEditor());
     }
     
     /*
@@ -62,17 +78,26 @@ public class MainPaneController implements Initializable {
     }
     
     /**
-     * Removes the find dialog or replace dialog prompt, which ever is open.
+     * Removes the find, replace, go to line or find in files dialog prompt,
+     * which ever is open.
      */
     public void removeFindOrReplaceDialog() {
         Node replaceDialog = vBox.lookup("#replaceDialogHBox");
         Node findDialog = vBox.lookup("#findDialogHBox");
+        Node goToLineDialog = vBox.lookup("#goToLineDialogHBox");
+        Node findInFilesDialog = vBox.lookup("#findInFilesDialogHBox");
         if (replaceDialog != null) {
             vBox.getChildren().remove(replaceDialog);
         }
         else if (findDialog != null) {
             vBox.getChildren().remove(findDialog);
         }
+        else if (goToLineDialog != null) {
+            vBox.getChildren().remove(goToLineDialog);
+        }
+        else if (findInFilesDialog != null) {
+            vBox.getChildren().remove(findInFilesDialog);
+        }
     }
 
     // FXML ACTIONS
@@ -98,7 +123,9 @@ public class MainPaneController implements Initializable {
      * @throws IOException 
      */
     @FXML public void saveFile() throws IOException {
-        fileTabPaneController.saveSelectedFile();
+        if (canSaveSelectedFile()) {
+            fileTabPaneController.saveSelectedFile();
+        }
     }
     
     /**
@@ -106,7 +133,9 @@ public class MainPaneController implements Initializable {
      * @throws IOException 
      */
     @FXML public void saveAsFile() throws IOException {
-        fileTabPaneController.saveAsSelectedFile();
+        if (canSaveSelectedFile()) {
+            fileTabPaneController.saveAsSelectedFile();
+        }
     }
         
     /**
@@ -195,7 +224,9 @@ public class MainPaneController implements Initializable {
     @FXML public void find() throws IOException {
         Node replaceDialog = vBox.lookup("#replaceDialogHBox");
         Node findDialog = vBox.lookup("#findDialogHBox");
-        if (replaceDialog != null) {
+        Node goToLineDialog = vBox.lookup("#goToLineDialogHBox");
+        Node findInFilesDialog = vBox.lookup("#findInFilesDialogHBox");
+        if (replaceDialog != null || goToLineDialog != null || findInFilesDialog != null) {
             removeFindOrReplaceDialog();
             addFindDialog();
         }
@@ -211,7 +242,9 @@ public class MainPaneController implements Initializable {
     @FXML public void replace() throws IOException {
         Node replaceDialog = vBox.lookup("#replaceDialogHBox");
         Node findDialog = vBox.lookup("#findDialogHBox");
-        if (findDialog != null) {
+        Node goToLineDialog = vBox.lookup("#goToLineDialogHBox");
+        Node findInFilesDialog = vBox.lookup("#findInFilesDialogHBox");
+        if ((findDialog != null && replaceDialog == null) || goToLineDialog != null || findInFilesDialog != null) {
             removeFindOrReplaceDialog();
             addReplaceDialog();
         }
@@ -221,36 +254,81 @@ public class MainPaneController implements Initializable {
     }
     
     /**
-     * 
+     * Opens a prompt in which a user can input a line to move the caret to.
+     * Will exclusively open this, a find or a replace dialog.
+     * @throws java.io.IOException
+     */
+    @FXML public void goToLine() throws IOException {
+        Node goToLineDialog = vBox.lookup("#goToLineDialogHBox");
+        if (goToLineDialog == null) {
+            removeFindOrReplaceDialog();
+            addGoToLineDialog();
+        }
+    }
+    
+    /**
+     * Opens a prompt in which a user can input text to find in the files of
+     * a folder. Will exclusively open this, a find, a replace or a go to line
+     * dialog.
+     * @throws java.io.IOException
+     */
+    @FXML public void findInFiles() throws IOException {
+        Node findInFilesDialog = vBox.lookup("#findInFilesDialogHBox");
+        if (findInFilesDialog == null) {
+            removeFindOrReplaceDialog();
+            addFindInFilesDialog();
+        }
+    }
+    
+    /**
+     * Shows the help dialog, which is loaded the first time only.
      * @throws java.io.IOException
      */
     @FXML public void help() throws IOException {
-        FXMLLoader loader = new FXMLLoader(getClass().getResource("/Views/HelpDialog.fxml"));
-        Parent node = loader.load();
-        // Set the scene.
-        Scene scene = new Scene(node);
-        // Set the stage.
-        Stage stage = new Stage();
-        stage.setScene(scene);
-        stage.initModality(Modality.APPLICATION_MODAL);
-        stage.setResizable(false);
-        stage.getIcons().add(new Image("/Styling/iconsmall.png"));
-        stage.show();
+        if (helpStage == null) {
+            Parent node = loadDialog("HelpDialog.fxml").getRoot();
+            // Set the scene.
+            Scene scene = new Scene(node);
+            // Set the stage.
+            helpStage = new Stage();
+            helpStage.setScene(scene);
+            helpStage.initModality(Modality.APPLICATION_MODAL);
+            helpStage.setResizable(false);
+            helpStage.getIcons().add(new Image("/Styling/iconsmall.png"));
+        }
+        helpStage.show();
     }
  
     // PRIVATE METHODS
     
+    /**
+     * Tells in the status bar why the selected file cannot be saved, if it
+     * cannot: while it is loading, or when it is shown in the read only large
+     * file view.
+     * @return true if the selected file can be saved.
+     */
+    private boolean canSaveSelectedFile() {
+        FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
+        if (fileTabController != null && fileTabController.isLoading()) {
+            statusLabel.setText("Cannot Save While Loading.");
+            return false;
+        }
+        if (fileTabController != null && fileTabController.isLargeFile()) {
+            statusLabel.setText("Large Files Are Read Only.");
+            return false;
+        }
+        return true;
+    }
+    
     /**
      * Opens a prompt in which a user can input text to find in the text area.
      * @throws IOException 
      */
     private void addFindDialog() throws IOException {
-        FXMLLoader loader = new FXMLLoader(getClass().getResource("/Views/FindDialog.fxml"));
-        Parent node = loader.load();
+        FXMLLoader loader = loadDialog("FindDialog.fxml");
         FindDialogController controller = loader.getController();
         controller.setContext(new Context(fileTabPaneController, this));
-        int index = 2;
-        vBox.getChildren().add(index, node);
+        showDialog(loader.getRoot());
     }
  
     /**
@@ -259,18 +337,123 @@ public class MainPaneController implements Initializable {
      * @throws IOException 
      */
     private void addReplaceDialog() throws IOException {
-        FXMLLoader loader = new FXMLLoader(getClass().getResource("/Views/ReplaceDialog.fxml"));
-        Parent node = loader.load();
+        FXMLLoader loader = loadDialog("ReplaceDialog.fxml");
         ReplaceDialogController controller = loader.getController();
         Context context = new Context(fileTabPaneController, this);
         controller.getFindDialogController().setContext(context);
         controller.setContext(context);
+        showDialog(loader.getRoot());
+    }
+
+    /**
+     * Opens a prompt in which a user can input text to find in the files of
+     * a folder.
+     * @throws IOException 
+     */
+    private void addFindInFilesDialog() throws IOException {
+        FXMLLoader loader = loadDialog("FindInFilesDialog.fxml");
+        FindInFilesDialogController controller = loader.getController();
+        controller.setContext(new Context(fileTabPaneController, this));
+        showDialog(loader.getRoot());
+    }
+
+    /**
+     * Opens a prompt in which a user can input a line to move the caret to.
+     * @throws IOException 
+     */
+    private void addGoToLineDialog() throws IOException {
+        FXMLLoader loader = loadDialog("GoToLineDialog.fxml");
+        GoToLineDialogController controller = loader.getController();
+        controller.setContext(new Context(fileTabPaneController, this));
+        showDialog(loader.getRoot());
+    }
+
+    /**
+     * Loads a dialog from FXML the first time it is opened. Later calls
+     * return the same loader, so the dialog is not parsed again and keeps
+     * its controller and the text of its fields while it is closed.
+     * @param name of the FXML file of the dialog in Views.
+     * @return the loader holding the root and the controller of the dialog.
+     * @throws IOException 
+     */
+    private FXMLLoader loadDialog(String name) throws IOException {
+        FXMLLoader loader = dialogLoaders.get(name);
+        if (loader == null) {
+            loader = new FXMLLoader(getClass().getResource("/Views/" + name));
+            loader.load();
+            dialogLoaders.put(name, loader);
+        }
+        return loader;
+    }
+
+    /**
+     * Shows a dialog below the menu bar and focuses its text field, as it is
+     * shown again each time it is opened.
+     * @param node root of the dialog.
+     */
+    private void showDialog(Parent node) {
         int index = 2;
         vBox.getChildren().add(index, node);
+        Node textField = node.lookup("#textField");
+        if (textField != null) {
+            Platform.runLater(() -> textField.requestFocus());
+        }
+    }
+    
+    /**
+     * Moves the caret and save error listeners to the selected tab.
+     */
+    private void watchSelectedEditor() {
+        if (statusEditor != null) {
+            statusEditor.caretPositionProperty().removeListener(caretListener);
+        }
+        if (statusFileTab != null) {
+            statusFileTab.saveErrorProperty().removeListener(saveErrorListener);
+        }
+        FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
+        statusFileTab = fileTabController;
+        statusEditor = fileTabController != null ? fileTabController.getEditor() : null;
+        if (statusEditor != null) {
+            statusEditor.caretPositionProperty().addListener(caretListener);
+            fileTabController.saveErrorProperty().addListener(saveErrorListener);
+        }
+        updateStatus();
+        if (fileTabController != null) {
+            showSaveError(fileTabController.saveErrorProperty().get());
+        }
+    }
+    
+    /**
+     * Tells in the status bar why the last save of the selected tab failed,
+     * until the caret moves.
+     * @param error of the save, or null if it did not fail.
+     */
+    private void showSaveError(String error) {
+        if (error != null) {
+            statusLabel.setText(error);
+        }
+    }
+    
+    /**
+     * Shows the line and column of the caret of the selected tab, both
+     * counting from 1. The line is found in the line index of the document.
+     */
+    private void updateStatus() {
+        FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
+        if (fileTabController == null || fileTabController.isLargeFile()) {
+            statusLabel.setText("");
+            return;
+        }
+        LineIndex lineIndex = fileTabController.getFileTab().getLineIndex();
+        int caretPosition = fileTabController.getEditor().getCaretPosition();
+        int line = lineIndex.getLineOfOffset(caretPosition);
+        int column = caretPosition - lineIndex.getLineStart(line);
+        statusLabel.setText("Ln " + (line + 1) + ", Col " + (column + 1));
     }
 
     // FXML VARIABLES: DO NOT CHANGE:
     @FXML private VBox vBox;
+    @FXML private Label statusLabel;
     @FXML private FileTabPaneController fileTabPaneController;
     // END OF FXML VARIABLES
 }
\ No newline at end of file
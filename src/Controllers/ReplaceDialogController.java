@@ -25,12 +25,28 @@
 package Controllers;
 
 import Models.Context;
+import Models.Document;
+import Models.FileTab;
+import Models.Regex;
+import Models.Replacement;
+import Models.SearchIndex;
+import Models.Workers;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.HBox;
 
@@ -39,6 +55,7 @@ import javafx.scene.layout.HBox;
  */
 public class ReplaceDialogController implements Initializable {
     private Context context;
+    private Task<List<Replacement>> replaceInAllTabs;
 
     /**
      * Initializes the controller class.
@@ -52,85 +69,238 @@ public class ReplaceDialogController implements Initializable {
     // FXML ACTIONS
     
     /**
-     * Replaces the selected text in the text area with the input of the 
+     * Replaces the selected text in the editor with the input of the 
      * text field.
      */
     @FXML public void replace() {
-        TextArea textArea = getSelectedTextArea();
-        if (textArea != null) {
-            int anchor = textArea.getAnchor();
-            int caret = textArea.getCaretPosition();
+        EditorController editor = getSelectedEditor();
+        if (editor != null) {
+            int anchor = editor.getAnchor();
+            int caret = editor.getCaretPosition();
             if (anchor != caret) {
-                replace(textArea, anchor, caret);
+                replace(editor, anchor, caret);
             }
         }
     }
     
     /**
      * Replaces all occurences of text equal to the text input on the text field 
-     * in the text area.
+     * in the editor, or all the matches of the regular expression of the find
+     * dialog in regular expression mode.
      */
     @FXML public void replaceAll() {
-        TextArea textArea = getSelectedTextArea();
-        if (textArea != null) {
-            String textToReplace = textArea.getSelectedText();
+        FileTabController fileTabController = context.getFileTabPaneController().getCurrentFileTabController();
+        if (fileTabController != null && fileTabController.getEditor().isEditable()) {
+            boolean regex = findDialogController.isRegex();
+            EditorController editor = fileTabController.getEditor();
+            String textToReplace = regex ? findDialogController.getTextToFind() : editor.getSelectedText();
             if (!textToReplace.isEmpty()) {
-                replaceAll(textArea, textToReplace);
+                replaceAll(fileTabController, textToReplace, regex);
             }
         }
     }
     
+    /**
+     * Replaces all occurences of the text of the find dialog, or all the
+     * matches of its regular expression, in every open tab which can be
+     * edited. The occurences are found in the background, on a snapshot of
+     * each document, one tab per worker. The replacements are then made in
+     * all the tabs at once, skipping the documents edited in the meantime,
+     * and the number of replacements made in each tab is reported.
+     */
+    @FXML public void replaceInAllTabs() {
+        String textToReplace = findDialogController.getTextToFind();
+        if (textToReplace.isEmpty()) {
+            return;
+        }
+        if (replaceInAllTabs != null) {
+            replaceInAllTabs.cancel();
+        }
+        boolean regex = findDialogController.isRegex();
+        String textToReplaceWith = replaceTextField.getText();
+        List<FileTabController> fileTabControllers = new ArrayList<>();
+        List<Callable<Replacement>> searches = new ArrayList<>();
+        for (FileTabController fileTabController : context.getFileTabPaneController().getFileTabPane().getFileTabControllerMap().values()) {
+            if (fileTabController.getEditor().isEditable()) {
+                Document snapshot = fileTabController.getFileTab().getDocument().snapshot();
+                SearchIndex searchIndex = fileTabController.getFileTab().getSearchIndex().snapshot(snapshot);
+                fileTabControllers.add(fileTabController);
+                searches.add(() -> {
+                    try {
+                        return Replacement.find(snapshot, searchIndex, textToReplace, textToReplaceWith, regex);
+                    }
+                    catch (UncheckedIOException ex) {
+                        // The released text of the tab could not be read back.
+                        return null;
+                    }
+                });
+            }
+        }
+        Task<List<Replacement>> task = new Task<List<Replacement>>() {
+            @Override
+            protected List<Replacement> call() throws Exception {
+                List<Replacement> replacements = new ArrayList<>();
+                for (Future<Replacement> search : Workers.io().invokeAll(searches)) {
+                    try {
+                        replacements.add(search.get());
+                    }
+                    catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException) ex.getCause();
+                        }
+                        throw ex;
+                    }
+                }
+                return replacements;
+            }
+        };
+        task.setOnSucceeded((WorkerStateEvent event) -> {
+            if (replaceInAllTabs == task) {
+                replaceInAllTabs = null;
+                applyInAllTabs(fileTabControllers, task.getValue());
+            }
+        });
+        task.setOnFailed((WorkerStateEvent event) -> {
+            if (replaceInAllTabs == task) {
+                replaceInAllTabs = null;
+                if (task.getException() instanceof RuntimeException) {
+                    regexFailed((RuntimeException) task.getException());
+                }
+            }
+        });
+        replaceInAllTabs = task;
+        findDialogController.setMessage("Searching...");
+        Workers.io().execute(task);
+    }
+    
     // PRIVATE METHODS
     
     /**
-     * A helper method which replaces the selected text in the text area with 
-     * the input of the text field.
-     * @param textArea in which to replace the text.
+     * A helper method which replaces the selected text in the editor with 
+     * the input of the text field. The editor applies the edit to the
+     * document of the file tab.
+     * @param editor in which to replace the text.
      * @param anchor of the selected text.
      * @param caret of the selected text.
      */
-    private void replace(TextArea textArea, int  anchor, int caret) {
-        String textToReplaceWith = replaceTextField.getText();     
-        String firstHalf = textArea.getText(0, anchor);
-        String lastHalf = textArea.getText(caret, textArea.getText().length());
-        String replacedText = firstHalf + textToReplaceWith + lastHalf;
-        updateTextArea(textArea, replacedText, textToReplaceWith);
+    private void replace(EditorController editor, int  anchor, int caret) {
+        String textToReplaceWith = replaceTextField.getText();
+        int start = Math.min(anchor, caret);
+        int end = Math.max(anchor, caret);
+        if (findDialogController.isRegex()) {
+            try {
+                // Expand the groups of the replacement if the selection is a
+                // match of the regular expression.
+                Matcher matcher = Regex.matcher(findDialogController.getTextToFind(), editor.getSelectedText());
+                if (matcher.matches()) {
+                    textToReplaceWith = Regex.replacement(matcher, textToReplaceWith);
+                }
+            }
+            catch (RuntimeException ex) {
+                regexFailed(ex);
+                return;
+            }
+        }
+        editor.replaceText(start, end, textToReplaceWith);
+        editor.selectRange(start, start + textToReplaceWith.length());
     }
     
     /**
      * A helper method which replaced all occurences of text equal to the text 
-     * input on the text field in the text area.
-     * @param textArea in which to replace the text.
-     * @param textToReplace in the text area.
+     * input on the text field in a file tab, or all the matches of a regular
+     * expression. The occurences are found with the search index of the file
+     * tab in one pass and replaced at once, which is undone as a single edit.
+     * @param fileTabController in which to replace the text.
+     * @param textToReplace in the file tab, or a regular expression.
+     * @param regex true if the text is a regular expression.
      */
-    private void replaceAll(TextArea textArea, String textToReplace) {
-        String textToReplaceWith = replaceTextField.getText();
-        String replacedText = textArea.getText().replaceAll(textToReplace, textToReplaceWith);
-        updateTextArea(textArea, replacedText, textToReplaceWith);
+    private void replaceAll(FileTabController fileTabController, String textToReplace, boolean regex) {
+        FileTab fileTab = fileTabController.getFileTab();
+        Replacement replacement;
+        try {
+            replacement = Replacement.find(fileTab.getDocument(), fileTab.getSearchIndex(), textToReplace, replaceTextField.getText(), regex);
+        }
+        catch (RuntimeException ex) {
+            regexFailed(ex);
+            return;
+        }
+        replacement.apply(fileTab.getDocument());
+        int count = replacement.getCount();
+        if (count > 0) {
+            int first = replacement.getOffset(0);
+            fileTabController.getEditor().selectRange(first, first + replacement.getReplacement(0).length());
+        }
+        findDialogController.setMessage(count + (count == 1 ? " Replacement." : " Replacements."));
     }
     
     /**
-     * A helper method for replacing the text area with the replaced text.
-     * @param textArea in which to replace the text.
-     * @param replacedText which is the text with the replaced text.
-     * @param textToReplaceWith which is the text to replace with in the text area.
+     * Makes the replacements found in every tab, in one pass, and reports how
+     * many were made in each of them.
+     * @param fileTabControllers of the tabs searched.
+     * @param replacements found in each of the tabs, null for a tab whose
+     * released text could not be read back.
      */
-    private void updateTextArea(TextArea textArea, String replacedText, String textToReplaceWith) {    
-        int anchor = replacedText.indexOf(textToReplaceWith);
-        int caret = replacedText.indexOf(textToReplaceWith) + textToReplaceWith.length();
-        textArea.setText(replacedText);
-        textArea.selectRange(anchor, caret);
+    private void applyInAllTabs(List<FileTabController> fileTabControllers, List<Replacement> replacements) {
+        Map<FileTab, FileTabController> openTabs = context.getFileTabPaneController().getFileTabPane().getFileTabControllerMap();
+        StringBuilder details = new StringBuilder();
+        int total = 0;
+        int tabs = 0;
+        for (int i = 0; i < replacements.size(); i++) {
+            FileTab fileTab = fileTabControllers.get(i).getFileTab();
+            Replacement replacement = replacements.get(i);
+            if (!openTabs.containsKey(fileTab) || (replacement != null && replacement.getCount() == 0)) {
+                continue;
+            }
+            details.append(details.length() > 0 ? "\n" : "").append(fileTab.getFile().getName()).append(": ");
+            if (replacement == null) {
+                details.append("skipped, could not be read back");
+            }
+            else if (!fileTab.getDocument().isResident()) {
+                // Released since the search, and not read back on the FX
+                // thread.
+                details.append("skipped, released while searching");
+            }
+            else if (replacement.apply(fileTab.getDocument())) {
+                details.append(replacement.getCount());
+                total += replacement.getCount();
+                tabs++;
+            }
+            else {
+                details.append("skipped, edited while searching");
+            }
+        }
+        String message = total + (total == 1 ? " Replacement" : " Replacements") + " in " + tabs + (tabs == 1 ? " Tab." : " Tabs.");
+        findDialogController.setMessage(message, details.length() > 0 ? details.toString() : null);
+    }
+    
+    /**
+     * Shows why a regular expression could not be replaced.
+     * @param exception thrown while matching it.
+     */
+    private void regexFailed(RuntimeException exception) {
+        if (exception instanceof PatternSyntaxException) {
+            findDialogController.setMessage("Invalid Regular Expression.");
+        }
+        else if (exception instanceof Regex.TimeoutException) {
+            findDialogController.setMessage("Search Timed Out.");
+        }
+        else if (exception instanceof IllegalArgumentException || exception instanceof IndexOutOfBoundsException) {
+            findDialogController.setMessage("Invalid Replacement.");
+        }
+        else {
+            throw exception;
+        }
     }
     
     /**
-     * A helper method to get the selected text area in the tab pane.
-     * @return the currently selected text area.
+     * A helper method to get the selected editor in the tab pane.
+     * @return the currently selected editor.
      */
-    private TextArea getSelectedTextArea() {
+    private EditorController getSelectedEditor() {
         FileTabPaneController fileTabPaneController = context.getFileTabPaneController();
         FileTabController fileTabController = fileTabPaneController.getCurrentFileTabController();
         if (fileTabController != null) {
-            return fileTabController.getTextArea();
+            return fileTabController.getEditor();
         }
         return null;
     }
@@ -168,5 +338,6 @@ public class ReplaceDialogController implements Initializable {
     @FXML private TextField replaceTextField;
     @FXML private Button replaceButton;
     @FXML private Button replaceAllButton;
+    @FXML private Button replaceInAllTabsButton;
     // END OF FXML VARIABLES
 }
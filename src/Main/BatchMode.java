@@ -0,0 +1,419 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Main;
+
+import Models.FileTransform;
+import Models.Workers;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The batch mode of the command line, which finds, replaces, converts the
+ * charset or normalizes the line endings of files without JavaFX. It is its
+ * own entry point, as the application class extends Application, which the
+ * launcher starts JavaFX for before calling its main method:
+ * <pre>
+ * java -cp SimpleTextEditor.jar Main.BatchMode [options] pattern...
+ * </pre>
+ * Nothing it runs uses JavaFX, so it needs no JavaFX runtime at all.
+ * A pattern is a file, a folder, whose files are all processed, or a glob
+ * such as src/**.java. The files are transformed by FileTransform, with the
+ * replacement code of the find and replace dialogs, on the parallel workers.
+ * The files with a match or a change are printed on the standard output,
+ * followed by the throughput on the standard error.
+ * The exit status is 0 on success, 1 if nothing was found by --find, and 2
+ * if the options are not valid or a file could not be processed. Binary files
+ * are skipped without error.
+ */
+public class BatchMode {
+    private static final int SUCCESS = 0;
+    private static final int NOT_FOUND = 1;
+    private static final int ERROR = 2;
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp SimpleTextEditor.jar Main.BatchMode [options] pattern...",
+            "  --find TEXT             count the occurences of TEXT",
+            "  --replace TEXT          replace TEXT, with --with",
+            "  --with REPLACEMENT      replacement, $n refers to a group with --regex",
+            "  --regex                 TEXT is a regular expression",
+            "  --from CHARSET          charset of the files, UTF-8 by default",
+            "  --to CHARSET            convert the files to CHARSET",
+            "  --eol lf|crlf|cr        normalize the line endings",
+            "  --dry-run               count the changes without writing the files");
+    private final PrintStream out;
+    private final PrintStream err;
+    private final List<String> patterns = new ArrayList<>();
+    private String find;
+    private String replace;
+    private String replacement;
+    private boolean regex;
+    private Charset from = StandardCharsets.UTF_8;
+    private Charset to;
+    private String lineEnding;
+    private boolean dryRun;
+
+    /**
+     * Constructs a new BatchMode.
+     * @param out receiving the results.
+     * @param err receiving the errors and the throughput.
+     */
+    public BatchMode(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Runs the batch mode and exits with its status.
+     * @param args the command line arguments.
+     */
+    public static void main(String[] args) {
+        System.exit(new BatchMode(System.out, System.err).run(args));
+    }
+
+    /**
+     * Processes the files given by the command line arguments.
+     * @param args the command line arguments.
+     * @return the exit status.
+     */
+    public int run(String[] args) {
+        FileTransform transform;
+        try {
+            parse(args);
+            transform = createTransform();
+        }
+        catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            err.println(USAGE);
+            return ERROR;
+        }
+        long start = System.nanoTime();
+        Map<Path, Path> files = new LinkedHashMap<>();
+        int failed = 0;
+        for (String pattern : patterns) {
+            try {
+                for (Path file : expand(pattern)) {
+                    files.putIfAbsent(file.toAbsolutePath().normalize(), file.normalize());
+                }
+            }
+            catch (IOException ex) {
+                err.println(pattern + ": " + ex.getMessage());
+                failed++;
+            }
+        }
+        boolean write = find == null && !dryRun;
+        List<ForkJoinTask<FileTransform.Result>> tasks = new ArrayList<>(files.size());
+        for (Path file : files.values()) {
+            tasks.add(Workers.parallel().submit(() -> write ? transform.transform(file) : transform.count(file)));
+        }
+        int matched = 0;
+        int skipped = 0;
+        long count = 0;
+        long bytes = 0;
+        int index = 0;
+        for (Path file : files.values()) {
+            try {
+                FileTransform.Result result = tasks.get(index++).get();
+                bytes += result.getSize();
+                if ("binary".equals(result.getError())) {
+                    skipped++;
+                }
+                else if (result.getError() != null) {
+                    err.println(file + ": skipped, " + result.getError());
+                    failed++;
+                }
+                else if (report(file, result)) {
+                    matched++;
+                    count += result.getCount();
+                }
+            }
+            catch (ExecutionException ex) {
+                err.println(file + ": cannot be read or written, " + ex.getCause().getMessage());
+                failed++;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return ERROR;
+            }
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        err.println(String.format(Locale.ROOT, "%d files, %d %s, %d %s, %d skipped, %d failed in %.2f s (%.1f MB/s, %.0f files/s)",
+                files.size(), matched, find != null ? "matched" : (write ? "changed" : "to change"),
+                count, find != null ? "matches" : "replacements", skipped, failed,
+                seconds, bytes / seconds / (1 << 20), files.size() / seconds));
+        if (failed > 0) {
+            return ERROR;
+        }
+        return find != null && matched == 0 ? NOT_FOUND : SUCCESS;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Reads the options and the patterns.
+     * @param args the command line arguments.
+     * @throws IllegalArgumentException if the arguments are not valid.
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--find":
+                    find = value(args, ++i, arg);
+                    break;
+                case "--replace":
+                    replace = value(args, ++i, arg);
+                    break;
+                case "--with":
+                    replacement = value(args, ++i, arg);
+                    break;
+                case "--regex":
+                    regex = true;
+                    break;
+                case "--from":
+                    from = charset(value(args, ++i, arg));
+                    break;
+                case "--to":
+                    to = charset(value(args, ++i, arg));
+                    break;
+                case "--eol":
+                    lineEnding = lineEnding(value(args, ++i, arg));
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option " + arg + ".");
+                    }
+                    patterns.add(arg);
+            }
+        }
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("No file given.");
+        }
+        if (find != null && (replace != null || replacement != null || to != null || lineEnding != null)) {
+            throw new IllegalArgumentException("--find cannot be combined with changes.");
+        }
+        if ((replace == null) != (replacement == null)) {
+            throw new IllegalArgumentException("--replace needs --with.");
+        }
+        if (find == null && replace == null && to == null && lineEnding == null) {
+            throw new IllegalArgumentException("Nothing to do.");
+        }
+        if ((find != null && find.isEmpty()) || (replace != null && replace.isEmpty())) {
+            throw new IllegalArgumentException("The text to find is empty.");
+        }
+    }
+
+    /**
+     *
+     * @return the transform made by the options.
+     * @throws IllegalArgumentException if the regular expression is not
+     * valid.
+     */
+    private FileTransform createTransform() {
+        FileTransform transform = new FileTransform(from, to != null ? to : from);
+        try {
+            if (find != null) {
+                transform.setReplacement(find, "", regex);
+            }
+            else if (replace != null) {
+                transform.setReplacement(replace, replacement, regex);
+            }
+        }
+        catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException(ex.getMessage());
+        }
+        if (lineEnding != null) {
+            transform.setLineEnding(lineEnding);
+        }
+        return transform;
+    }
+
+    /**
+     * Prints the matches or the changes of a file.
+     * @param file which was processed.
+     * @param result of the file.
+     * @return true if the file had a match or a change.
+     */
+    private boolean report(Path file, FileTransform.Result result) {
+        if (find != null) {
+            if (result.getCount() > 0) {
+                out.println(file + ": " + result.getCount());
+                return true;
+            }
+            return false;
+        }
+        boolean converted = to != null && !to.equals(from);
+        if (result.getCount() == 0 && result.getLineEndings() == 0 && !converted) {
+            return false;
+        }
+        List<String> changes = new ArrayList<>();
+        if (result.getCount() > 0) {
+            changes.add(result.getCount() + (result.getCount() == 1 ? " replacement" : " replacements"));
+        }
+        if (result.getLineEndings() > 0) {
+            changes.add(result.getLineEndings() + (result.getLineEndings() == 1 ? " line ending" : " line endings"));
+        }
+        if (converted) {
+            changes.add("converted to " + to.name());
+        }
+        out.println(file + ": " + String.join(", ", changes));
+        return true;
+    }
+
+    /**
+     *
+     * @param pattern a file, a folder or a glob.
+     * @return the regular files of the pattern. Links to folders are not
+     * followed.
+     * @throws IOException if the pattern matches no file, or a folder cannot
+     * be read.
+     */
+    private static List<Path> expand(String pattern) throws IOException {
+        int glob = indexOfAny(pattern, "*?[{");
+        Path root;
+        PathMatcher matcher = null;
+        if (glob < 0) {
+            root = Paths.get(pattern);
+            if (Files.isRegularFile(root)) {
+                List<Path> files = new ArrayList<>();
+                files.add(root);
+                return files;
+            }
+            if (!Files.isDirectory(root)) {
+                throw new IOException("no such file.");
+            }
+        }
+        else {
+            int slash = pattern.lastIndexOf('/', glob);
+            root = Paths.get(slash < 0 ? "." : pattern.substring(0, slash + 1));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(slash + 1));
+        }
+        List<Path> files = new ArrayList<>();
+        PathMatcher relativeMatcher = matcher;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && (relativeMatcher == null || relativeMatcher.matches(root.relativize(file)))) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (files.isEmpty() && matcher != null) {
+            throw new IOException("no such file.");
+        }
+        return files;
+    }
+
+    /**
+     *
+     * @param text to be searched.
+     * @param chars to be found.
+     * @return the index of the first of the chars in the text, or -1.
+     */
+    private static int indexOfAny(String text, String chars) {
+        for (int i = 0; i < text.length(); i++) {
+            if (chars.indexOf(text.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param args the command line arguments.
+     * @param index of the value of an option.
+     * @param option which needs the value.
+     * @return the value.
+     * @throws IllegalArgumentException if the value is missing.
+     */
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value.");
+        }
+        return args[index];
+    }
+
+    /**
+     *
+     * @param name of a charset.
+     * @return the charset.
+     * @throws IllegalArgumentException if the charset is not supported.
+     */
+    private static Charset charset(String name) {
+        try {
+            return Charset.forName(name);
+        }
+        catch (IllegalCharsetNameException | UnsupportedCharsetException ex) {
+            throw new IllegalArgumentException("Unsupported charset " + name + ".");
+        }
+    }
+
+    /**
+     *
+     * @param name lf, crlf or cr.
+     * @return the line ending.
+     * @throws IllegalArgumentException if the name is not known.
+     */
+    private static String lineEnding(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "lf":
+                return "\n";
+            case "crlf":
+                return "\r\n";
+            case "cr":
+                return "\r";
+            default:
+                throw new IllegalArgumentException("Unknown line ending " + name + ".");
+        }
+    }
+}
@@ -41,6 +41,10 @@ import javafx.stage.WindowEvent;
  * A simple tabbed text editor.
  * This is the application entry point. The application follow a MVC logic.
  * Initially, a scene is set up on MainPane.fxml. See MainPaneController.
+ * Any document left unsaved by a crash is then recovered from its journal,
+ * and the files open when the application was last closed are opened again.
+ * Files can also be processed from the command line without JavaFX, by
+ * running Main.BatchMode instead. See BatchMode.
  * @author jguitana
  */
 public class SimpleTextEditor extends Application {
@@ -59,6 +63,10 @@ public class SimpleTextEditor extends Application {
         stage.setScene(scene);
         stage.getIcons().add(new Image("/Styling/iconsmall.png"));
         stage.show();
+        // Reopen the unsaved documents of an instance which died.
+        mainPaneController.getFileTabPaneController().recoverFiles();
+        // Reopen the files of the last session, loading only the selected one.
+        mainPaneController.getFileTabPaneController().restoreSession();
     }
     
     // EVENT HANDLERS
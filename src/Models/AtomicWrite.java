@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers replacing a file with a temporary file written next to it, so the
+ * file either keeps its old content or holds the whole new one. They need no
+ * JavaFX, so the batch mode of the command line uses them as well as the
+ * saves, the replacements in files and the session.
+ */
+final class AtomicWrite {
+
+    private AtomicWrite() {
+    }
+
+    /**
+     * Creates an empty temporary file in the directory of the target, so the
+     * move never crosses file systems. The file gets the permissions of the
+     * target if it exists.
+     * @param target to be replaced.
+     * @return the path of the temporary file.
+     * @throws IOException
+     */
+    static Path createTempFile(Path target) throws IOException {
+        Path directory = target.getParent();
+        String name = "." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp";
+        Path temp = Files.createFile(directory.resolve(name));
+        if (Files.exists(target)) {
+            try {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+            }
+            catch (UnsupportedOperationException e) {
+                // Not a POSIX file system.
+            }
+        }
+        return temp;
+    }
+
+    /**
+     * Replaces the target with the temporary file, atomically if the file
+     * system supports it.
+     * @param temp file holding the new text.
+     * @param target to be replaced.
+     * @throws IOException
+     */
+    static void move(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to the device. Some platforms cannot
+     * open directories, in which case this does nothing.
+     * @param directory to be synced.
+     */
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // The file itself is already on the device.
+        }
+    }
+}
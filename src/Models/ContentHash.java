@@ -0,0 +1,488 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * A hash of the text of a Document, kept up to date as it is edited, which
+ * tells whether the document holds the text of its file. The saved hash and
+ * length are recorded when the file is loaded or saved, and the document is
+ * saved whenever its hash and length are equal to them again, for example
+ * after undoing every edit.
+ * The hash of the chars c0..cn-1 is the sum of ci * BASE^i modulo the prime
+ * 2^61 - 1. The document is split in blocks of about BLOCK_SIZE chars, like
+ * the LineIndex and the SearchIndex do, each with the hash of its own chars
+ * and the hash of the blocks before it. An edit only marks the hash of the
+ * block holding it as outdated and the prefix hashes from that block on, so
+ * it reads no chars; the outdated block is hashed again and the prefix
+ * hashes summed again, without reading the other blocks, once the hash of
+ * the whole document is needed.
+ */
+public class ContentHash implements DocumentListener {
+    private static final long MODULUS = (1L << 61) - 1;
+    private static final long BASE = 0x1F3D5B79A2C4E6FL;
+    private static final int BLOCK_SIZE = 4096;
+    private static final long BLOCK_POWER = power(BASE, BLOCK_SIZE);
+    private static final int MAX_UPDATES = 256;
+    private static final long OUTDATED = -1;
+    private final Document document;
+    private boolean known;
+    private int blockCount;
+    private int[] blockLengths;
+    private long[] blockHashes;
+    private int[] blockStarts;
+    private int validBlockStarts;
+    private long[] prefixHashes;
+    private long[] blockPowers;
+    private int validPrefixes;
+    private boolean savedKnown;
+    private long savedHash;
+    private int savedLength;
+
+    /**
+     * Constructs a new ContentHash of an empty document, which is saved. It
+     * must be added as a listener of the document to be kept up to date.
+     * @param document to be hashed.
+     */
+    public ContentHash(Document document) {
+        this.document = document;
+        this.savedKnown = true;
+        install(0, new long[1]);
+    }
+
+    /**
+     *
+     * @param text to be hashed.
+     * @return the hash of the text, which can be computed on any thread, for
+     * example while the text of a file is loaded.
+     */
+    public static long hash(CharBuffer text) {
+        long result = 0;
+        if (text.hasArray()) {
+            char[] chars = text.array();
+            int start = text.arrayOffset() + text.position();
+            for (int i = start + text.remaining() - 1; i >= start; i--) {
+                result = add(multiply(result, BASE), chars[i]);
+            }
+        }
+        else {
+            for (int i = text.remaining() - 1; i >= 0; i--) {
+                result = add(multiply(result, BASE), text.get(text.position() + i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @param text to be hashed.
+     * @return the hashes of the blocks of BLOCK_SIZE chars of the text, which
+     * can be computed on any thread, for example while the text of a file is
+     * loaded. An empty text has one empty block.
+     */
+    public static long[] hashBlocks(CharBuffer text) {
+        int length = text.remaining();
+        long[] hashes = new long[Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+        CharBuffer block = text.duplicate();
+        for (int i = 0; i < hashes.length; i++) {
+            int start = text.position() + i * BLOCK_SIZE;
+            block.limit(Math.min(start + BLOCK_SIZE, text.limit()));
+            block.position(start);
+            hashes[i] = hash(block);
+        }
+        return hashes;
+    }
+
+    /**
+     *
+     * @param blockHashes computed with hashBlocks(CharBuffer).
+     * @return the hash of the whole text.
+     */
+    public static long combine(long[] blockHashes) {
+        long result = 0;
+        long power = 1;
+        for (long blockHash : blockHashes) {
+            result = add(result, multiply(power, blockHash));
+            power = multiply(power, BLOCK_POWER);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the hashes of the blocks of the text just loaded in the document,
+     * computed with hashBlocks(CharBuffer), so they are not computed again.
+     * @param hashes of the blocks of the whole document.
+     */
+    public void setBlockHashes(long[] hashes) {
+        install(document.length(), hashes);
+    }
+
+    /**
+     *
+     * @return the hash of the whole document. The blocks edited since are
+     * hashed again, and every block if the document was reset since.
+     */
+    public long getHash() {
+        if (!known) {
+            install(document.length(), null);
+        }
+        updatePrefixes();
+        int last = blockCount - 1;
+        return add(prefixHashes[last], multiply(blockPowers[last], blockHash(last)));
+    }
+
+    /**
+     * Records that the file holds the text of the document.
+     */
+    public void markSaved() {
+        markSaved(getHash(), document.length());
+    }
+
+    /**
+     * Records that the file holds a text, for example a snapshot of the
+     * document which was saved while the document was edited.
+     * @param value hash of the text.
+     * @param length of the text.
+     */
+    public void markSaved(long value, int length) {
+        savedKnown = true;
+        savedHash = value;
+        savedLength = length;
+    }
+
+    /**
+     * Records that the text of the file is not known, so the document is not
+     * saved until it is saved again.
+     */
+    public void markUnsaved() {
+        savedKnown = false;
+    }
+
+    /**
+     *
+     * @return true if the document holds the text of the file.
+     */
+    public boolean isSaved() {
+        return savedKnown && document.length() == savedLength && getHash() == savedHash;
+    }
+
+    /**
+     * Updates the lengths of the blocks touched by an edit.
+     * @param document which changed.
+     * @param offset of the edit.
+     * @param removedText by the edit.
+     * @param insertedText by the edit.
+     */
+    @Override
+    public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+        if (known) {
+            update(offset, removedText.length(), insertedText.length());
+        }
+    }
+
+    /**
+     * Updates the blocks for each occurence replaced, or forgets them when
+     * there are many of them: every update recomputes the start offsets of
+     * the following blocks, which costs more than hashing them all again.
+     * @param document which changed.
+     * @param offsets of the occurences before the change.
+     * @param removedText at each offset.
+     * @param insertedText at each offset.
+     */
+    @Override
+    public void documentReplacedAll(Document document, int[] offsets, String removedText, String insertedText) {
+        if (offsets.length > MAX_UPDATES) {
+            known = false;
+        }
+        else {
+            DocumentListener.super.documentReplacedAll(document, offsets, removedText, insertedText);
+        }
+    }
+
+    /**
+     * Updates the blocks for each range replaced, or forgets them when there
+     * are many of them, as for documentReplacedAll.
+     * @param document which changed.
+     * @param offsets of the ranges before the change.
+     * @param removedTexts at each offset.
+     * @param insertedTexts at each offset.
+     */
+    @Override
+    public void documentReplacedRanges(Document document, int[] offsets, String[] removedTexts, String[] insertedTexts) {
+        if (offsets.length > MAX_UPDATES) {
+            known = false;
+        }
+        else {
+            DocumentListener.super.documentReplacedRanges(document, offsets, removedTexts, insertedTexts);
+        }
+    }
+
+    /**
+     * Forgets the hashes, which are computed again when they are needed.
+     * @param document which was reset.
+     */
+    @Override
+    public void documentReset(Document document) {
+        known = false;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Splits the document in blocks of BLOCK_SIZE chars.
+     * @param length of the document.
+     * @param hashes of the blocks, or null if they are outdated.
+     */
+    private void install(int length, long[] hashes) {
+        blockCount = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        int capacity = Math.max(16, blockCount + blockCount / 8);
+        blockLengths = new int[capacity];
+        Arrays.fill(blockLengths, 0, blockCount, BLOCK_SIZE);
+        blockLengths[blockCount - 1] = length - (blockCount - 1) * BLOCK_SIZE;
+        blockHashes = new long[capacity];
+        if (hashes != null) {
+            System.arraycopy(hashes, 0, blockHashes, 0, blockCount);
+        }
+        else {
+            Arrays.fill(blockHashes, 0, blockCount, OUTDATED);
+        }
+        blockStarts = new int[capacity];
+        validBlockStarts = 0;
+        prefixHashes = new long[capacity];
+        blockPowers = new long[capacity];
+        validPrefixes = 0;
+        known = true;
+    }
+
+    /**
+     * Merges the blocks touched by an edit into one block, marks its hash as
+     * outdated and splits the block if it grew too long.
+     * @param offset of the edit.
+     * @param removedLength of the edit.
+     * @param insertedLength of the edit.
+     */
+    private void update(int offset, int removedLength, int insertedLength) {
+        int first = findBlock(offset);
+        int last = removedLength > 0 ? findBlock(offset + removedLength - 1) : first;
+        int firstStart = blockStarts[first];
+        int lastEnd = blockStarts[last] + blockLengths[last];
+        int length = lastEnd - firstStart - removedLength + insertedLength;
+        removeBlocks(first + 1, last + 1);
+        blockLengths[first] = length;
+        blockHashes[first] = OUTDATED;
+        invalidateBlocks(first);
+        if (length > 2 * BLOCK_SIZE) {
+            int count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            insertBlocks(first + 1, count - 1);
+            for (int i = 0; i < count; i++) {
+                blockLengths[first + i] = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+            }
+        }
+        else if (length == 0 && blockCount > 1) {
+            removeBlocks(first, first + 1);
+        }
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the index of the block holding the offset, or the last block
+     * for the end of the document.
+     */
+    private int findBlock(int offset) {
+        updateBlockStarts();
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockStarts[middle] <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes a range of blocks.
+     * @param from index of the first block, inclusive.
+     * @param to index of the last block, exclusive.
+     */
+    private void removeBlocks(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        System.arraycopy(blockLengths, to, blockLengths, from, blockCount - to);
+        System.arraycopy(blockHashes, to, blockHashes, from, blockCount - to);
+        blockCount -= to - from;
+        invalidateBlocks(from);
+    }
+
+    /**
+     * Inserts empty blocks with outdated hashes.
+     * @param index of the first inserted block.
+     * @param count of blocks to insert.
+     */
+    private void insertBlocks(int index, int count) {
+        if (blockCount + count > blockLengths.length) {
+            int capacity = Math.max(blockCount + count, blockLengths.length * 2);
+            blockLengths = Arrays.copyOf(blockLengths, capacity);
+            blockHashes = Arrays.copyOf(blockHashes, capacity);
+            blockStarts = Arrays.copyOf(blockStarts, capacity);
+            prefixHashes = Arrays.copyOf(prefixHashes, capacity);
+            blockPowers = Arrays.copyOf(blockPowers, capacity);
+        }
+        System.arraycopy(blockLengths, index, blockLengths, index + count, blockCount - index);
+        System.arraycopy(blockHashes, index, blockHashes, index + count, blockCount - index);
+        Arrays.fill(blockHashes, index, index + count, OUTDATED);
+        blockCount += count;
+        invalidateBlocks(index);
+    }
+
+    /**
+     * Marks the start offsets and the prefix hashes of the blocks from an
+     * index as outdated.
+     * @param block index of the first outdated block.
+     */
+    private void invalidateBlocks(int block) {
+        validBlockStarts = Math.min(validBlockStarts, block);
+        // The prefix hash of a block covers the blocks before it.
+        validPrefixes = Math.min(validPrefixes, block + 1);
+    }
+
+    /**
+     * Recomputes the outdated start offsets of the blocks.
+     */
+    private void updateBlockStarts() {
+        if (validBlockStarts >= blockCount) {
+            return;
+        }
+        int offset = validBlockStarts == 0 ? 0 : blockStarts[validBlockStarts - 1] + blockLengths[validBlockStarts - 1];
+        for (int i = validBlockStarts; i < blockCount; i++) {
+            blockStarts[i] = offset;
+            offset += blockLengths[i];
+        }
+        validBlockStarts = blockCount;
+    }
+
+    /**
+     * Recomputes the outdated prefix hashes of the blocks, and the powers of
+     * BASE by which the hashes of the blocks are multiplied.
+     */
+    private void updatePrefixes() {
+        updateBlockStarts();
+        if (validPrefixes == 0) {
+            prefixHashes[0] = 0;
+            blockPowers[0] = 1;
+            validPrefixes = 1;
+        }
+        for (int i = validPrefixes; i < blockCount; i++) {
+            prefixHashes[i] = add(prefixHashes[i - 1], multiply(blockPowers[i - 1], blockHash(i - 1)));
+            int length = blockLengths[i - 1];
+            blockPowers[i] = multiply(blockPowers[i - 1], length == BLOCK_SIZE ? BLOCK_POWER : power(BASE, length));
+        }
+        validPrefixes = blockCount;
+    }
+
+    /**
+     *
+     * @param block index of a block, whose start offset is up to date.
+     * @return the hash of the block, computed again if it is outdated.
+     */
+    private long blockHash(int block) {
+        if (blockHashes[block] == OUTDATED) {
+            blockHashes[block] = hashRange(blockStarts[block], blockStarts[block] + blockLengths[block]);
+        }
+        return blockHashes[block];
+    }
+
+    /**
+     *
+     * @param start offset of a range of the document.
+     * @param end offset of the range.
+     * @return the hash of the chars of the range, as if it started at 0.
+     */
+    private long hashRange(int start, int end) {
+        char[] chars = new char[end - start];
+        document.getChars(start, end, chars, 0);
+        long result = 0;
+        for (int i = chars.length - 1; i >= 0; i--) {
+            result = add(multiply(result, BASE), chars[i]);
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return base to the power of the exponent, modulo the prime.
+     */
+    private static long power(long base, long exponent) {
+        long result = 1;
+        long square = base;
+        for (long e = exponent; e > 0; e >>>= 1) {
+            if ((e & 1) != 0) {
+                result = multiply(result, square);
+            }
+            square = multiply(square, square);
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return a * b modulo the prime, for a and b lower than the prime.
+     */
+    private static long multiply(long a, long b) {
+        long aHigh = a >>> 31;
+        long aLow = a & ((1L << 31) - 1);
+        long bHigh = b >>> 31;
+        long bLow = b & ((1L << 31) - 1);
+        long middle = aLow * bHigh + aHigh * bLow;
+        long result = (aHigh * bHigh << 1) + (middle >>> 30) + ((middle & ((1L << 30) - 1)) << 31) + aLow * bLow;
+        return reduce(result);
+    }
+
+    /**
+     *
+     * @return a + b modulo the prime, for a and b lower than the prime.
+     */
+    private static long add(long a, long b) {
+        long result = a + b;
+        return result >= MODULUS ? result - MODULUS : result;
+    }
+
+    /**
+     *
+     * @return x modulo the prime, for any x read as unsigned.
+     */
+    private static long reduce(long x) {
+        long result = (x & MODULUS) + (x >>> 61);
+        return result >= MODULUS ? result - MODULUS : result;
+    }
+}
@@ -0,0 +1,879 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The text of a FileTab, stored as a piece table.
+ * The text loaded from a file is kept in a read only original buffer and all
+ * inserted text is appended to an append only add buffer. The document is the
+ * ordered list of pieces referencing ranges of both buffers, so an edit only
+ * splits, removes and inserts pieces and costs O(pieces), whatever the length
+ * of the document. Consecutive typing extends the last piece instead of
+ * creating a new one.
+ * The buffers of a document which is not needed for a while can be released
+ * to free the memory. The text is then read back from a source, like the
+ * file of the document or a spill file, when it is read again or restored.
+ */
+public class Document implements CharSequence {
+    private final List<Piece> pieces;
+    private final List<DocumentListener> listeners;
+    private AddBuffer addBuffer;
+    private ReleasedBuffer released;
+    private int[] pieceStarts;
+    private int validPieceStarts;
+    private int length;
+    private int lastPiece;
+    private long version;
+
+    /**
+     * Constructs a new empty document.
+     */
+    public Document() {
+        this.pieces = new ArrayList<>();
+        this.listeners = new ArrayList<>();
+        this.addBuffer = new AddBuffer();
+        this.pieceStarts = new int[16];
+    }
+
+    /**
+     * Replaces the whole content of the document with the text in the buffer.
+     * The array backing the buffer is used as the original buffer of the
+     * document, without copying it, so it must not be modified afterwards.
+     * @param text to be the content of the document.
+     */
+    public void load(CharBuffer text) {
+        int textLength = text.remaining();
+        char[] chars;
+        int start;
+        if (text.hasArray() && textLength >= text.capacity() - text.capacity() / 4) {
+            chars = text.array();
+            start = text.arrayOffset() + text.position();
+        }
+        else {
+            // Do not keep a mostly unused array alive.
+            chars = new char[textLength];
+            text.duplicate().get(chars);
+            start = 0;
+        }
+        pieces.clear();
+        addBuffer = new AddBuffer();
+        released = null;
+        if (textLength > 0) {
+            pieces.add(new Piece(new ArrayBuffer(chars), start, textLength));
+        }
+        length = textLength;
+        invalidatePieceStarts(0);
+        version++;
+        for (DocumentListener listener : new ArrayList<>(listeners)) {
+            listener.documentReset(this);
+        }
+    }
+
+    /**
+     * Releases the buffers of the document, without notifying the listeners
+     * since its text is unchanged. The text is read back from the source on
+     * the thread which first reads the document or one of its snapshots, or
+     * when it is restored.
+     * @param source returning the text of the document, which may be called
+     * on any thread.
+     */
+    public void release(Callable<CharBuffer> source) {
+        if (length == 0 || !isResident()) {
+            return;
+        }
+        released = new ReleasedBuffer(source, length);
+        pieces.clear();
+        pieces.add(new Piece(released, 0, length));
+        addBuffer = new AddBuffer();
+        invalidatePieceStarts(0);
+        lastPiece = 0;
+    }
+
+    /**
+     * Puts back the text of a released document.
+     * @param text of the document read from its source, or null if the text
+     * was already read back.
+     */
+    public void restore(CharBuffer text) {
+        if (released == null) {
+            return;
+        }
+        if (text != null) {
+            released.restore(text);
+        }
+        if (released.chars != null) {
+            // Point the pieces to the text itself.
+            ArrayBuffer buffer = new ArrayBuffer(released.chars);
+            for (int i = 0; i < pieces.size(); i++) {
+                Piece p = pieces.get(i);
+                if (p.buffer == released) {
+                    pieces.set(i, new Piece(buffer, p.start, p.length));
+                }
+            }
+            released = null;
+        }
+    }
+
+    /**
+     *
+     * @return false if the buffers of the document were released and their
+     * text was not read back yet.
+     */
+    public boolean isResident() {
+        return released == null || released.chars != null;
+    }
+
+    /**
+     * Replaces the whole content of the document with a text.
+     * @param text to be the content of the document.
+     */
+    public void load(String text) {
+        load(CharBuffer.wrap(text.toCharArray()));
+    }
+
+    /**
+     * Replaces a range of the document with a text.
+     * @param start offset of the range, inclusive.
+     * @param end offset of the range, exclusive.
+     * @param text to be inserted in place of the range.
+     */
+    public void replace(int start, int end, String text) {
+        checkRange(start, end);
+        if (start == end && text.isEmpty()) {
+            return;
+        }
+        String removedText = getText(start, end);
+        int first = split(start);
+        int last = split(end);
+        pieces.subList(first, last).clear();
+        if (!text.isEmpty()) {
+            int addStart = addBuffer.length();
+            addBuffer.append(text);
+            Piece previous = first > 0 ? pieces.get(first - 1) : null;
+            if (previous != null && previous.buffer == addBuffer && previous.start + previous.length == addStart) {
+                pieces.set(first - 1, new Piece(addBuffer, previous.start, previous.length + text.length()));
+            }
+            else {
+                pieces.add(first, new Piece(addBuffer, addStart, text.length()));
+            }
+        }
+        length += text.length() - (end - start);
+        invalidatePieceStarts(Math.max(0, first - 1));
+        version++;
+        for (DocumentListener listener : new ArrayList<>(listeners)) {
+            listener.documentChanged(this, start, removedText, text);
+        }
+    }
+
+    /**
+     * Replaces the occurences of a text at many offsets in one pass. The
+     * replacement is appended once to the add buffer and every occurence
+     * gets a piece pointing to it, so the cost depends on the number of
+     * occurences and pieces, not on the length of the document, and no text
+     * is copied. Listeners are notified with documentReplacedAll.
+     * @param offsets of the occurences, sorted, which must not overlap.
+     * @param count of the offsets to be used.
+     * @param removedText found at each of the offsets.
+     * @param text to be inserted in place of each occurence.
+     */
+    public void replaceAll(int[] offsets, int count, String removedText, String text) {
+        int removedLength = removedText.length();
+        int[] occurences = Arrays.copyOf(offsets, count);
+        for (int i = 0; i < count; i++) {
+            int minimum = i == 0 ? 0 : occurences[i - 1] + removedLength;
+            if (occurences[i] < minimum || occurences[i] + removedLength > length) {
+                throw new IllegalArgumentException("occurence " + i + " at " + occurences[i] + " overlaps or is out of range");
+            }
+        }
+        if (count == 0 || (removedLength == 0 && text.isEmpty())) {
+            return;
+        }
+        int addStart = addBuffer.length();
+        addBuffer.append(text);
+        List<Piece> result = new ArrayList<>(pieces.size() + 2 * count + 1);
+        int piece = 0;
+        int pieceStart = 0;
+        int position = 0;
+        for (int i = 0; i <= count; i++) {
+            int end = i < count ? occurences[i] : length;
+            // Copy the pieces, or parts of them, between the occurences.
+            while (position < end) {
+                Piece p = pieces.get(piece);
+                int pieceEnd = pieceStart + p.length;
+                if (pieceEnd <= position) {
+                    piece++;
+                    pieceStart = pieceEnd;
+                    continue;
+                }
+                int copyEnd = Math.min(end, pieceEnd);
+                result.add(new Piece(p.buffer, p.start + position - pieceStart, copyEnd - position));
+                position = copyEnd;
+            }
+            if (i < count) {
+                if (!text.isEmpty()) {
+                    result.add(new Piece(addBuffer, addStart, text.length()));
+                }
+                position = end + removedLength;
+            }
+        }
+        pieces.clear();
+        pieces.addAll(result);
+        length += count * (text.length() - removedLength);
+        invalidatePieceStarts(0);
+        lastPiece = 0;
+        version++;
+        for (DocumentListener listener : new ArrayList<>(listeners)) {
+            listener.documentReplacedAll(this, occurences, removedText, text);
+        }
+    }
+
+    /**
+     * Replaces many ranges, each with its own text, in one pass, like the
+     * matches of a regular expression. The pieces are rebuilt once, so the
+     * cost depends on the number of ranges and pieces, not on their product.
+     * Listeners are notified with documentReplacedRanges.
+     * @param starts of the ranges, inclusive, sorted.
+     * @param ends of the ranges, exclusive. The ranges must not overlap.
+     * @param texts to be inserted in place of each range.
+     * @param count of the ranges to be used.
+     */
+    public void replaceAll(int[] starts, int[] ends, String[] texts, int count) {
+        int[] offsets = Arrays.copyOf(starts, count);
+        for (int i = 0; i < count; i++) {
+            int minimum = i == 0 ? 0 : ends[i - 1];
+            if (offsets[i] < minimum || ends[i] < offsets[i] || ends[i] > length) {
+                throw new IllegalArgumentException("range " + i + " from " + offsets[i] + " to " + ends[i] + " overlaps or is out of range");
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        String[] removedTexts = new String[count];
+        String[] insertedTexts = Arrays.copyOf(texts, count);
+        List<Piece> result = new ArrayList<>(pieces.size() + 2 * count + 1);
+        int piece = 0;
+        int pieceStart = 0;
+        int position = 0;
+        int delta = 0;
+        for (int i = 0; i <= count; i++) {
+            int end = i < count ? offsets[i] : length;
+            // Copy the pieces, or parts of them, between the ranges.
+            while (position < end) {
+                Piece p = pieces.get(piece);
+                int pieceEnd = pieceStart + p.length;
+                if (pieceEnd <= position) {
+                    piece++;
+                    pieceStart = pieceEnd;
+                    continue;
+                }
+                int copyEnd = Math.min(end, pieceEnd);
+                result.add(new Piece(p.buffer, p.start + position - pieceStart, copyEnd - position));
+                position = copyEnd;
+            }
+            if (i < count) {
+                // Read the removed text from the pieces it spans.
+                char[] removed = new char[ends[i] - offsets[i]];
+                while (position < ends[i]) {
+                    Piece p = pieces.get(piece);
+                    int pieceEnd = pieceStart + p.length;
+                    if (pieceEnd <= position) {
+                        piece++;
+                        pieceStart = pieceEnd;
+                        continue;
+                    }
+                    int copyEnd = Math.min(ends[i], pieceEnd);
+                    p.buffer.getChars(p.start + position - pieceStart, p.start + copyEnd - pieceStart, removed, position - offsets[i]);
+                    position = copyEnd;
+                }
+                removedTexts[i] = new String(removed);
+                if (!insertedTexts[i].isEmpty()) {
+                    int addStart = addBuffer.length();
+                    addBuffer.append(insertedTexts[i]);
+                    result.add(new Piece(addBuffer, addStart, insertedTexts[i].length()));
+                }
+                delta += insertedTexts[i].length() - removedTexts[i].length();
+            }
+        }
+        pieces.clear();
+        pieces.addAll(result);
+        length += delta;
+        invalidatePieceStarts(0);
+        lastPiece = 0;
+        version++;
+        for (DocumentListener listener : new ArrayList<>(listeners)) {
+            listener.documentReplacedRanges(this, offsets, removedTexts, insertedTexts);
+        }
+    }
+
+    /**
+     * Inserts a text in the document.
+     * @param offset at which the text is inserted.
+     * @param text to be inserted.
+     */
+    public void insert(int offset, String text) {
+        replace(offset, offset, text);
+    }
+
+    /**
+     * Deletes a range of the document.
+     * @param start offset of the range, inclusive.
+     * @param end offset of the range, exclusive.
+     */
+    public void delete(int start, int end) {
+        replace(start, end, "");
+    }
+
+    /**
+     *
+     * @return the number of chars in the document.
+     */
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     *
+     * @param index of the char.
+     * @return the char at the index.
+     */
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        int piece = lastPiece;
+        if (piece >= validPieceStarts || piece >= pieces.size() || index < pieceStarts[piece]
+                || index >= pieceStarts[piece] + pieces.get(piece).length) {
+            piece = findPiece(index);
+            lastPiece = piece;
+        }
+        Piece p = pieces.get(piece);
+        return p.buffer.charAt(p.start + index - pieceStarts[piece]);
+    }
+
+    /**
+     *
+     * @param start offset, inclusive.
+     * @param end offset, exclusive.
+     * @return the text of the range as a String.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return getText(start, end);
+    }
+
+    /**
+     *
+     * @param start offset, inclusive.
+     * @param end offset, exclusive.
+     * @return the text of the range.
+     */
+    public String getText(int start, int end) {
+        checkRange(start, end);
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Copies a range of the document into an array.
+     * @param srcBegin offset of the range, inclusive.
+     * @param srcEnd offset of the range, exclusive.
+     * @param dst array to copy to.
+     * @param dstBegin index in the array to copy to.
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        checkRange(srcBegin, srcEnd);
+        if (srcBegin == srcEnd) {
+            return;
+        }
+        int piece = findPiece(srcBegin);
+        int offset = srcBegin;
+        int target = dstBegin;
+        while (offset < srcEnd) {
+            Piece p = pieces.get(piece);
+            int from = offset - pieceStarts[piece];
+            int count = Math.min(p.length - from, srcEnd - offset);
+            p.buffer.getChars(p.start + from, p.start + from + count, dst, target);
+            offset += count;
+            target += count;
+            piece++;
+        }
+    }
+
+    /**
+     * Writes the whole document, piece by piece.
+     * @param writer to write to.
+     * @throws IOException
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (Piece p : pieces) {
+            p.buffer.writeTo(writer, p.start, p.length);
+        }
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search forward.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    public int indexOf(String text, int fromIndex) {
+        return indexOf(text, fromIndex, length);
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search forward.
+     * @param toIndex offset before which the occurence must start.
+     * @return the offset of the first occurence of the text starting within
+     * the range, or -1.
+     */
+    public int indexOf(String text, int fromIndex, int toIndex) {
+        int textLength = text.length();
+        int from = Math.max(0, fromIndex);
+        if (textLength == 0) {
+            return from <= length ? from : -1;
+        }
+        char first = text.charAt(0);
+        int last = Math.min(toIndex - 1, length - textLength);
+        for (int i = from; i <= last; i++) {
+            if (charAt(i) == first && regionMatches(i, text)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search backwards.
+     * @return the offset of the last occurence of the text, or -1.
+     */
+    public int lastIndexOf(String text, int fromIndex) {
+        return lastIndexOf(text, fromIndex, 0);
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search backwards.
+     * @param toIndex offset at or after which the occurence must start.
+     * @return the offset of the last occurence of the text starting within
+     * the range, or -1.
+     */
+    public int lastIndexOf(String text, int fromIndex, int toIndex) {
+        int textLength = text.length();
+        int from = Math.min(fromIndex, length - textLength);
+        if (textLength == 0) {
+            return from;
+        }
+        char first = text.charAt(0);
+        for (int i = from; i >= Math.max(0, toIndex); i--) {
+            if (charAt(i) == first && regionMatches(i, text)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @param text to be compared.
+     * @return true if the document contains the text at the offset.
+     */
+    public boolean regionMatches(int offset, CharSequence text) {
+        if (offset < 0 || offset + text.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (charAt(offset + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of pieces in the piece table.
+     */
+    public int getPieceCount() {
+        return pieces.size();
+    }
+
+    /**
+     *
+     * @return a counter incremented on every change to the document.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds a listener notified of every change to the document.
+     * @param listener to be added.
+     */
+    public void addListener(DocumentListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener to be removed.
+     */
+    public void removeListener(DocumentListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Takes a copy of the document which is not affected by later edits, so
+     * it can be read on a background thread while this document is edited.
+     * Only the list of pieces is copied: the chars already in the buffers
+     * are never modified, so both documents share them.
+     * @return an independent copy of this document, without listeners.
+     */
+    public Document snapshot() {
+        Document snapshot = new Document();
+        AddBuffer frozenAddBuffer = addBuffer.freeze();
+        for (Piece p : pieces) {
+            Buffer buffer = p.buffer == addBuffer ? frozenAddBuffer : p.buffer;
+            snapshot.pieces.add(new Piece(buffer, p.start, p.length));
+        }
+        snapshot.length = length;
+        snapshot.version = version;
+        return snapshot;
+    }
+
+    /**
+     *
+     * @return the whole document as a String.
+     */
+    @Override
+    public String toString() {
+        return getText(0, length);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Throws an exception if the range is not within the document.
+     */
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+    }
+
+    /**
+     * Makes sure a piece starts at the offset.
+     * @param offset in the document.
+     * @return the index of the piece starting at the offset, or the number of
+     * pieces if the offset is the end of the document.
+     */
+    private int split(int offset) {
+        if (offset == length) {
+            return pieces.size();
+        }
+        int piece = findPiece(offset);
+        int pieceStart = pieceStarts[piece];
+        if (pieceStart == offset) {
+            return piece;
+        }
+        Piece p = pieces.get(piece);
+        int left = offset - pieceStart;
+        pieces.set(piece, new Piece(p.buffer, p.start, left));
+        pieces.add(piece + 1, new Piece(p.buffer, p.start + left, p.length - left));
+        invalidatePieceStarts(piece + 1);
+        return piece + 1;
+    }
+
+    /**
+     *
+     * @param offset in the document, lower than its length.
+     * @return the index of the piece holding the offset.
+     */
+    private int findPiece(int offset) {
+        updatePieceStarts();
+        int low = 0;
+        int high = pieces.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (pieceStarts[middle] <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Marks the start offsets of the pieces from an index as outdated.
+     * @param piece index of the first outdated piece.
+     */
+    private void invalidatePieceStarts(int piece) {
+        validPieceStarts = Math.min(validPieceStarts, piece);
+    }
+
+    /**
+     * Recomputes the outdated start offsets of the pieces.
+     */
+    private void updatePieceStarts() {
+        int count = pieces.size();
+        if (validPieceStarts >= count) {
+            return;
+        }
+        if (pieceStarts.length < count) {
+            pieceStarts = Arrays.copyOf(pieceStarts, Math.max(count, pieceStarts.length * 2));
+        }
+        int offset = validPieceStarts == 0 ? 0 : pieceStarts[validPieceStarts - 1] + pieces.get(validPieceStarts - 1).length;
+        for (int i = validPieceStarts; i < count; i++) {
+            pieceStarts[i] = offset;
+            offset += pieces.get(i).length;
+        }
+        validPieceStarts = count;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * A range of chars in one of the buffers.
+     */
+    private static final class Piece {
+        private final Buffer buffer;
+        private final int start;
+        private final int length;
+
+        private Piece(Buffer buffer, int start, int length) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A buffer of chars referenced by pieces. Chars are never modified once
+     * they are in a buffer.
+     */
+    private interface Buffer {
+        char charAt(int index);
+        void getChars(int start, int end, char[] dst, int dstBegin);
+        void writeTo(Writer writer, int start, int length) throws IOException;
+    }
+
+    /**
+     * The original buffer, holding the text loaded in the document.
+     */
+    private static final class ArrayBuffer implements Buffer {
+        private final char[] chars;
+
+        private ArrayBuffer(char[] chars) {
+            this.chars = chars;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            System.arraycopy(chars, start, dst, dstBegin, end - start);
+        }
+
+        @Override
+        public void writeTo(Writer writer, int start, int length) throws IOException {
+            writer.write(chars, start, length);
+        }
+    }
+
+    /**
+     * The original buffer of a released document, which reads its text back
+     * from a source the first time it is read, on any thread.
+     */
+    private static final class ReleasedBuffer implements Buffer {
+        private final Callable<CharBuffer> source;
+        private final int length;
+        private volatile char[] chars;
+
+        private ReleasedBuffer(Callable<CharBuffer> source, int length) {
+            this.source = source;
+            this.length = length;
+        }
+
+        /**
+         *
+         * @return the text, read from the source if it was not read yet.
+         */
+        private char[] chars() {
+            char[] result = chars;
+            if (result == null) {
+                synchronized (this) {
+                    if (chars == null) {
+                        try {
+                            restore(source.call());
+                        }
+                        catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                        catch (Exception ex) {
+                            throw new IllegalStateException("The released text could not be read back.", ex);
+                        }
+                    }
+                    result = chars;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Sets the text read from the source, unless it was already read.
+         * @param text of the released document.
+         */
+        private synchronized void restore(CharBuffer text) {
+            if (chars != null) {
+                return;
+            }
+            if (text == null || text.remaining() != length) {
+                throw new IllegalStateException("The released text was read back with another length.");
+            }
+            if (text.hasArray() && text.arrayOffset() + text.position() == 0 && text.array().length - length <= length / 4) {
+                chars = text.array();
+            }
+            else {
+                char[] copy = new char[length];
+                text.duplicate().get(copy);
+                chars = copy;
+            }
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars()[index];
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            System.arraycopy(chars(), start, dst, dstBegin, end - start);
+        }
+
+        @Override
+        public void writeTo(Writer writer, int start, int length) throws IOException {
+            writer.write(chars(), start, length);
+        }
+    }
+
+    /**
+     * The add buffer, holding all the text inserted in the document. It is
+     * made of fixed size chunks so appending never copies the chars already
+     * in the buffer.
+     */
+    private static final class AddBuffer implements Buffer {
+        private static final int CHUNK_SHIFT = 14;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+        private char[][] chunks = new char[4][];
+        private int length;
+
+        private int length() {
+            return length;
+        }
+
+        /**
+         * Appending only writes after the current length, so a copy of the
+         * chunk table sees the chars already in the buffer unchanged.
+         * @return a copy of this buffer sharing its chunks.
+         */
+        private AddBuffer freeze() {
+            AddBuffer frozen = new AddBuffer();
+            frozen.chunks = chunks.clone();
+            frozen.length = length;
+            return frozen;
+        }
+
+        private void append(String text) {
+            int offset = 0;
+            while (offset < text.length()) {
+                int chunk = length >>> CHUNK_SHIFT;
+                if (chunk == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, chunks.length * 2);
+                }
+                if (chunks[chunk] == null) {
+                    chunks[chunk] = new char[CHUNK_SIZE];
+                }
+                int position = length & CHUNK_MASK;
+                int count = Math.min(CHUNK_SIZE - position, text.length() - offset);
+                text.getChars(offset, offset + count, chunks[chunk], position);
+                offset += count;
+                length += count;
+            }
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            int index = start;
+            int target = dstBegin;
+            while (index < end) {
+                int position = index & CHUNK_MASK;
+                int count = Math.min(CHUNK_SIZE - position, end - index);
+                System.arraycopy(chunks[index >>> CHUNK_SHIFT], position, dst, target, count);
+                index += count;
+                target += count;
+            }
+        }
+
+        @Override
+        public void writeTo(Writer writer, int start, int length) throws IOException {
+            int index = start;
+            int end = start + length;
+            while (index < end) {
+                int position = index & CHUNK_MASK;
+                int count = Math.min(CHUNK_SIZE - position, end - index);
+                writer.write(chunks[index >>> CHUNK_SHIFT], position, count);
+                index += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+/**
+ * A listener notified of every change made to a Document.
+ */
+public interface DocumentListener {
+
+    /**
+     * Called after a range of the document was replaced.
+     * @param document which changed.
+     * @param offset at which the change was made.
+     * @param removedText which was removed at the offset.
+     * @param insertedText which was inserted at the offset.
+     */
+    void documentChanged(Document document, int offset, String removedText, String insertedText);
+
+    /**
+     * Called after the occurences of a text at many offsets were replaced at
+     * once. By default, each occurence is reported to documentChanged, from
+     * the first to the last, at its offset once the previous ones were
+     * replaced, so a listener only overrides this to handle the whole batch
+     * faster.
+     * @param document which changed.
+     * @param offsets of the occurences before the change, sorted. The array
+     * must not be modified.
+     * @param removedText which was removed at each offset.
+     * @param insertedText which was inserted at each offset.
+     */
+    default void documentReplacedAll(Document document, int[] offsets, String removedText, String insertedText) {
+        int delta = insertedText.length() - removedText.length();
+        for (int i = 0; i < offsets.length; i++) {
+            documentChanged(document, offsets[i] + i * delta, removedText, insertedText);
+        }
+    }
+
+    /**
+     * Called after many ranges were replaced at once, each with its own text.
+     * By default, each range is reported to documentChanged, from the first
+     * to the last, at its offset once the previous ones were replaced, so a
+     * listener only overrides this to handle the whole batch faster.
+     * @param document which changed.
+     * @param offsets of the ranges before the change, sorted. The array must
+     * not be modified.
+     * @param removedTexts which were removed at each offset.
+     * @param insertedTexts which were inserted at each offset.
+     */
+    default void documentReplacedRanges(Document document, int[] offsets, String[] removedTexts, String[] insertedTexts) {
+        int delta = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            documentChanged(document, offsets[i] + delta, removedTexts[i], insertedTexts[i]);
+            delta += insertedTexts[i].length() - removedTexts[i].length();
+        }
+    }
+
+    /**
+     * Called after the whole content of the document was replaced, for
+     * example when a file was loaded in it.
+     * @param document which was reset.
+     */
+    default void documentReset(Document document) {
+    }
+}
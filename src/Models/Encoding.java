@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The charset of a file, and whether the file starts with a byte order mark.
+ * A byte order mark is not part of the text of a document: it is skipped
+ * when the file is loaded and written again when it is saved.
+ */
+public final class Encoding {
+    /**
+     * UTF-8 without a byte order mark, the encoding of new files.
+     */
+    public static final Encoding UTF_8 = new Encoding(StandardCharsets.UTF_8, false);
+    private final Charset charset;
+    private final boolean bom;
+
+    /**
+     * Constructs a new Encoding.
+     * @param charset of the file.
+     * @param bom true if the file starts with a byte order mark. Only UTF-8,
+     * UTF-16 and UTF-32 with an explicit byte order have one.
+     */
+    public Encoding(Charset charset, boolean bom) {
+        this.charset = charset;
+        this.bom = bom && bomOf(charset).length > 0;
+    }
+
+    /**
+     *
+     * @return the charset of the file.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     *
+     * @return true if the file starts with a byte order mark.
+     */
+    public boolean hasBom() {
+        return bom;
+    }
+
+    /**
+     *
+     * @return the bytes of the byte order mark written at the start of the
+     * file, which are none if it has no byte order mark.
+     */
+    public byte[] getBom() {
+        return bom ? bomOf(charset) : new byte[0];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Encoding)) {
+            return false;
+        }
+        Encoding encoding = (Encoding) other;
+        return charset.equals(encoding.charset) && bom == encoding.bom;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * charset.hashCode() + (bom ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return bom ? charset.name() + " with BOM" : charset.name();
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param charset of a file.
+     * @return the byte order mark of the charset, or no bytes if the charset
+     * has none.
+     */
+    private static byte[] bomOf(Charset charset) {
+        switch (charset.name()) {
+            case "UTF-8":
+                return new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+            case "UTF-16BE":
+                return new byte[] {(byte) 0xFE, (byte) 0xFF};
+            case "UTF-16LE":
+                return new byte[] {(byte) 0xFF, (byte) 0xFE};
+            case "UTF-32BE":
+                return new byte[] {0, 0, (byte) 0xFE, (byte) 0xFF};
+            case "UTF-32LE":
+                return new byte[] {(byte) 0xFF, (byte) 0xFE, 0, 0};
+            default:
+                return new byte[0];
+        }
+    }
+}
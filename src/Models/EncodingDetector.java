@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Detects the encoding of a file from its first bytes, or that it is binary.
+ * A byte order mark gives the encoding right away. Otherwise the bytes are
+ * checked to be valid UTF-8, skipping ASCII eight bytes at a time, since a
+ * long with none of its high bits set holds eight ASCII bytes; only the
+ * other bytes are checked one by one. Bytes which are not valid UTF-8 are
+ * taken to be in the legacy charset of the settings.
+ * Only a prefix of a file is checked, see Settings.getEncodingDetectionLimit,
+ * and the loader checks the rest of the file while decoding it.
+ */
+public class EncodingDetector {
+    /**
+     * The number of first bytes of a file checked to tell if it is binary.
+     */
+    public static final int BINARY_CHECK_SIZE = 8192;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private EncodingDetector() {
+    }
+
+    /**
+     *
+     * @param head first bytes of a file, from its position to its limit,
+     * which are left unchanged.
+     * @param complete true if the bytes are the whole file, so a sequence cut
+     * short at their end is not valid.
+     * @return the encoding given by the byte order mark, UTF-8 if the bytes
+     * are valid UTF-8, or else the legacy encoding.
+     */
+    public static Encoding detect(ByteBuffer head, boolean complete) {
+        Encoding encoding = detectBom(head);
+        if (encoding != null) {
+            return encoding;
+        }
+        return isUtf8(head, complete) ? Encoding.UTF_8 : legacy();
+    }
+
+    /**
+     *
+     * @param head first bytes of a file, which are left unchanged.
+     * @return the encoding given by the byte order mark at the start of the
+     * bytes, or null if there is none.
+     */
+    public static Encoding detectBom(ByteBuffer head) {
+        int start = head.position();
+        int length = head.remaining();
+        int b0 = length > 0 ? head.get(start) & 0xFF : -1;
+        int b1 = length > 1 ? head.get(start + 1) & 0xFF : -1;
+        int b2 = length > 2 ? head.get(start + 2) & 0xFF : -1;
+        int b3 = length > 3 ? head.get(start + 3) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            return new Encoding(StandardCharsets.UTF_8, true);
+        }
+        // UTF-32LE starts like UTF-16LE, so it is checked first.
+        if (b0 == 0xFF && b1 == 0xFE && b2 == 0 && b3 == 0 && Charset.isSupported("UTF-32LE")) {
+            return new Encoding(Charset.forName("UTF-32LE"), true);
+        }
+        if (b0 == 0 && b1 == 0 && b2 == 0xFE && b3 == 0xFF && Charset.isSupported("UTF-32BE")) {
+            return new Encoding(Charset.forName("UTF-32BE"), true);
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            return new Encoding(StandardCharsets.UTF_16LE, true);
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            return new Encoding(StandardCharsets.UTF_16BE, true);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param bytes to be checked, from their position to their limit.
+     * @return true if all the bytes are ASCII.
+     */
+    public static boolean isAscii(ByteBuffer bytes) {
+        return skipAscii(bytes, bytes.position(), bytes.limit()) == bytes.limit();
+    }
+
+    /**
+     *
+     * @param bytes to be checked, from their position to their limit.
+     * @param complete true if a sequence cut short at the end of the bytes
+     * is not valid. Otherwise it is valid if its bytes so far are.
+     * @return true if the bytes are valid UTF-8: no overlong sequence, no
+     * surrogate and nothing above U+10FFFF.
+     */
+    public static boolean isUtf8(ByteBuffer bytes, boolean complete) {
+        int end = bytes.limit();
+        int i = skipAscii(bytes, bytes.position(), end);
+        while (i < end) {
+            int b = bytes.get(i) & 0xFF;
+            if (b < 0x80) {
+                i = skipAscii(bytes, i + 1, end);
+                continue;
+            }
+            int length;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                length = 2;
+            }
+            else if (b >= 0xE0 && b <= 0xEF) {
+                length = 3;
+                // No overlong sequences nor surrogates.
+                min = b == 0xE0 ? 0xA0 : 0x80;
+                max = b == 0xED ? 0x9F : 0xBF;
+            }
+            else if (b >= 0xF0 && b <= 0xF4) {
+                length = 4;
+                // No overlong sequences nor code points above U+10FFFF.
+                min = b == 0xF0 ? 0x90 : 0x80;
+                max = b == 0xF4 ? 0x8F : 0xBF;
+            }
+            else {
+                return false;
+            }
+            int available = Math.min(length, end - i);
+            for (int k = 1; k < available; k++) {
+                int c = bytes.get(i + k) & 0xFF;
+                if (c < (k == 1 ? min : 0x80) || c > (k == 1 ? max : 0xBF)) {
+                    return false;
+                }
+            }
+            if (available < length) {
+                return !complete;
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param bytes of a file, from its start.
+     * @return true if there is a zero byte in the first block of the file.
+     * Files in UTF-16 or UTF-32 have zero bytes, so a file with a byte order
+     * mark should not be checked.
+     */
+    public static boolean isBinary(ByteBuffer bytes) {
+        int end = Math.min(bytes.limit(), BINARY_CHECK_SIZE);
+        for (int i = 0; i < end; i++) {
+            if (bytes.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return the encoding of the files which are not valid UTF-8 and have
+     * no byte order mark.
+     */
+    public static Encoding legacy() {
+        return new Encoding(Settings.getLegacyCharset(), false);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param bytes to be checked.
+     * @param from index of the first byte to be checked.
+     * @param end index after the last byte to be checked.
+     * @return the index of the first byte which is not ASCII, or the end.
+     */
+    private static int skipAscii(ByteBuffer bytes, int from, int end) {
+        int i = from;
+        while (i + 8 <= end && (bytes.getLong(i) & HIGH_BITS) == 0) {
+            i += 8;
+        }
+        while (i < end && bytes.get(i) >= 0) {
+            i++;
+        }
+        return i;
+    }
+}
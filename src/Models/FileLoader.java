@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.StandardOpenOption;
+import javafx.concurrent.Task;
+
+/**
+ * A background task which reads a file into memory.
+ * The file is read through a FileChannel in chunks and decoded with a
+ * CharsetDecoder straight into a single CharBuffer sized from the file length,
+ * so no intermediate copies of the text are made. The line starts and the
+ * content hash of the text are found on the same background thread. The task reports its
+ * progress in bytes and stops as soon as it is cancelled.
+ * Unless an encoding is given, it is detected from the first bytes of the
+ * file by the EncodingDetector. A file detected as UTF-8 is then decoded
+ * strictly, which checks the rest of the file without another pass, and is
+ * decoded again with the legacy charset if it turns out not to be UTF-8.
+ */
+public class FileLoader extends Task<CharBuffer> {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private final File file;
+    private final Encoding givenEncoding;
+    private volatile Encoding encoding;
+    private volatile int[] lineStarts;
+    private volatile long[] blockHashes;
+
+    /**
+     * Constructs a new FileLoader detecting the encoding of the file.
+     * @param file to be loaded.
+     */
+    public FileLoader(File file) {
+        this(file, (Encoding) null);
+    }
+
+    /**
+     * Constructs a new FileLoader.
+     * @param file to be loaded.
+     * @param charset used to decode the file.
+     */
+    public FileLoader(File file, Charset charset) {
+        this(file, new Encoding(charset, false));
+    }
+
+    /**
+     * Constructs a new FileLoader.
+     * @param file to be loaded.
+     * @param encoding used to decode the file, whose byte order mark is
+     * skipped, or null to detect it.
+     */
+    public FileLoader(File file, Encoding encoding) {
+        this.file = file;
+        this.givenEncoding = encoding;
+    }
+
+    /**
+     *
+     * @return the file being loaded.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return the encoding of the file, given or detected, once the task
+     * succeeded.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     *
+     * @return the line start offsets of the loaded text, once the task
+     * succeeded.
+     */
+    public int[] getLineStarts() {
+        return lineStarts;
+    }
+
+    /**
+     *
+     * @return the ContentHash of the loaded text, once the task succeeded.
+     */
+    public long getContentHash() {
+        return ContentHash.combine(blockHashes);
+    }
+
+    /**
+     *
+     * @return the ContentHash of each block of the loaded text, once the task
+     * succeeded.
+     */
+    public long[] getBlockHashes() {
+        return blockHashes;
+    }
+
+    /**
+     *
+     * @return the decoded text, flipped for reading, or null if the task was
+     * cancelled.
+     * @throws IOException
+     */
+    @Override
+    protected CharBuffer call() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, Settings.getEncodingDetectionLimit()));
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+                // Read the whole prefix.
+            }
+            head.flip();
+            Encoding detected = givenEncoding != null ? givenEncoding : EncodingDetector.detect(head, head.limit() == size);
+            boolean checked = givenEncoding != null || !detected.equals(Encoding.UTF_8) || head.limit() == size;
+            CharBuffer text;
+            try {
+                text = decode(channel, detected, head, !checked);
+            }
+            catch (MalformedInputException ex) {
+                // Only the prefix was valid UTF-8.
+                detected = EncodingDetector.legacy();
+                text = decode(channel, detected, head, false);
+            }
+            encoding = detected;
+            if (text != null) {
+                lineStarts = LineIndex.findLineStarts(text);
+                blockHashes = ContentHash.hashBlocks(text);
+            }
+            return text;
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Decodes the whole channel into a CharBuffer, after the byte order mark
+     * of the encoding if the file starts with it.
+     * @param channel to be read.
+     * @param encoding of the file.
+     * @param head first bytes of the file, which were already read.
+     * @param strict true to fail on bytes which are not valid in the
+     * charset, instead of replacing them.
+     * @return the decoded text or null if the task was cancelled.
+     * @throws MalformedInputException if the decoding is strict and the bytes
+     * are not valid.
+     * @throws IOException
+     */
+    private CharBuffer decode(FileChannel channel, Encoding encoding, ByteBuffer head, boolean strict) throws IOException {
+        long size = channel.size();
+        byte[] bom = encoding.getBom();
+        int skip = head.limit() >= bom.length && ByteBuffer.wrap(bom).equals(ByteBuffer.wrap(head.array(), 0, bom.length)) ? bom.length : 0;
+        channel.position(skip);
+        CodingErrorAction action = strict ? CodingErrorAction.REPORT : CodingErrorAction.REPLACE;
+        CharsetDecoder decoder = encoding.getCharset().newDecoder()
+                .onMalformedInput(action)
+                .onUnmappableCharacter(action);
+        CharBuffer out = CharBuffer.allocate(capacityFor(size - skip, decoder.maxCharsPerByte()));
+        ByteBuffer in = ByteBuffer.allocateDirect((int) Math.max(16, Math.min(size, CHUNK_SIZE)));
+        long bytesRead = skip;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            if (isCancelled()) {
+                return null;
+            }
+            int read = channel.read(in);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                bytesRead += read;
+            }
+            in.flip();
+            out = decode(decoder, in, out, endOfInput);
+            in.compact();
+            updateProgress(bytesRead, size);
+        }
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decodes the available bytes, growing the output if the file grew
+     * while it was being read.
+     */
+    private CharBuffer decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, boolean endOfInput)
+            throws CharacterCodingException {
+        CharBuffer target = out;
+        CoderResult result = decoder.decode(in, target, endOfInput);
+        while (result.isOverflow()) {
+            target = grow(target);
+            result = decoder.decode(in, target, endOfInput);
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        return target;
+    }
+
+    /**
+     *
+     * @param size of the file in bytes.
+     * @param maxCharsPerByte of the decoder.
+     * @return the number of chars that can hold the decoded file.
+     */
+    private int capacityFor(long size, float maxCharsPerByte) {
+        long capacity = (long) Math.ceil(size * (double) maxCharsPerByte);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError(file + " is too large to be loaded in the editor.");
+        }
+        return (int) Math.max(capacity, 16);
+    }
+
+    /**
+     *
+     * @param buffer to be grown.
+     * @return a larger copy of the buffer, ready for writing.
+     */
+    private CharBuffer grow(CharBuffer buffer) {
+        long capacity = Math.min(Integer.MAX_VALUE - 8L, buffer.capacity() * 2L);
+        if (capacity == buffer.capacity()) {
+            throw new OutOfMemoryError(file + " is too large to be loaded in the editor.");
+        }
+        CharBuffer grown = CharBuffer.allocate((int) capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import javafx.concurrent.Task;
+
+/**
+ * Replaces a text, or the matches of a regular expression, in the files of a
+ * directory tree. A preview walks the tree and counts the replacements of
+ * each file without writing anything; the task returned by replacing() then
+ * makes them. The files are processed on the ForkJoinPool of Workers, so at
+ * most one file per processor is open at a time.
+ * A file is never read whole: it is decoded in the encoding detected from
+ * its first bytes, as the editor loads it, and streamed through a
+ * StreamReplace, and the result is encoded in the same encoding into a
+ * temporary file next to it, which then replaces it with an atomic move, as
+ * FileSaver does. Binary files are skipped, and so are files which
+ * are not valid in their encoding, or in which the replacement cannot be
+ * encoded, as writing them back would change them.
+ * Files open in a tab are not read from the disk: they are searched in a
+ * snapshot of their document, and the replacements found are left to be
+ * applied to the document, as one undoable edit, by the caller.
+ */
+public class FileReplace extends Task<List<FileReplace.FileResult>> {
+    private final Path root;
+    private final List<Path> files;
+    private final String text;
+    private final String replacement;
+    private final boolean regex;
+    private final Map<Path, Supplier<Replacement>> openFiles;
+    private final Set<Path> excludedFiles;
+    private final StreamReplace stream;
+    private volatile List<FileResult> results;
+
+    /**
+     * Constructs a new FileReplace previewing the replacements in a
+     * directory tree.
+     * @param root directory in which to replace.
+     * @param text to be replaced, not empty, or a regular expression.
+     * @param replacement of each occurence. For a regular expression, $n and
+     * ${name} refer to its groups.
+     * @param regex true if the text is a regular expression.
+     */
+    public FileReplace(Path root, String text, String replacement, boolean regex) {
+        this(root.toAbsolutePath().normalize(), null, text, replacement, regex);
+    }
+
+    private FileReplace(Path root, List<Path> files, String text, String replacement, boolean regex) {
+        this.root = root;
+        this.files = files;
+        this.text = text;
+        this.replacement = replacement;
+        this.regex = regex;
+        this.openFiles = new HashMap<>();
+        this.excludedFiles = new HashSet<>();
+        this.stream = new StreamReplace(text, replacement, regex, this::isCancelled);
+    }
+
+    /**
+     * Searches a file open in a tab in a snapshot of its document instead of
+     * on the disk. This must be called before the task runs.
+     * @param file of the tab.
+     * @param snapshot of the document of the tab.
+     * @param searchIndex of the snapshot.
+     */
+    public void addOpenFile(Path file, Document snapshot, SearchIndex searchIndex) {
+        openFiles.put(key(file), () -> Replacement.find(snapshot, searchIndex, text, replacement, regex));
+    }
+
+    /**
+     * Leaves a file untouched, for example because it is open in a tab which
+     * cannot be edited. This must be called before the task runs.
+     * @param file to be skipped.
+     */
+    public void excludeFile(Path file) {
+        excludedFiles.add(key(file));
+    }
+
+    /**
+     *
+     * @return true if this task only counts the replacements.
+     */
+    public boolean isPreview() {
+        return files == null;
+    }
+
+    /**
+     * Must be called after this preview succeeded.
+     * @return a new task making, in the files on disk, the replacements this
+     * preview found. The replacements in the files open in a tab are not
+     * part of it.
+     */
+    public FileReplace replacing() {
+        List<Path> paths = new ArrayList<>();
+        for (FileResult result : results) {
+            if (result.getReplacement() == null && result.getError() == null) {
+                paths.add(result.getFile());
+            }
+        }
+        return new FileReplace(root, paths, text, replacement, regex);
+    }
+
+    /**
+     *
+     * @return the files with a replacement, or which were skipped for
+     * another reason than being binary, in the order of the walk.
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     * expression is not valid.
+     * @throws IllegalArgumentException if the replacement refers to a group
+     * the regular expression does not have.
+     * @throws IOException if the directory cannot be walked.
+     * @throws InterruptedException if the task is cancelled.
+     */
+    @Override
+    protected List<FileResult> call() throws IOException, InterruptedException {
+        if (regex) {
+            // Fail before walking the tree.
+            Regex.checkReplacement(text, replacement);
+        }
+        List<Path> paths = isPreview() ? walk() : files;
+        List<ForkJoinTask<FileResult>> tasks = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            tasks.add(Workers.parallel().submit(() -> process(path)));
+        }
+        List<FileResult> results = new ArrayList<>();
+        int done = 0;
+        for (ForkJoinTask<FileResult> task : tasks) {
+            try {
+                FileResult result = task.get();
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+            done++;
+            updateProgress(done, tasks.size());
+            updateMessage(done + " of " + tasks.size() + " Files.");
+        }
+        this.results = results;
+        return results;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @return the regular files of the tree. Links are not followed.
+     * @throws IOException
+     */
+    private List<Path> walk() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (isCancelled()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                if (attributes.isRegularFile()) {
+                    paths.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return paths;
+    }
+
+    /**
+     * Counts or makes the replacements of a file.
+     * @param file to be processed.
+     * @return the result, or null if there is nothing to replace in the
+     * file, it is binary or the task was cancelled.
+     */
+    private FileResult process(Path file) {
+        if (isCancelled()) {
+            return null;
+        }
+        Path relativePath = root.relativize(file);
+        if (excludedFiles.contains(file)) {
+            return new FileResult(relativePath, file, 0, null, "open in a tab");
+        }
+        Encoding encoding = null;
+        try {
+            Supplier<Replacement> openFile = openFiles.get(file);
+            if (openFile != null) {
+                Replacement found = openFile.get();
+                return found.getCount() == 0 ? null : new FileResult(relativePath, file, found.getCount(), found, null);
+            }
+            encoding = detect(file);
+            if (encoding == null) {
+                return null;
+            }
+            int count;
+            try {
+                count = countOrReplace(file, encoding);
+            }
+            catch (MalformedInputException ex) {
+                if (!encoding.equals(Encoding.UTF_8)) {
+                    throw ex;
+                }
+                // Only the first bytes were valid UTF-8, as in FileLoader.
+                encoding = EncodingDetector.legacy();
+                count = countOrReplace(file, encoding);
+            }
+            if (count < 0) {
+                return new FileResult(relativePath, file, 0, null, "replacement not writable in " + encoding.getCharset().name());
+            }
+            return count == 0 ? null : new FileResult(relativePath, file, count, null, null);
+        }
+        catch (CancellationException ex) {
+            return null;
+        }
+        catch (CharacterCodingException ex) {
+            return new FileResult(relativePath, file, 0, null, "not " + encoding.getCharset().name());
+        }
+        catch (IOException ex) {
+            return new FileResult(relativePath, file, 0, null, "cannot be read or written");
+        }
+        catch (UncheckedIOException ex) {
+            // The released text of the open tab could not be read back.
+            return new FileResult(relativePath, file, 0, null, "cannot be read back in its tab");
+        }
+        catch (Regex.TimeoutException ex) {
+            return new FileResult(relativePath, file, 0, null, "search timed out");
+        }
+        catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            // The replacement is checked before, so this is only a guard.
+            return new FileResult(relativePath, file, 0, null, "invalid replacement");
+        }
+    }
+
+    /**
+     * Counts or makes the replacements of a file, as this task does.
+     * @param file to be processed.
+     * @param encoding of the file.
+     * @return the number of replacements, or -1 if the replacement cannot be
+     * encoded in the encoding of the file.
+     * @throws MalformedInputException if the file is not valid in the
+     * encoding.
+     * @throws IOException
+     */
+    private int countOrReplace(Path file, Encoding encoding) throws IOException {
+        if (!encoding.getCharset().newEncoder().canEncode(replacement)) {
+            return -1;
+        }
+        return isPreview() ? count(file, encoding) : replace(file, encoding);
+    }
+
+    /**
+     *
+     * @param file to be searched.
+     * @param encoding of the file.
+     * @return the number of replacements to be made in the file.
+     * @throws IOException
+     */
+    private int count(Path file, Encoding encoding) throws IOException {
+        try (Reader in = open(file, encoding)) {
+            return stream.replace(in, null);
+        }
+    }
+
+    /**
+     * Writes the file with its replacements to a temporary file, which then
+     * replaces it. The temporary file is deleted if anything fails, the task
+     * is cancelled or there is nothing to replace.
+     * @param file to be replaced in.
+     * @param encoding of the file, in which it is written again.
+     * @return the number of replacements made.
+     * @throws IOException
+     */
+    private int replace(Path file, Encoding encoding) throws IOException {
+        Path temp = AtomicWrite.createTempFile(file);
+        boolean moved = false;
+        try {
+            int count;
+            try (Reader in = open(file, encoding); FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer bom = ByteBuffer.wrap(encoding.getBom());
+                while (bom.hasRemaining()) {
+                    channel.write(bom);
+                }
+                Writer out = Channels.newWriter(channel, encoding.getCharset().newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE), -1);
+                count = stream.replace(in, out);
+                out.flush();
+                if (count > 0 && Settings.getSyncPolicy() != SyncPolicy.NONE) {
+                    channel.force(true);
+                }
+            }
+            if (count > 0) {
+                AtomicWrite.move(temp, file);
+                moved = true;
+                if (Settings.getSyncPolicy() == SyncPolicy.FULL) {
+                    AtomicWrite.syncDirectory(file.getParent());
+                }
+            }
+            return count;
+        }
+        finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param file to be read.
+     * @return the encoding of the file, detected from its first bytes as
+     * FileLoader does, or null if the file is binary. A file with a byte
+     * order mark is never binary.
+     * @throws IOException
+     */
+    static Encoding detect(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int limit = Math.max(Settings.getEncodingDetectionLimit(), EncodingDetector.BINARY_CHECK_SIZE);
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, limit));
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+                // Read the whole prefix.
+            }
+            head.flip();
+            Encoding encoding = EncodingDetector.detectBom(head);
+            if (encoding != null) {
+                return encoding;
+            }
+            return EncodingDetector.isBinary(head) ? null : EncodingDetector.detect(head, head.limit() == size);
+        }
+    }
+
+    /**
+     *
+     * @param file to be read, which is not binary.
+     * @param encoding of the file.
+     * @return a reader strictly decoding the file, after its byte order mark
+     * if the encoding has one.
+     * @throws IOException
+     */
+    static Reader open(Path file, Encoding encoding) throws IOException {
+        InputStream stream = new BufferedInputStream(Files.newInputStream(file));
+        try {
+            long skip = encoding.getBom().length;
+            while (skip > 0) {
+                long skipped = stream.skip(skip);
+                if (skipped <= 0) {
+                    break;
+                }
+                skip -= skipped;
+            }
+            return new InputStreamReader(stream, encoding.getCharset().newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT));
+        }
+        catch (IOException | RuntimeException ex) {
+            stream.close();
+            throw ex;
+        }
+    }
+
+    /**
+     *
+     * @param file a path.
+     * @return the absolute and normal form of the path, to compare it with
+     * the paths of the walk.
+     */
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * The replacements of a file.
+     */
+    public static final class FileResult {
+        private final Path relativePath;
+        private final Path file;
+        private final int count;
+        private final Replacement replacement;
+        private final String error;
+
+        private FileResult(Path relativePath, Path file, int count, Replacement replacement, String error) {
+            this.relativePath = relativePath;
+            this.file = file;
+            this.count = count;
+            this.replacement = replacement;
+            this.error = error;
+        }
+
+        /**
+         *
+         * @return the path of the file.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return the number of replacements in the file.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return the replacements to be applied to the document of the tab
+         * in which the file is open, or null if it is not open.
+         */
+        public Replacement getReplacement() {
+            return replacement;
+        }
+
+        /**
+         *
+         * @return why the file was skipped, or null.
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return relativePath + ": skipped, " + error;
+            }
+            return relativePath + ": " + count + (count == 1 ? " Replacement" : " Replacements") + (replacement != null ? " (Open Tab)" : "");
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javafx.concurrent.Task;
+
+/**
+ * A background task which writes a snapshot of a Document to a file.
+ * The text is encoded in chunks with a CharsetEncoder into a FileChannel
+ * opened on a temporary file next to the target, which then replaces the
+ * target with an atomic move. The target is therefore either left as it was
+ * or holds the whole new text, even if the application or the system stops
+ * in the middle of a save. How long the save waits for the device is given
+ * by a SyncPolicy. A text which the charset cannot encode fails the save,
+ * rather than being written with replacement bytes.
+ */
+public class FileSaver extends Task<Void> {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private final Document snapshot;
+    private final File file;
+    private final Encoding encoding;
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * Constructs a new FileSaver.
+     * @param snapshot of the document to be saved. It must not be edited
+     * while the task runs, see Document.snapshot().
+     * @param file to be written.
+     * @param charset used to encode the text.
+     * @param syncPolicy of the save.
+     */
+    public FileSaver(Document snapshot, File file, Charset charset, SyncPolicy syncPolicy) {
+        this(snapshot, file, new Encoding(charset, false), syncPolicy);
+    }
+
+    /**
+     * Constructs a new FileSaver.
+     * @param snapshot of the document to be saved. It must not be edited
+     * while the task runs, see Document.snapshot().
+     * @param file to be written.
+     * @param encoding used to encode the text, whose byte order mark is
+     * written first.
+     * @param syncPolicy of the save.
+     */
+    public FileSaver(Document snapshot, File file, Encoding encoding, SyncPolicy syncPolicy) {
+        this.snapshot = snapshot;
+        this.file = file;
+        this.encoding = encoding;
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     *
+     * @return the file being written.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return the version of the document which is saved.
+     */
+    public long getVersion() {
+        return snapshot.getVersion();
+    }
+
+    /**
+     * Writes the temporary file and moves it over the target. The temporary
+     * file is deleted if anything fails or the task is cancelled.
+     * @return null.
+     * @throws CharacterCodingException if the charset cannot encode the text.
+     * @throws IOException
+     */
+    @Override
+    protected Void call() throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        // Replace the file a link points to, not the link itself.
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath();
+        }
+        Path temp = AtomicWrite.createTempFile(target);
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (!encode(channel)) {
+                    return null;
+                }
+                if (syncPolicy != SyncPolicy.NONE) {
+                    channel.force(true);
+                }
+            }
+            AtomicWrite.move(temp, target);
+            moved = true;
+            if (syncPolicy == SyncPolicy.FULL) {
+                AtomicWrite.syncDirectory(target.getParent());
+            }
+        }
+        finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return null;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Encodes the snapshot chunk by chunk into the channel.
+     * @param channel to be written.
+     * @return false if the task was cancelled.
+     * @throws CharacterCodingException if the charset cannot encode the text.
+     * @throws IOException
+     */
+    private boolean encode(FileChannel channel) throws IOException {
+        CharsetEncoder encoder = encoding.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        char[] chars = new char[CHUNK_SIZE];
+        CharBuffer in = CharBuffer.wrap(chars);
+        ByteBuffer out = ByteBuffer.allocateDirect((int) Math.ceil(CHUNK_SIZE * encoder.maxBytesPerChar()));
+        out.put(encoding.getBom());
+        int length = snapshot.length();
+        int offset = 0;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            if (isCancelled()) {
+                return false;
+            }
+            // A surrogate left over from the previous chunk is still at the
+            // start of the buffer.
+            int count = Math.min(in.remaining(), length - offset);
+            snapshot.getChars(offset, offset + count, chars, in.position());
+            in.position(in.position() + count);
+            offset += count;
+            endOfInput = offset == length;
+            in.flip();
+            encode(encoder, in, out, channel, endOfInput);
+            in.compact();
+            updateProgress(offset, length);
+        }
+        while (encoder.flush(out).isOverflow()) {
+            write(out, channel);
+        }
+        write(out, channel);
+        return true;
+    }
+
+    /**
+     * Encodes the chars in the buffer, writing the bytes whenever the output
+     * buffer is full.
+     * @param encoder used to encode the chars.
+     * @param in chars to be encoded.
+     * @param out buffer for the encoded bytes.
+     * @param channel to be written.
+     * @param endOfInput true if there are no more chars after these.
+     * @throws CharacterCodingException if a char cannot be encoded.
+     * @throws IOException
+     */
+    private static void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out, FileChannel channel, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, out, endOfInput);
+            if (result.isOverflow()) {
+                write(out, channel);
+            }
+            else if (result.isUnderflow()) {
+                return;
+            }
+            else {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Writes and clears the bytes in the buffer.
+     * @param out encoded bytes.
+     * @param channel to be written.
+     * @throws IOException
+     */
+    private static void write(ByteBuffer out, FileChannel channel) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
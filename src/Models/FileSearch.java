@@ -0,0 +1,480 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Searches the files of a directory tree for a text or a regular expression.
+ * Each directory is listed, and each file searched, as a task of the
+ * ForkJoinPool of Workers, so the tree is walked on all the processors.
+ * Files larger than the find in files size limit, and binary files, which
+ * have a zero byte in their first block, are skipped. Small files are read
+ * into memory and larger ones are memory mapped, then decoded in the
+ * encoding detected from their first bytes, as the editor loads them, so the
+ * offsets of the hits match the loaded text.
+ * The hits are handed, in batches, to a consumer on the FX thread while the
+ * search runs; the last batch is handed before the task succeeds. The search
+ * stops after HIT_LIMIT hits.
+ */
+public class FileSearch extends Task<Integer> {
+    private static final int HIT_LIMIT = 100000;
+    private static final int READ_SIZE = 1 << 16;
+    private static final int PREVIEW_LENGTH = 120;
+    private static final int PREVIEW_CONTEXT = 40;
+    private final Path root;
+    private final String text;
+    private final boolean regex;
+    private final Consumer<List<Hit>> consumer;
+    private final Queue<Hit> queue;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicInteger hitCount;
+    private final AtomicInteger fileCount;
+    private final AtomicInteger matchingFileCount;
+    private final AtomicInteger skippedFileCount;
+
+    /**
+     * Constructs a new FileSearch.
+     * @param root directory to be searched.
+     * @param text to be found, not empty, or a regular expression.
+     * @param regex true if the text is a regular expression.
+     * @param consumer of the hits, called on the FX thread.
+     */
+    public FileSearch(Path root, String text, boolean regex, Consumer<List<Hit>> consumer) {
+        this.root = root;
+        this.text = text;
+        this.regex = regex;
+        this.consumer = consumer;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean();
+        this.hitCount = new AtomicInteger();
+        this.fileCount = new AtomicInteger();
+        this.matchingFileCount = new AtomicInteger();
+        this.skippedFileCount = new AtomicInteger();
+    }
+
+    /**
+     *
+     * @return the number of hits found so far.
+     */
+    public int getHitCount() {
+        return Math.min(hitCount.get(), HIT_LIMIT);
+    }
+
+    /**
+     *
+     * @return the number of files searched so far.
+     */
+    public int getFileCount() {
+        return fileCount.get();
+    }
+
+    /**
+     *
+     * @return the number of files with a hit so far.
+     */
+    public int getMatchingFileCount() {
+        return matchingFileCount.get();
+    }
+
+    /**
+     *
+     * @return the number of binary, too large or unreadable files skipped.
+     */
+    public int getSkippedFileCount() {
+        return skippedFileCount.get();
+    }
+
+    /**
+     *
+     * @return true if the search stopped at the hit limit.
+     */
+    public boolean isLimitReached() {
+        return hitCount.get() >= HIT_LIMIT;
+    }
+
+    /**
+     *
+     * @return the number of hits.
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     * expression is not valid.
+     */
+    @Override
+    protected Integer call() {
+        if (regex) {
+            // Fail before walking the tree.
+            Regex.compile(text);
+        }
+        Workers.parallel().invoke(new DirectorySearch(root));
+        return getHitCount();
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @return true if the search was cancelled or found enough hits.
+     */
+    private boolean isStopped() {
+        return isCancelled() || hitCount.get() >= HIT_LIMIT;
+    }
+
+    /**
+     * Searches a file, unless it is too large or binary.
+     * @param file to be searched.
+     * @param size of the file.
+     */
+    private void searchFile(Path file, long size) {
+        if (isStopped()) {
+            return;
+        }
+        if (size > Settings.getFindInFilesMaxSize()) {
+            skippedFileCount.incrementAndGet();
+            return;
+        }
+        try {
+            ByteBuffer bytes = read(file, size);
+            if (EncodingDetector.detectBom(bytes) == null && EncodingDetector.isBinary(bytes)) {
+                skippedFileCount.incrementAndGet();
+                return;
+            }
+            CharBuffer chars = decode(bytes);
+            fileCount.incrementAndGet();
+            if (search(file, chars)) {
+                matchingFileCount.incrementAndGet();
+            }
+            updateMessage(fileCount.get() + " Files Searched.");
+        }
+        catch (IOException | Regex.TimeoutException ex) {
+            skippedFileCount.incrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @param file to be read.
+     * @param size of the file.
+     * @return the content of the file, read into memory if it is small and
+     * memory mapped otherwise.
+     * @throws IOException
+     */
+    private static ByteBuffer read(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (size > READ_SIZE) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                // Read until the buffer is full or the file ended.
+            }
+            bytes.flip();
+            return bytes;
+        }
+    }
+
+    /**
+     * Decodes a file as FileLoader does: in the encoding detected from its
+     * first bytes, after its byte order mark, and in the legacy charset if
+     * only its first bytes are valid UTF-8.
+     * @param bytes of the file.
+     * @return the text of the file.
+     * @throws CharacterCodingException if the bytes cannot be decoded.
+     */
+    private static CharBuffer decode(ByteBuffer bytes) throws CharacterCodingException {
+        ByteBuffer head = bytes.duplicate();
+        head.limit(Math.min(bytes.limit(), Settings.getEncodingDetectionLimit()));
+        Encoding encoding = EncodingDetector.detect(head, head.limit() == bytes.limit());
+        bytes.position(encoding.getBom().length);
+        if (encoding.equals(Encoding.UTF_8) && head.limit() < bytes.limit()) {
+            try {
+                return decode(bytes.duplicate(), encoding, CodingErrorAction.REPORT);
+            }
+            catch (MalformedInputException ex) {
+                encoding = EncodingDetector.legacy();
+            }
+        }
+        return decode(bytes, encoding, CodingErrorAction.REPLACE);
+    }
+
+    /**
+     *
+     * @param bytes to be decoded, from their position.
+     * @param encoding of the bytes.
+     * @param action on bytes which are not valid in the charset.
+     * @return the decoded chars.
+     * @throws CharacterCodingException if the action is to report them.
+     */
+    private static CharBuffer decode(ByteBuffer bytes, Encoding encoding, CodingErrorAction action) throws CharacterCodingException {
+        return encoding.getCharset().newDecoder()
+                .onMalformedInput(action)
+                .onUnmappableCharacter(action)
+                .decode(bytes);
+    }
+
+    /**
+     * Finds the hits of a file, which do not overlap.
+     * @param file searched.
+     * @param chars of the file.
+     * @return true if there was a hit.
+     */
+    private boolean search(Path file, CharBuffer chars) {
+        Matcher matcher = regex ? Regex.matcher(text, chars) : null;
+        int line = 0;
+        int lineStart = 0;
+        int scanned = 0;
+        int from = 0;
+        boolean found = false;
+        while (!isStopped()) {
+            int start;
+            int end;
+            if (matcher != null) {
+                if (!matcher.find()) {
+                    break;
+                }
+                start = matcher.start();
+                end = matcher.end();
+                if (start == end) {
+                    continue;
+                }
+            }
+            else {
+                start = indexOf(chars, text, from);
+                if (start < 0) {
+                    break;
+                }
+                end = start + text.length();
+                from = end;
+            }
+            // Count the lines up to the hit.
+            for (; scanned < start; scanned++) {
+                if (chars.get(scanned) == '\n') {
+                    line++;
+                    lineStart = scanned + 1;
+                }
+            }
+            if (hitCount.incrementAndGet() > HIT_LIMIT) {
+                break;
+            }
+            found = true;
+            publish(new Hit(root.relativize(file), file, start, end - start, line, preview(chars, lineStart, start)));
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @param chars of a file.
+     * @param lineStart offset of the line of a hit.
+     * @param offset of the hit.
+     * @return the text of the line around the hit.
+     */
+    private static String preview(CharBuffer chars, int lineStart, int offset) {
+        int start = Math.max(lineStart, offset - PREVIEW_CONTEXT);
+        int end = start;
+        while (end < chars.limit() && end < start + PREVIEW_LENGTH && chars.get(end) != '\n' && chars.get(end) != '\r') {
+            end++;
+        }
+        return chars.subSequence(start, end).toString();
+    }
+
+    /**
+     *
+     * @param chars to be searched.
+     * @param text to be found.
+     * @param fromIndex offset from which to search forward.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    private static int indexOf(CharBuffer chars, String text, int fromIndex) {
+        char first = text.charAt(0);
+        int last = chars.limit() - text.length();
+        for (int i = fromIndex; i <= last; i++) {
+            if (chars.get(i) == first) {
+                int j = 1;
+                while (j < text.length() && chars.get(i + j) == text.charAt(j)) {
+                    j++;
+                }
+                if (j == text.length()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queues a hit and makes sure a batch is handed to the consumer soon.
+     * @param hit to be published.
+     */
+    private void publish(Hit hit) {
+        queue.add(hit);
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
+    }
+
+    /**
+     * Hands the queued hits to the consumer, on the FX thread.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        List<Hit> hits = new ArrayList<>();
+        for (Hit hit = queue.poll(); hit != null; hit = queue.poll()) {
+            hits.add(hit);
+        }
+        if (!hits.isEmpty() && !isCancelled()) {
+            consumer.accept(hits);
+        }
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * Lists a directory, forking a task for each entry. Links are not
+     * followed, so the walk cannot loop.
+     */
+    private final class DirectorySearch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+
+        private DirectorySearch(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    if (isStopped()) {
+                        break;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        tasks.add(new DirectorySearch(path).fork());
+                    }
+                    else if (attributes.isRegularFile()) {
+                        long size = attributes.size();
+                        tasks.add(ForkJoinTask.adapt(() -> searchFile(path, size)).fork());
+                    }
+                }
+            }
+            catch (IOException ex) {
+                // An unreadable directory is skipped, like an unreadable file.
+                skippedFileCount.incrementAndGet();
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * A hit in a file.
+     */
+    public static final class Hit {
+        private final Path relativePath;
+        private final Path file;
+        private final int offset;
+        private final int length;
+        private final int line;
+        private final String preview;
+
+        private Hit(Path relativePath, Path file, int offset, int length, int line, String preview) {
+            this.relativePath = relativePath;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.line = line;
+            this.preview = preview;
+        }
+
+        /**
+         *
+         * @return the file of the hit.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return the offset of the hit in the decoded file.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         *
+         * @return the length of the hit.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         *
+         * @return the index of the line of the hit, starting at 0.
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         *
+         * @return the path of the file relative to the searched directory,
+         * the line number and the text around the hit.
+         */
+        @Override
+        public String toString() {
+            return relativePath + ":" + (line + 1) + ": " + preview;
+        }
+    }
+}
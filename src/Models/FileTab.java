@@ -25,17 +25,28 @@
 package Models;
 
 import java.io.File;
+import java.nio.CharBuffer;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
 
 /**
- * A model used to store data associated with FileTab.fxml and FileTabController.
+ * A model used to store data associated with a FileTabController and its Tab.
  * @author jguitana
  */
 public class FileTab {
     private final ObjectProperty<File> file;
     private final SimpleBooleanProperty savedState;
+    private final Document document;
+    private final LineIndex lineIndex;
+    private final UndoManager undoManager;
+    private final Journal journal;
+    private final SearchIndex searchIndex;
+    private final FindEngine findEngine;
+    private final ContentHash contentHash;
+    private Encoding encoding;
+    private long savedFileSize;
+    private long savedFileModified;
 
     /**
      * Constructs a new FileTab.
@@ -43,9 +54,140 @@ public class FileTab {
      */
     public FileTab(File file) {
         this.savedState = new SimpleBooleanProperty(true);
-        this.file = new SimpleObjectProperty<>(file);
+        // The file tab is the bean of its file property.
+        this.file = new SimpleObjectProperty<>(this, "file", file);
+        this.document = new Document();
+        this.lineIndex = new LineIndex();
+        // The line index must be updated before any other listener.
+        document.addListener(lineIndex);
+        this.undoManager = new UndoManager(document);
+        this.journal = new Journal();
+        document.addListener(journal);
+        this.searchIndex = new SearchIndex(document);
+        document.addListener(searchIndex);
+        this.findEngine = new FindEngine(document, searchIndex);
+        this.contentHash = new ContentHash(document);
+        document.addListener(contentHash);
+        this.encoding = Encoding.UTF_8;
+        this.savedFileSize = -1;
     }
 
+    /**
+     * 
+     * @return the document holding the text of this file tab.
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * 
+     * @return the index of the line starts of the document.
+     */
+    public LineIndex getLineIndex() {
+        return lineIndex;
+    }
+    
+    /**
+     * Loads a text in the document along with its line starts.
+     * @param text to be the content of the document.
+     * @param lineStarts of the text, or null to find them in the document.
+     */
+    public void load(CharBuffer text, int[] lineStarts) {
+        if (lineStarts != null) {
+            lineIndex.load(lineStarts, lineStarts.length, text.remaining());
+        }
+        document.load(text);
+    }
+    
+    /**
+     * 
+     * @return the undo manager recording the edits of the document.
+     */
+    public UndoManager getUndoManager() {
+        return undoManager;
+    }
+    
+    /**
+     * 
+     * @return the crash recovery journal of the document.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * 
+     * @return the search index of the document.
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+    
+    /**
+     * 
+     * @return the find engine searching the document.
+     */
+    public FindEngine getFindEngine() {
+        return findEngine;
+    }
+    
+    /**
+     * 
+     * @return the hash of the document, which tells whether it holds the
+     * text of the file.
+     */
+    public ContentHash getContentHash() {
+        return contentHash;
+    }
+    
+    /**
+     * Records that the file holds the text of the document, and sets the
+     * saved state.
+     */
+    public void markSaved() {
+        contentHash.markSaved();
+        recordFile();
+        savedState.set(true);
+    }
+    
+    /**
+     * Records that the file holds a text saved from a snapshot of the
+     * document, and sets the saved state if the document still holds it.
+     * @param hash of the saved text.
+     * @param length of the saved text.
+     */
+    public void markSaved(long hash, int length) {
+        contentHash.markSaved(hash, length);
+        recordFile();
+        updateSavedState();
+    }
+    
+    /**
+     * Records that the text of the file is not known, and unsets the saved
+     * state until the document is saved.
+     */
+    public void markUnsaved() {
+        contentHash.markUnsaved();
+        savedFileSize = -1;
+        savedState.set(false);
+    }
+    
+    /**
+     * Sets the saved state to whether the document holds the text of the
+     * file, which is true again once every edit made since the file was
+     * loaded or saved is undone. The journal is then based on the file
+     * again, which deletes it until the next edit.
+     */
+    public void updateSavedState() {
+        boolean saved = contentHash.isSaved();
+        File current = getFile();
+        if (saved && !savedState.get() && current != null && current.isFile()) {
+            journal.reset(current, document, encoding, true);
+        }
+        savedState.set(saved);
+    }
+    
     /**
      * 
      * @return the saved state of this file tab. A saved state returns false
@@ -82,7 +224,7 @@ public class FileTab {
     
     /**
      * 
-     * @return the file property.
+     * @return the file property, whose bean is this file tab.
      */
     public ObjectProperty<File> fileProperty() { 
         return file; 
@@ -95,4 +237,63 @@ public class FileTab {
     public File getFile() { 
         return file.get(); 
     }
+    
+    /**
+     * 
+     * @return the encoding of the file, detected when it was loaded and used
+     * to save it. New files are UTF-8.
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+    
+    /**
+     * Sets the encoding of the file.
+     * @param encoding used to save the file.
+     */
+    public void setEncoding(Encoding encoding) {
+        this.encoding = encoding;
+    }
+    
+    /**
+     * 
+     * @return the size of the file when it was last loaded or saved, or -1
+     * if its text is not known.
+     */
+    public long getSavedFileSize() {
+        return savedFileSize;
+    }
+    
+    /**
+     * 
+     * @return the modification time of the file when it was last loaded or
+     * saved.
+     */
+    public long getSavedFileModified() {
+        return savedFileModified;
+    }
+    
+    /**
+     * 
+     * @return true if the file still has the size and the modification time
+     * it had when it was last loaded or saved, so it most likely still holds
+     * the saved text.
+     */
+    public boolean isFileUnchanged() {
+        File current = getFile();
+        return current != null && savedFileSize >= 0 && current.isFile()
+                && current.length() == savedFileSize && current.lastModified() == savedFileModified;
+    }
+    
+    // PRIVATE METHODS
+    
+    /**
+     * Records the size and the modification time of the file, which was just
+     * loaded or saved.
+     */
+    private void recordFile() {
+        File current = getFile();
+        savedFileSize = current != null && current.isFile() ? current.length() : -1;
+        savedFileModified = current != null ? current.lastModified() : 0;
+    }
 }
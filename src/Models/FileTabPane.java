@@ -26,17 +26,40 @@ package Models;
 
 import Controllers.FileTabPaneController;
 import Controllers.FileTabController;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import javafx.beans.property.ReadOnlyProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.scene.control.Tab;
 import javafx.stage.FileChooser;
 
 /**
  * A model used to store data associated with the view FileTabPane.fxml
  * and FileTabPaneController.
+ * The controllers of the file tabs are indexed by file tab, by tab and by
+ * file, so finding the controller of a tab or of a file does not depend on
+ * the number of open tabs. Files are indexed by their canonical file, so
+ * two paths of the same file, like ./a.txt and a.txt or a symbolic link and
+ * its target, find the same tab. The index of a file tab follows its file
+ * when it is saved as another file. Several tabs may have the same file, like
+ * new files which were never saved, so each file is indexed with all its
+ * tabs, in the order they were indexed, and the first one is found.
+ * The documents of the file tabs are kept in memory within a budget by a
+ * Residency.
  */
 public class FileTabPane {
     private final Map<FileTab, FileTabController> fileTabControllerMap;
+    private final Map<Tab, FileTabController> tabMap;
+    private final Map<File, List<FileTabController>> fileMap;
+    private final Map<FileTab, File> fileKeyMap;
+    private final ChangeListener<File> fileListener;
+    private final Residency residency;
     private final FileChooser fileChooser;
 
     /**
@@ -45,6 +68,11 @@ public class FileTabPane {
     */
     public FileTabPane(FileTabPaneController controller) {
         this.fileTabControllerMap = new HashMap<>();
+        this.tabMap = new HashMap<>();
+        this.fileMap = new HashMap<>();
+        this.fileKeyMap = new HashMap<>();
+        this.fileListener = reindexOnFileChange();
+        this.residency = new Residency();
         this.fileChooser = new FileChooser();
         // Set extension filter on the file chooser.
         fileChooser.getExtensionFilters().add(
@@ -60,20 +88,39 @@ public class FileTabPane {
     }
     
     /**
-     * Adds a file tab to the hash map.
+     * Adds a file tab to the hash maps.
      * @param fileTab to be added to the map.
      * @param fileTabController to be added to the map.
      */
     public void addFileTab(FileTab fileTab, FileTabController fileTabController) {
         fileTabControllerMap.put(fileTab, fileTabController);
+        tabMap.put(fileTabController.getTab(), fileTabController);
+        indexFile(fileTab, fileTabController);
+        fileTab.fileProperty().addListener(fileListener);
+        residency.add(fileTab);
     }
     
     /**
-     * Removes a file tab from the hash map.
+     * Removes a file tab from the hash maps.
      * @param fileTab to be removed from the map.
      */
     public void removeFileTab(FileTab fileTab) {
-        fileTabControllerMap.remove(fileTab);
+        FileTabController fileTabController = fileTabControllerMap.remove(fileTab);
+        if (fileTabController != null) {
+            fileTab.fileProperty().removeListener(fileListener);
+            tabMap.remove(fileTabController.getTab());
+            unindexFile(fileTab, fileTabController);
+            residency.remove(fileTab);
+        }
+    }
+    
+    /**
+     * 
+     * @return the residency keeping the documents of the file tabs within
+     * the memory budget.
+     */
+    public Residency getResidency() {
+        return residency;
     }
     
     /**
@@ -84,4 +131,92 @@ public class FileTabPane {
     public Map<FileTab, FileTabController> getFileTabControllerMap() {
         return Collections.unmodifiableMap(fileTabControllerMap);
     }
+    
+    /**
+     * 
+     * @param tab of a file tab.
+     * @return the controller of the file tab of the tab, or null if there is
+     * none.
+     */
+    public FileTabController getFileTabController(Tab tab) {
+        return tabMap.get(tab);
+    }
+    
+    /**
+     * 
+     * @param file of a file tab, given by any of its paths.
+     * @return the controller of the file tab of the file, or null if the file
+     * is not open.
+     */
+    public FileTabController getFileTabController(File file) {
+        List<FileTabController> controllers = file != null ? fileMap.get(fileKey(file)) : null;
+        return controllers != null ? controllers.get(0) : null;
+    }
+    
+    /**
+     * 
+     * @param file to be identified.
+     * @return the canonical file of the file, or its absolute file if it
+     * cannot be resolved.
+     */
+    public static File fileKey(File file) {
+        try {
+            return file.getCanonicalFile();
+        }
+        catch (IOException | SecurityException ex) {
+            return file.getAbsoluteFile();
+        }
+    }
+    
+    // EVENT HANDLERS
+    
+    /**
+     * 
+     * @return a change listener which indexes a file tab by its new file,
+     * for example after it is saved as another file. The bean of the file
+     * property is its file tab.
+     */
+    private ChangeListener<File> reindexOnFileChange() {
+        return (new ChangeListener<File>() {
+            @Override
+            public void changed(ObservableValue<? extends File> observable, File oldValue, File newValue) {
+                FileTab fileTab = (FileTab) ((ReadOnlyProperty<?>) observable).getBean();
+                FileTabController fileTabController = fileTabControllerMap.get(fileTab);
+                if (fileTabController != null) {
+                    unindexFile(fileTab, fileTabController);
+                    indexFile(fileTab, fileTabController);
+                }
+            }
+        });
+    }
+    
+    // PRIVATE METHODS
+    
+    /**
+     * Indexes a file tab by the key of its file, after the other tabs which
+     * have the same file.
+     */
+    private void indexFile(FileTab fileTab, FileTabController fileTabController) {
+        if (fileTab.getFile() != null) {
+            File key = fileKey(fileTab.getFile());
+            fileKeyMap.put(fileTab, key);
+            // Almost every file has a single tab.
+            fileMap.computeIfAbsent(key, (File file) -> new ArrayList<>(1)).add(fileTabController);
+        }
+    }
+    
+    /**
+     * Removes the index of a file tab by the key its file had when it was
+     * indexed. The next tab with the same file, if any, is then found.
+     */
+    private void unindexFile(FileTab fileTab, FileTabController fileTabController) {
+        File key = fileKeyMap.remove(fileTab);
+        List<FileTabController> controllers = key != null ? fileMap.get(key) : null;
+        if (controllers != null) {
+            controllers.remove(fileTabController);
+            if (controllers.isEmpty()) {
+                fileMap.remove(key);
+            }
+        }
+    }
 }
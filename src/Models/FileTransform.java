@@ -0,0 +1,411 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.BufferedInputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transforms files on the calling thread, without running a task, so it can
+ * be used without the JavaFX toolkit, for example by the batch mode of the
+ * command line. A file is decoded with a charset, the occurences of a text or
+ * the matches of a regular expression are counted or replaced by a
+ * StreamReplace, as in FileReplace, its line endings may be normalized, and it
+ * is encoded with another charset.
+ * As in FileReplace, a file is streamed through a window of chars and never
+ * read whole. The result is written to a temporary file next to it, which
+ * replaces it with an atomic move only if anything changed. Binary files are
+ * skipped, and so are files which are not valid in the charset they are
+ * decoded with or cannot be encoded in the other one. A FileTransform may
+ * transform many files at once.
+ */
+public class FileTransform {
+    private final Charset decoding;
+    private final Charset encoding;
+    private StreamReplace replace;
+    private String lineEnding;
+
+    /**
+     * Constructs a new FileTransform which makes no change but the charset.
+     * @param decoding charset of the files.
+     * @param encoding charset in which the files are written.
+     */
+    public FileTransform(Charset decoding, Charset encoding) {
+        this.decoding = decoding;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Replaces a text, or the matches of a regular expression, in the files.
+     * This must be called before any file is transformed.
+     * @param text to be replaced, not empty, or a regular expression.
+     * @param replacement of each occurence. For a regular expression, $n and
+     * ${name} refer to its groups.
+     * @param regex true if the text is a regular expression.
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     * expression is not valid.
+     * @throws IllegalArgumentException if the replacement refers to a group
+     * the regular expression does not have.
+     */
+    public void setReplacement(String text, String replacement, boolean regex) {
+        if (regex) {
+            Regex.checkReplacement(text, replacement);
+        }
+        replace = new StreamReplace(text, replacement, regex, () -> false);
+    }
+
+    /**
+     * Normalizes the line endings of the files. This must be called before
+     * any file is transformed.
+     * @param lineEnding written for every line break, \n, \r\n or \r.
+     */
+    public void setLineEnding(String lineEnding) {
+        this.lineEnding = lineEnding;
+    }
+
+    /**
+     * Counts the replacements and the line endings to be changed in a file,
+     * without writing anything.
+     * @param file to be read.
+     * @return the result of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public Result count(Path file) throws IOException {
+        return process(file, false);
+    }
+
+    /**
+     * Transforms a file, which is only written if anything changed.
+     * @param file to be transformed.
+     * @return the result of the file.
+     * @throws IOException if the file cannot be read or written.
+     */
+    public Result transform(Path file) throws IOException {
+        return process(file, true);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Counts or makes the changes of a file.
+     * @param file to be processed.
+     * @param write true to write the changes.
+     * @return the result of the file.
+     * @throws IOException
+     */
+    private Result process(Path file, boolean write) throws IOException {
+        Path target = file.toAbsolutePath();
+        long size = Files.size(target);
+        Path temp = write ? AtomicWrite.createTempFile(target) : null;
+        boolean moved = false;
+        try (Reader in = open(target, decoding)) {
+            if (in == null) {
+                return new Result(file, size, 0, 0, false, "binary");
+            }
+            int count;
+            LineEndingWriter lines;
+            boolean changed;
+            try (FileChannel channel = write ? FileChannel.open(temp, StandardOpenOption.WRITE) : null) {
+                Writer out = write ? Channels.newWriter(channel, encoding.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT), -1) : null;
+                lines = lineEnding != null ? new LineEndingWriter(out, lineEnding) : null;
+                Writer sink = lines != null ? lines : out;
+                count = replace != null ? replace.replace(in, sink) : copy(in, sink);
+                if (lines != null) {
+                    lines.finish();
+                }
+                changed = count > 0 || (lines != null && lines.getChanges() > 0) || !decoding.equals(encoding);
+                if (write) {
+                    out.flush();
+                    if (changed && Settings.getSyncPolicy() != SyncPolicy.NONE) {
+                        channel.force(true);
+                    }
+                }
+            }
+            if (write && changed) {
+                AtomicWrite.move(temp, target);
+                moved = true;
+                if (Settings.getSyncPolicy() == SyncPolicy.FULL) {
+                    AtomicWrite.syncDirectory(target.getParent());
+                }
+            }
+            return new Result(file, size, count, lines != null ? lines.getChanges() : 0, moved, null);
+        }
+        catch (CharacterCodingException ex) {
+            String error = decoding.equals(encoding) ? "not " + decoding.name() : "not convertible from " + decoding.name() + " to " + encoding.name();
+            return new Result(file, size, 0, 0, false, error);
+        }
+        catch (Regex.TimeoutException ex) {
+            return new Result(file, size, 0, 0, false, "search timed out");
+        }
+        finally {
+            if (temp != null && !moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param file to be read.
+     * @param charset of the file.
+     * @return a reader strictly decoding the file, or null if the file is
+     * binary. UTF-16 and UTF-32 files are never binary, as zero bytes are
+     * part of their text.
+     * @throws IOException
+     */
+    private static Reader open(Path file, Charset charset) throws IOException {
+        InputStream stream = new BufferedInputStream(Files.newInputStream(file), EncodingDetector.BINARY_CHECK_SIZE);
+        try {
+            byte[] head = new byte[EncodingDetector.BINARY_CHECK_SIZE];
+            stream.mark(head.length);
+            int length = 0;
+            int read;
+            while (length < head.length && (read = stream.read(head, length, head.length - length)) >= 0) {
+                length += read;
+            }
+            stream.reset();
+            boolean wide = charset.name().startsWith("UTF-16") || charset.name().startsWith("UTF-32");
+            if (!wide && EncodingDetector.isBinary(ByteBuffer.wrap(head, 0, length))) {
+                stream.close();
+                return null;
+            }
+            return new InputStreamReader(stream, charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT));
+        }
+        catch (IOException | RuntimeException ex) {
+            stream.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Copies the chars of the reader to the writer.
+     * @param in chars to be copied.
+     * @param out receiving the chars, or null to only read them.
+     * @return 0, the number of replacements.
+     * @throws IOException
+     */
+    private static int copy(Reader in, Writer out) throws IOException {
+        char[] chars = new char[1 << 16];
+        for (int read = in.read(chars); read >= 0; read = in.read(chars)) {
+            if (out != null) {
+                out.write(chars, 0, read);
+            }
+        }
+        return 0;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * A writer replacing every line break, \r\n, \r or \n, with the same
+     * line ending, and counting the line breaks it changed. A \r at the end
+     * of a write is held until the next char tells whether it is followed by
+     * a \n.
+     */
+    private static class LineEndingWriter extends FilterWriter {
+        private final String lineEnding;
+        private boolean pendingReturn;
+        private int changes;
+
+        /**
+         * Constructs a new LineEndingWriter.
+         * @param out receiving the chars, or null to only count the changes.
+         * @param lineEnding written for every line break.
+         */
+        LineEndingWriter(Writer out, String lineEnding) {
+            super(out != null ? out : new Writer() {
+                @Override
+                public void write(char[] chars, int offset, int length) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            this.lineEnding = lineEnding;
+        }
+
+        /**
+         *
+         * @return the number of line breaks which were changed.
+         */
+        int getChanges() {
+            return changes;
+        }
+
+        /**
+         * Writes a held \r, once the chars are all written.
+         * @throws IOException
+         */
+        void finish() throws IOException {
+            if (pendingReturn) {
+                pendingReturn = false;
+                lineBreak("\r");
+            }
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            write(new char[] {(char) c}, 0, 1);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            write(text.toCharArray(), offset, length);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                char c = chars[i];
+                if (pendingReturn) {
+                    pendingReturn = false;
+                    if (c == '\n') {
+                        lineBreak("\r\n");
+                        start = i + 1;
+                        continue;
+                    }
+                    lineBreak("\r");
+                }
+                if (c == '\r' || c == '\n') {
+                    out.write(chars, start, i - start);
+                    start = i + 1;
+                    if (c == '\r') {
+                        pendingReturn = true;
+                    }
+                    else {
+                        lineBreak("\n");
+                    }
+                }
+            }
+            out.write(chars, start, end - start);
+        }
+
+        /**
+         * Writes the line ending in place of a line break.
+         * @param found line break.
+         * @throws IOException
+         */
+        private void lineBreak(String found) throws IOException {
+            if (!found.equals(lineEnding)) {
+                changes++;
+            }
+            out.write(lineEnding);
+        }
+    }
+
+    /**
+     * The outcome of the transformation of a file.
+     */
+    public static final class Result {
+        private final Path file;
+        private final long size;
+        private final int count;
+        private final int lineEndings;
+        private final boolean written;
+        private final String error;
+
+        private Result(Path file, long size, int count, int lineEndings, boolean written, String error) {
+            this.file = file;
+            this.size = size;
+            this.count = count;
+            this.lineEndings = lineEndings;
+            this.written = written;
+            this.error = error;
+        }
+
+        /**
+         *
+         * @return the path of the file.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return the size of the file in bytes before it was transformed.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         *
+         * @return the number of replacements in the file.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return the number of line endings changed in the file.
+         */
+        public int getLineEndings() {
+            return lineEndings;
+        }
+
+        /**
+         *
+         * @return true if the file was written.
+         */
+        public boolean isWritten() {
+            return written;
+        }
+
+        /**
+         *
+         * @return why the file was skipped, or null.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import javafx.concurrent.Task;
+
+/**
+ * Finds every occurence of a text in a snapshot of a Document, in parallel.
+ * The document is split into chunks of CHUNK_SIZE offsets which are searched
+ * on the ForkJoinPool of Workers, each chunk reading past its end so that an
+ * occurence starting in it is found even if it ends in the next one. The
+ * offsets found in each chunk are then joined, in order, into one sorted
+ * array of the occurences which do not overlap.
+ * At most LIMIT occurences are kept; if there are more, the result holds the
+ * first ones only and is marked as truncated.
+ * A regular expression is matched from the start of the document instead, on
+ * the calling thread, as a match may span any number of chunks.
+ */
+public class FindAll extends Task<FindAll.Result> {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int LIMIT = 1 << 24;
+    private final Document snapshot;
+    private final String text;
+    private final boolean regex;
+    private final AtomicInteger stored;
+    private int[][] chunkOffsets;
+    private int[] chunkCounts;
+    private boolean[] chunkTruncated;
+
+    /**
+     * Constructs a new FindAll.
+     * @param snapshot of the document to be searched, not edited afterwards.
+     * @param text to be found, not empty, or a regular expression.
+     * @param regex true if the text is a regular expression.
+     */
+    public FindAll(Document snapshot, String text, boolean regex) {
+        this.snapshot = snapshot;
+        this.text = text;
+        this.regex = regex;
+        this.stored = new AtomicInteger();
+    }
+
+    /**
+     *
+     * @return the offsets of the occurences of the text.
+     */
+    @Override
+    protected Result call() {
+        if (regex) {
+            return findRegex();
+        }
+        int length = snapshot.length();
+        int chunks = Math.max(1, (int) (((long) length + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        chunkOffsets = new int[chunks][];
+        chunkCounts = new int[chunks];
+        chunkTruncated = new boolean[chunks];
+        Workers.parallel().invoke(new Search(snapshot, 0, chunks));
+        if (isCancelled()) {
+            return null;
+        }
+        int total = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            total += chunkCounts[chunk];
+        }
+        int[] offsets = new int[total];
+        int count = 0;
+        int next = 0;
+        boolean truncated = false;
+        for (int chunk = 0; chunk < chunks && !truncated; chunk++) {
+            int[] found = chunkOffsets[chunk];
+            for (int i = 0; i < chunkCounts[chunk]; i++) {
+                if (found[i] >= next) {
+                    offsets[count++] = found[i];
+                    next = found[i] + text.length();
+                }
+            }
+            // The chunks after a truncated one would leave a gap.
+            truncated = chunkTruncated[chunk];
+            chunkOffsets[chunk] = null;
+        }
+        return new Result(snapshot.getVersion(), offsets, null, text.length(), count, truncated);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Finds the matches of the regular expression, empty ones excluded.
+     * @return the offsets and the lengths of the matches.
+     */
+    private Result findRegex() {
+        Matcher matcher = Regex.matcher(text, snapshot);
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int count = 0;
+        boolean truncated = false;
+        while (matcher.find()) {
+            if (matcher.end() == matcher.start()) {
+                continue;
+            }
+            if (count == LIMIT) {
+                truncated = true;
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = matcher.start();
+            lengths[count++] = matcher.end() - matcher.start();
+        }
+        return new Result(snapshot.getVersion(), offsets, lengths, 0, count, truncated);
+    }
+
+    /**
+     * Finds the occurences starting in one chunk, overlapping ones included.
+     * @param source copy of the snapshot owned by the calling thread.
+     * @param chunk index of the chunk.
+     */
+    private void searchChunk(Document source, int chunk) {
+        int from = chunk * CHUNK_SIZE;
+        int to = (int) Math.min((long) from + CHUNK_SIZE, source.length());
+        int[] found = new int[16];
+        int count = 0;
+        int offset = source.indexOf(text, from, to);
+        while (offset >= 0) {
+            if ((count & 0xff) == 0 && (isCancelled() || stored.addAndGet(0x100) > LIMIT)) {
+                chunkTruncated[chunk] = true;
+                break;
+            }
+            if (count == found.length) {
+                found = Arrays.copyOf(found, found.length * 2);
+            }
+            found[count++] = offset;
+            offset = source.indexOf(text, offset + 1, to);
+        }
+        chunkOffsets[chunk] = found;
+        chunkCounts[chunk] = count;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * Searches a range of chunks, splitting it in two while it has more than
+     * one chunk. Document is not safe for concurrent reads, so each forked
+     * half reads its own copy of the snapshot.
+     */
+    private final class Search extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Document source;
+        private final int firstChunk;
+        private final int endChunk;
+
+        private Search(Document source, int firstChunk, int endChunk) {
+            this.source = source;
+            this.firstChunk = firstChunk;
+            this.endChunk = endChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            if (endChunk - firstChunk == 1) {
+                searchChunk(source, firstChunk);
+                return;
+            }
+            int middle = (firstChunk + endChunk) >>> 1;
+            invokeAll(new Search(source, firstChunk, middle), new Search(source.snapshot(), middle, endChunk));
+        }
+    }
+
+    /**
+     * The occurences found.
+     */
+    public static final class Result {
+        private final long version;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int length;
+        private final int count;
+        private final boolean truncated;
+
+        private Result(long version, int[] offsets, int[] lengths, int length, int count, boolean truncated) {
+            this.version = version;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.length = length;
+            this.count = count;
+            this.truncated = truncated;
+        }
+
+        /**
+         *
+         * @return the version of the document which was searched.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         *
+         * @param index of an occurence, lower than the count.
+         * @return the offset of the occurence.
+         */
+        public int getOffset(int index) {
+            return offsets[index];
+        }
+
+        /**
+         *
+         * @param index of an occurence, lower than the count.
+         * @return the length of the occurence.
+         */
+        public int getLength(int index) {
+            return lengths != null ? lengths[index] : length;
+        }
+
+        /**
+         *
+         * @return the number of occurences found.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return true if there are more occurences than the ones found.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+}
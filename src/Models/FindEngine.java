@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import javafx.concurrent.Task;
+
+/**
+ * Finds text in a Document for the find dialog, on a background thread and
+ * reusing the matches of the previous query while the user types.
+ * Each search is a Task running against snapshots of the document and of its
+ * SearchIndex, so the document can be edited while it runs, and cancelling
+ * the task stops it between blocks of the document.
+ * The engine keeps the sorted offsets of the matches of the last query,
+ * up to CACHE_LIMIT of them: every match starting before scannedTo is in the
+ * cache. When the next query extends the last one and the document was not
+ * edited, its matches are among the cached ones, so the cache is narrowed by
+ * checking only those offsets. Any other query, or an edit, starts a new
+ * search through the SearchIndex. Find next, find previous and counting are
+ * then answered from the cache with a binary search.
+ */
+public class FindEngine {
+    private static final int CACHE_LIMIT = 1 << 16;
+    private final Document document;
+    private final SearchIndex searchIndex;
+    // Guarded by this, as searches run on background threads.
+    private String query;
+    private long version;
+    private int[] matches;
+    private int matchCount;
+    private int scannedTo;
+
+    /**
+     * Constructs a new FindEngine.
+     * @param document to be searched.
+     * @param searchIndex of the document.
+     */
+    public FindEngine(Document document, SearchIndex searchIndex) {
+        this.document = document;
+        this.searchIndex = searchIndex;
+        this.matches = new int[0];
+    }
+
+    /**
+     * Creates a search for a text from an offset, wrapping around the
+     * document if the text is not found before its end, or its start when
+     * searching backwards. The search also counts the matches of the text.
+     * This must be called on the FX thread, the returned task can run on any
+     * thread.
+     * @param text to be found, not empty, or a regular expression.
+     * @param fromIndex offset from which to search.
+     * @param forward true to search forward, false to search backwards.
+     * @param countLimit at which counting stops.
+     * @param regex true if the text is a regular expression.
+     * @return a task finding the text in a snapshot of the document. It fails
+     * with a PatternSyntaxException if the regular expression is not valid
+     * and a Regex.TimeoutException if matching it takes too long.
+     */
+    public Task<Result> find(String text, int fromIndex, boolean forward, int countLimit, boolean regex) {
+        Document snapshot = document.snapshot();
+        SearchIndex snapshotIndex = searchIndex.snapshot(snapshot);
+        return new Task<Result>() {
+            @Override
+            protected Result call() {
+                if (regex) {
+                    return findRegex(snapshot, text, fromIndex, forward, countLimit);
+                }
+                synchronized (FindEngine.this) {
+                    prepare(snapshot, snapshotIndex, text);
+                    int offset;
+                    if (forward) {
+                        offset = indexOf(snapshot, snapshotIndex, text, fromIndex);
+                        if (offset < 0 && fromIndex > 0) {
+                            offset = indexOf(snapshot, snapshotIndex, text, 0);
+                        }
+                    }
+                    else {
+                        offset = lastIndexOf(snapshotIndex, text, fromIndex);
+                        if (offset < 0 && fromIndex < snapshot.length()) {
+                            offset = lastIndexOf(snapshotIndex, text, snapshot.length());
+                        }
+                    }
+                    int count = offset >= 0 ? count(snapshot, snapshotIndex, text, countLimit) : 0;
+                    return new Result(snapshot.getVersion(), offset, text.length(), count);
+                }
+            }
+        };
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Finds a regular expression, without the cache: its matches are not
+     * narrowed by extending the expression. Empty matches are skipped.
+     * @param source snapshot of the document.
+     * @param regex to be found.
+     * @param fromIndex offset from which to search.
+     * @param forward true to search forward, false to search backwards.
+     * @param countLimit at which counting stops.
+     * @return the match found and the number of matches.
+     */
+    private static Result findRegex(Document source, String regex, int fromIndex, boolean forward, int countLimit) {
+        Matcher matcher = Regex.matcher(regex, source);
+        int offset = -1;
+        int length = 0;
+        int first = -1;
+        int firstLength = 0;
+        int count = 0;
+        while (matcher.find()) {
+            if (matcher.end() == matcher.start()) {
+                continue;
+            }
+            if (first < 0) {
+                first = matcher.start();
+                firstLength = matcher.end() - first;
+            }
+            if (forward ? offset < 0 && matcher.start() >= fromIndex : matcher.start() <= fromIndex || offset < 0 || offset > fromIndex) {
+                offset = matcher.start();
+                length = matcher.end() - offset;
+            }
+            boolean found = forward ? offset >= 0 : offset >= 0 && offset <= fromIndex && matcher.start() > fromIndex;
+            if (++count >= countLimit && found) {
+                break;
+            }
+        }
+        if (forward && offset < 0) {
+            offset = first;
+            length = firstLength;
+        }
+        return new Result(source.getVersion(), offset, length, Math.min(count, countLimit));
+    }
+
+    /**
+     *
+     * @param source snapshot of the document.
+     * @param index of the snapshot.
+     * @param text to be found.
+     * @param fromIndex offset from which to search forward.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    private int indexOf(Document source, SearchIndex index, String text, int fromIndex) {
+        int from = Math.max(0, fromIndex);
+        if (from >= scannedTo) {
+            return index.indexOf(text, from);
+        }
+        int match = lowerBound(from);
+        if (match < matchCount) {
+            return matches[match];
+        }
+        return scannedTo <= source.length() ? index.indexOf(text, scannedTo) : -1;
+    }
+
+    /**
+     *
+     * @param index of the snapshot of the document.
+     * @param text to be found.
+     * @param fromIndex offset from which to search backwards.
+     * @return the offset of the last occurence of the text, or -1.
+     */
+    private int lastIndexOf(SearchIndex index, String text, int fromIndex) {
+        if (fromIndex >= scannedTo) {
+            return index.lastIndexOf(text, fromIndex);
+        }
+        int match = lowerBound(fromIndex + 1) - 1;
+        return match >= 0 ? matches[match] : -1;
+    }
+
+    /**
+     * Counts the occurences of a text which do not overlap, up to a limit.
+     * @param source snapshot of the document.
+     * @param index of the snapshot.
+     * @param text to be counted.
+     * @param limit at which counting stops.
+     * @return the number of occurences, or the limit if there are more.
+     */
+    private int count(Document source, SearchIndex index, String text, int limit) {
+        int count = 0;
+        int next = 0;
+        for (int i = 0; i < matchCount && count < limit; i++) {
+            if (matches[i] >= next) {
+                count++;
+                next = matches[i] + text.length();
+            }
+        }
+        if (scannedTo <= source.length()) {
+            int found = index.indexOf(text, Math.max(next, scannedTo));
+            while (found >= 0 && count < limit) {
+                count++;
+                found = index.indexOf(text, found + text.length());
+            }
+        }
+        return Math.min(count, limit);
+    }
+
+    /**
+     * Makes the cache hold the matches of a text, narrowing the matches of
+     * the last query if the text extends it. The cache is only replaced once
+     * it is complete, so a cancelled search leaves the previous one.
+     * @param source snapshot of the document.
+     * @param index of the snapshot.
+     * @param text to be found, not empty.
+     */
+    private void prepare(Document source, SearchIndex index, String text) {
+        boolean sameVersion = query != null && version == source.getVersion();
+        if (sameVersion && text.equals(query)) {
+            return;
+        }
+        if (sameVersion && text.startsWith(query)) {
+            narrow(source, text);
+        }
+        else {
+            search(index, source.length(), text);
+        }
+        query = text;
+        version = source.getVersion();
+    }
+
+    /**
+     * Keeps the cached matches which are also matches of a longer text.
+     * The cache stays complete up to the same offset, as any match of the
+     * longer text is also a match of the shorter one.
+     * @param source snapshot of the document.
+     * @param text extending the last query.
+     */
+    private void narrow(Document source, String text) {
+        int[] narrowed = new int[matchCount];
+        int count = 0;
+        for (int i = 0; i < matchCount; i++) {
+            if ((i & 0xfff) == 0) {
+                Workers.checkCancelled();
+            }
+            if (source.regionMatches(matches[i], text)) {
+                narrowed[count++] = matches[i];
+            }
+        }
+        matches = narrowed;
+        matchCount = count;
+    }
+
+    /**
+     * Fills the cache with the first matches of a text.
+     * @param index of the snapshot of the document.
+     * @param length of the snapshot.
+     * @param text to be found.
+     */
+    private void search(SearchIndex index, int length, String text) {
+        int[] found = new int[16];
+        int count = 0;
+        int offset = index.indexOf(text, 0);
+        while (offset >= 0 && count < CACHE_LIMIT) {
+            if (count == found.length) {
+                found = Arrays.copyOf(found, found.length * 2);
+            }
+            found[count++] = offset;
+            offset = index.indexOf(text, offset + 1);
+        }
+        matches = found;
+        matchCount = count;
+        scannedTo = offset >= 0 ? offset : length + 1;
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the index of the first cached match at or after the offset.
+     */
+    private int lowerBound(int offset) {
+        int low = 0;
+        int high = matchCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (matches[middle] < offset) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * The outcome of a search.
+     */
+    public static final class Result {
+        private final long version;
+        private final int offset;
+        private final int length;
+        private final int count;
+
+        private Result(long version, int offset, int length, int count) {
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+
+        /**
+         *
+         * @return the version of the document which was searched.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         *
+         * @return the offset of the match found, or -1.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         *
+         * @return the length of the match found.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         *
+         * @return the number of matches of the text, up to the count limit.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+}
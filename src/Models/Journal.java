@@ -0,0 +1,676 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append only journal of the edits of a Document, used to recover the
+ * unsaved text of a FileTab if the application dies.
+ * A journal starts with a base, either the file the document was loaded from
+ * or saved to, or the whole text of the document, followed by one record per
+ * edit. Records are buffered on the FX thread and written in batches by a
+ * single background writer, which forces the file to the device once per
+ * batch, so typing never waits for the disk.
+ * The journal is compacted whenever the document matches a new base: the
+ * writer starts the next generation of the journal with the new base and
+ * only deletes the previous generation once the new one is on the device.
+ * Each journal is locked while it is in use, so journals found unlocked on
+ * startup were left behind by an instance which died, and can be replayed.
+ * A journal is only written while there is something to recover: a base
+ * matching the file, or an empty text, is kept in memory until the first
+ * edit, and the journal is deleted when the document is reset to such a
+ * base, for example once its edits are undone. Tabs which are not edited
+ * therefore hold no journal file nor lock.
+ */
+public class Journal implements DocumentListener {
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x53544a32;
+    // Journals before the encoding was recorded, whose files are UTF-8.
+    private static final int MAGIC_UTF_8 = 0x53544a31;
+    private static final byte FILE_BASE = 1;
+    private static final byte TEXT_BASE = 2;
+    private static final byte REPLACE = 3;
+    private static final int CHUNK_SIZE = 1 << 15;
+    private final String id;
+    // Only used by the writer thread.
+    private int generation;
+    private Path path;
+    private FileChannel channel;
+    // Guarded by this.
+    private ByteArrayOutputStream pending;
+    private Base base;
+    private boolean started;
+    private Base pendingBase;
+    private boolean flushScheduled;
+    private boolean closed;
+
+    /**
+     * Constructs a new Journal. Nothing is written until it gets a base.
+     */
+    public Journal() {
+        this.id = UUID.randomUUID().toString();
+        this.pending = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Starts the journal again from a new base, dropping all the edits
+     * recorded so far.
+     * @param file associated with the document.
+     * @param document journaled.
+     * @param encoding of the file.
+     * @param matchesFile true if the document holds the text of the file,
+     * as after a load or a save. Otherwise the text of the document itself
+     * is the base.
+     */
+    public void reset(File file, Document document, Encoding encoding, boolean matchesFile) {
+        Base newBase = new Base(file, encoding, matchesFile ? null : document.snapshot());
+        // There is nothing to recover from the file or an empty text.
+        boolean start = !matchesFile && document.length() > 0;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            base = newBase;
+            started = start;
+            pendingBase = start ? newBase : null;
+            pending.reset();
+        }
+        // A new base is written, or the journal deleted, right away.
+        Workers.journal().execute(this::flush);
+    }
+
+    /**
+     * Stops the journal and deletes it. This is called when the document is
+     * no longer edited, e.g. when its tab is closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingBase = null;
+            pending.reset();
+        }
+        Workers.journal().execute(() -> {
+            closeChannel();
+            delete(path);
+        });
+    }
+
+    /**
+     * Records an edit of the document.
+     * @param document which changed.
+     * @param offset of the edit.
+     * @param removedText by the edit.
+     * @param insertedText by the edit.
+     */
+    @Override
+    public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+        ByteBuffer record = ByteBuffer.allocate(13 + 2 * insertedText.length());
+        record.put(REPLACE).putInt(offset).putInt(removedText.length()).putInt(insertedText.length());
+        record.asCharBuffer().put(insertedText);
+        synchronized (this) {
+            if (closed || base == null) {
+                return;
+            }
+            if (!started) {
+                // The first edit since the base opens the journal.
+                started = true;
+                pendingBase = base;
+            }
+            pending.write(record.array(), 0, record.capacity());
+            if (!flushScheduled) {
+                flushScheduled = true;
+                Workers.journal().schedule(this::flush, Settings.getJournalFlushDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Finds the journals left behind by instances which died and replays
+     * them. Journals locked by a running instance are left alone.
+     * @return the documents which had unsaved changes.
+     */
+    public static List<Recovery> recover() {
+        List<Recovery> recoveries = new ArrayList<>();
+        Path directory = Settings.getJournalDirectory();
+        if (!Files.isDirectory(directory)) {
+            return recoveries;
+        }
+        // Group the generations of each journal, newest first.
+        Map<String, List<Path>> journals = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path journal : stream) {
+                String name = journal.getFileName().toString();
+                String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("\\.");
+                if (parts.length == 2) {
+                    List<Path> generations = journals.computeIfAbsent(parts[0], (key) -> new ArrayList<>());
+                    generations.add(journal);
+                    generations.sort((a, b) -> Integer.compare(generationOf(b), generationOf(a)));
+                }
+            }
+        }
+        catch (IOException e) {
+            Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, e);
+            return recoveries;
+        }
+        for (List<Path> generations : journals.values()) {
+            Recovery recovery = recover(generations);
+            if (recovery != null) {
+                recoveries.add(recovery);
+            }
+        }
+        return recoveries;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Writes the pending base and records, then forces them to the device,
+     * or deletes the journal if there is nothing to recover.
+     * Runs on the writer thread.
+     */
+    private void flush() {
+        Base nextBase;
+        byte[] records;
+        synchronized (this) {
+            flushScheduled = false;
+            if (closed) {
+                return;
+            }
+            if (!started) {
+                nextBase = null;
+                records = null;
+            }
+            else {
+                nextBase = pendingBase;
+                pendingBase = null;
+                records = pending.toByteArray();
+                pending.reset();
+            }
+        }
+        if (records == null) {
+            Path previous = path;
+            closeChannel();
+            delete(previous);
+            path = null;
+            return;
+        }
+        try {
+            if (nextBase != null) {
+                rotate(nextBase);
+            }
+            if (channel != null && records.length > 0) {
+                write(channel, ByteBuffer.wrap(records));
+                channel.force(false);
+            }
+        }
+        catch (IOException | UncheckedIOException e) {
+            // A released base may fail to be read back.
+            Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, e);
+            synchronized (this) {
+                closed = true;
+            }
+            closeChannel();
+        }
+    }
+
+    /**
+     * Starts the next generation of the journal with a new base and deletes
+     * the previous one once the new one is on the device.
+     * @param base of the new generation.
+     * @throws IOException
+     */
+    private void rotate(Base base) throws IOException {
+        Path directory = Settings.getJournalDirectory();
+        Files.createDirectories(directory);
+        Path next = directory.resolve(id + "." + (generation + 1) + SUFFIX);
+        FileChannel nextChannel = FileChannel.open(next, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            nextChannel.lock();
+            base.writeTo(nextChannel);
+            nextChannel.force(true);
+        }
+        catch (IOException | UncheckedIOException e) {
+            nextChannel.close();
+            delete(next);
+            throw e;
+        }
+        Path previous = path;
+        closeChannel();
+        delete(previous);
+        generation++;
+        path = next;
+        channel = nextChannel;
+    }
+
+    /**
+     * Closes the channel of the current generation, releasing its lock.
+     */
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Logger.getLogger(Journal.class.getName()).log(Level.WARNING, null, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Replays the newest generation of a journal with a complete base.
+     * All the generations are deleted afterwards by Recovery.discard().
+     * @param generations of a journal, newest first.
+     * @return the recovered document, or null if it had no unsaved changes
+     * or the journal is still in use.
+     */
+    private static Recovery recover(List<Path> generations) {
+        List<FileChannel> channels = new ArrayList<>();
+        Recovery recovery = new Recovery(generations, channels);
+        try {
+            for (Path journal : generations) {
+                FileChannel journalChannel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channels.add(journalChannel);
+                if (!tryLock(journalChannel)) {
+                    // A running instance owns this journal.
+                    recovery.release();
+                    return null;
+                }
+            }
+            for (FileChannel journalChannel : channels) {
+                if (replay(journalChannel, recovery)) {
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            // Keep the journal for a later attempt.
+            Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, e);
+            recovery.release();
+            return null;
+        }
+        if (recovery.text == null) {
+            recovery.discard();
+            return null;
+        }
+        return recovery;
+    }
+
+    /**
+     * Replays a journal: reads its base and applies its records until the end
+     * of the journal, or until a record which was not fully written.
+     * @param journalChannel to be read.
+     * @param recovery to be filled with the replayed text, if the journal has
+     * unsaved changes.
+     * @return false if the journal has no complete base.
+     * @throws IOException
+     */
+    private static boolean replay(FileChannel journalChannel, Recovery recovery) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(journalChannel)));
+        Document document = new Document();
+        boolean fileBase;
+        String path;
+        long size = 0;
+        long lastModified = 0;
+        Encoding encoding = Encoding.UTF_8;
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_UTF_8) {
+                return false;
+            }
+            byte type = in.readByte();
+            fileBase = type == FILE_BASE;
+            path = in.readUTF();
+            if (magic == MAGIC) {
+                encoding = readEncoding(in);
+            }
+            if (fileBase) {
+                size = in.readLong();
+                lastModified = in.readLong();
+            }
+            else if (type == TEXT_BASE) {
+                document.load(CharBuffer.wrap(readChars(in, in.readInt())));
+            }
+            else {
+                return false;
+            }
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        File file = path.isEmpty() ? null : new File(path);
+        // An empty text base is a new document which was never edited.
+        boolean changed = !fileBase && document.length() > 0;
+        try {
+            while (in.readByte() == REPLACE) {
+                int offset = in.readInt();
+                int end = offset + in.readInt();
+                String insertedText = new String(readChars(in, in.readInt()));
+                // The file is only read if there is something to recover.
+                if (fileBase && !changed && !loadFile(document, file, size, lastModified, encoding)) {
+                    return true;
+                }
+                changed = true;
+                if (offset < 0 || end < offset || end > document.length()) {
+                    break;
+                }
+                document.replace(offset, end, insertedText);
+            }
+        }
+        catch (EOFException e) {
+            // The end of the journal, or a record cut short.
+        }
+        if (changed) {
+            recovery.file = file;
+            recovery.encoding = encoding;
+            recovery.text = document.toString().toCharArray();
+        }
+        return true;
+    }
+
+    /**
+     * Loads the file a journal was based on, if it was not modified since.
+     * @param document to be loaded.
+     * @param file of the base.
+     * @param size of the file when the journal was started.
+     * @param lastModified time of the file when the journal was started.
+     * @param encoding of the file.
+     * @return false if the file changed, so the journal cannot be replayed.
+     * @throws IOException
+     */
+    private static boolean loadFile(Document document, File file, long size, long lastModified, Encoding encoding) throws IOException {
+        if (file == null || !file.isFile() || file.length() != size || file.lastModified() != lastModified) {
+            Logger.getLogger(Journal.class.getName()).log(Level.WARNING, "{0} changed since its journal was started, its unsaved changes are lost", file);
+            return false;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        byte[] bom = encoding.getBom();
+        int skip = bytes.length >= bom.length && Arrays.equals(bom, Arrays.copyOf(bytes, bom.length)) ? bom.length : 0;
+        document.load(new String(bytes, skip, bytes.length - skip, encoding.getCharset()));
+        return true;
+    }
+
+    /**
+     *
+     * @param in journal, at the encoding of its base.
+     * @return the encoding of the file of the base.
+     * @throws IOException
+     */
+    private static Encoding readEncoding(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        boolean bom = in.readBoolean();
+        try {
+            return new Encoding(Charset.forName(name), bom);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported charset " + name, e);
+        }
+    }
+
+    /**
+     *
+     * @param journalChannel of a journal.
+     * @return false if another instance, or this one, holds the lock of the
+     * journal.
+     * @throws IOException
+     */
+    private static boolean tryLock(FileChannel journalChannel) throws IOException {
+        try {
+            return journalChannel.tryLock() != null;
+        }
+        catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param in stream to be read.
+     * @param length number of chars.
+     * @return the chars read from the stream.
+     * @throws IOException
+     */
+    private static char[] readChars(DataInputStream in, int length) throws IOException {
+        if (length < 0) {
+            throw new EOFException();
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return chars;
+    }
+
+    /**
+     *
+     * @param journal path of a journal.
+     * @return the generation in the name of the journal.
+     */
+    private static int generationOf(Path journal) {
+        String name = journal.getFileName().toString();
+        String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("\\.");
+        try {
+            return Integer.parseInt(parts[1]);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes all the bytes in the buffer.
+     * @param target channel.
+     * @param bytes to be written.
+     * @throws IOException
+     */
+    private static void write(FileChannel target, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            target.write(bytes);
+        }
+    }
+
+    /**
+     * Deletes a journal, logging any failure.
+     * @param journal to be deleted, or null.
+     */
+    private static void delete(Path journal) {
+        if (journal != null) {
+            try {
+                Files.deleteIfExists(journal);
+            }
+            catch (IOException e) {
+                Logger.getLogger(Journal.class.getName()).log(Level.WARNING, null, e);
+            }
+        }
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * The base of a journal: the path of the file and either its size and
+     * modification time, or a snapshot of the text. The size and the time
+     * are taken when the base is made, as it may only be written at the
+     * first edit, after the file changed.
+     */
+    private static final class Base {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final Encoding encoding;
+        private final Document snapshot;
+
+        private Base(File file, Encoding encoding, Document snapshot) {
+            boolean isFile = file != null && file.isFile();
+            this.path = isFile ? file.getAbsolutePath() : "";
+            this.size = isFile ? file.length() : 0;
+            this.lastModified = isFile ? file.lastModified() : 0;
+            this.encoding = encoding;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Writes the header of a journal with this base.
+         * Runs on the writer thread.
+         */
+        private void writeTo(FileChannel target) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.writeInt(MAGIC);
+            if (snapshot == null) {
+                out.writeByte(FILE_BASE);
+                out.writeUTF(path);
+                writeEncoding(out);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+            }
+            else {
+                out.writeByte(TEXT_BASE);
+                out.writeUTF(path);
+                writeEncoding(out);
+                out.writeInt(snapshot.length());
+            }
+            write(target, ByteBuffer.wrap(header.toByteArray()));
+            if (snapshot != null) {
+                char[] chars = new char[CHUNK_SIZE];
+                ByteBuffer bytes = ByteBuffer.allocate(2 * CHUNK_SIZE);
+                for (int offset = 0; offset < snapshot.length(); offset += CHUNK_SIZE) {
+                    int count = Math.min(CHUNK_SIZE, snapshot.length() - offset);
+                    snapshot.getChars(offset, offset + count, chars, 0);
+                    bytes.clear();
+                    bytes.asCharBuffer().put(chars, 0, count);
+                    bytes.limit(2 * count);
+                    write(target, bytes);
+                }
+            }
+        }
+
+        /**
+         * Writes the encoding of the file of this base.
+         */
+        private void writeEncoding(DataOutputStream out) throws IOException {
+            out.writeUTF(encoding.getCharset().name());
+            out.writeBoolean(encoding.hasBom());
+        }
+    }
+
+    /**
+     * The text of a document replayed from a journal. The journal is kept
+     * locked until the recovered text is safe in a new journal and this
+     * recovery is discarded.
+     */
+    public static final class Recovery {
+        private final List<Path> generations;
+        private final List<FileChannel> channels;
+        private File file;
+        private Encoding encoding = Encoding.UTF_8;
+        private char[] text;
+
+        private Recovery(List<Path> generations, List<FileChannel> channels) {
+            this.generations = generations;
+            this.channels = channels;
+        }
+
+        /**
+         *
+         * @return the file of the document, or null if it was never saved.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return the encoding of the file of the document.
+         */
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        /**
+         *
+         * @return the recovered text.
+         */
+        public CharBuffer getText() {
+            return CharBuffer.wrap(text);
+        }
+
+        /**
+         * Deletes the replayed journal. This is done on the writer thread, after
+         * any base already given to a new journal is on the device.
+         */
+        public void discard() {
+            Workers.journal().execute(() -> {
+                release();
+                for (Path journal : generations) {
+                    delete(journal);
+                }
+            });
+        }
+
+        /**
+         * Releases the replayed journal without deleting it.
+         */
+        private void release() {
+            for (FileChannel journalChannel : channels) {
+                try {
+                    journalChannel.close();
+                }
+                catch (IOException e) {
+                    Logger.getLogger(Journal.class.getName()).log(Level.WARNING, null, e);
+                }
+            }
+        }
+    }
+}
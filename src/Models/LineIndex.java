@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * An index of the line start offsets of a Document.
+ * The offsets are kept in a growable int array with a gap at the last edited
+ * line. Offsets after the gap are stored relative to the end of the document,
+ * so an edit never has to shift them: it only moves the gap, which is cheap
+ * for the local edits made while typing, and removes or inserts the line
+ * starts found in the edited text. Lines are found by binary search.
+ */
+public class LineIndex implements DocumentListener {
+    private int[] starts;
+    private int gapStart;
+    private int gapEnd;
+    private int length;
+    private boolean preloaded;
+
+    /**
+     * Constructs a new LineIndex for an empty document.
+     */
+    public LineIndex() {
+        load(new int[] {0}, 1, 0);
+        preloaded = false;
+    }
+
+    /**
+     * Loads line starts found while loading a document, so the index does not
+     * have to scan the document again when it is reset.
+     * @param lineStarts the line start offsets, the first one being 0.
+     * @param lineCount the number of line starts in the array.
+     * @param documentLength the length of the document.
+     */
+    public final void load(int[] lineStarts, int lineCount, int documentLength) {
+        starts = Arrays.copyOf(lineStarts, Math.max(16, lineCount + lineCount / 8));
+        gapStart = lineCount;
+        gapEnd = starts.length;
+        length = documentLength;
+        preloaded = true;
+    }
+
+    /**
+     *
+     * @return the number of lines.
+     */
+    public int getLineCount() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    /**
+     *
+     * @param line index, starting at 0.
+     * @return the offset of the start of the line.
+     */
+    public int getLineStart(int line) {
+        return line < gapStart ? starts[line] : length - starts[line + gapEnd - gapStart];
+    }
+
+    /**
+     *
+     * @param line index, starting at 0.
+     * @return the offset of the end of the line, before its line feed.
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < getLineCount() ? getLineStart(line + 1) - 1 : length;
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the index of the line holding the offset.
+     */
+    public int getLineOfOffset(int offset) {
+        int low = 0;
+        int high = getLineCount() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getLineStart(middle) <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Updates the index for an edit of the document.
+     * @param document which changed.
+     * @param offset of the edit.
+     * @param removedText by the edit.
+     * @param insertedText by the edit.
+     */
+    @Override
+    public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+        // The line starts within the removed text follow the line of the offset.
+        preloaded = false;
+        int line = getLineOfOffset(offset) + 1;
+        moveGap(line);
+        gapEnd += countLineFeeds(removedText);
+        length += insertedText.length() - removedText.length();
+        for (int i = insertedText.indexOf('\n'); i >= 0; i = insertedText.indexOf('\n', i + 1)) {
+            if (gapStart == gapEnd) {
+                growGap();
+            }
+            starts[gapStart++] = offset + i + 1;
+        }
+    }
+
+    /**
+     * Rebuilds the index when the whole document is replaced, unless the line
+     * starts were loaded with the document.
+     * @param document which was reset.
+     */
+    @Override
+    public void documentReset(Document document) {
+        if (preloaded && length == document.length()) {
+            preloaded = false;
+            return;
+        }
+        int[] lineStarts = new int[16];
+        int lineCount = 1;
+        for (int i = 0; i < document.length(); i++) {
+            if (document.charAt(i) == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = i + 1;
+            }
+        }
+        load(lineStarts, lineCount, document.length());
+        preloaded = false;
+    }
+
+    /**
+     * Finds the line starts of a text.
+     * @param text to be scanned, from its position to its limit.
+     * @return the line start offsets, the first one being 0.
+     */
+    public static int[] findLineStarts(CharBuffer text) {
+        int[] lineStarts = new int[Math.max(16, text.remaining() / 32)];
+        int lineCount = 1;
+        int length = text.remaining();
+        int position = text.position();
+        for (int i = 0; i < length; i++) {
+            if (text.get(position + i) == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(lineStarts, lineCount);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Moves the gap before a line, converting the offsets it moves over.
+     * @param line index of the line to be after the gap.
+     */
+    private void moveGap(int line) {
+        while (gapStart > line) {
+            gapStart--;
+            gapEnd--;
+            starts[gapEnd] = length - starts[gapStart];
+        }
+        while (gapStart < line) {
+            starts[gapStart] = length - starts[gapEnd];
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    /**
+     * Grows the array, keeping the offsets after the gap at its end.
+     */
+    private void growGap() {
+        int after = starts.length - gapEnd;
+        int[] grown = new int[starts.length * 2];
+        System.arraycopy(starts, 0, grown, 0, gapStart);
+        System.arraycopy(starts, gapEnd, grown, grown.length - after, after);
+        gapEnd = grown.length - after;
+        starts = grown;
+    }
+
+    /**
+     *
+     * @param text to be scanned.
+     * @return the number of line feeds in the text.
+     */
+    private static int countLineFeeds(String text) {
+        int count = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read only view of a file which is memory mapped in fixed size windows.
+ * Only a few windows are kept mapped at a time, so the heap use does not
+ * depend on the file size. Lines are found by scanning for line feeds around
+ * a byte offset, never by indexing the whole file. A line longer than the
+ * maximum line length is split in several lines.
+ */
+public class MappedFile implements Closeable {
+    /** The maximum number of bytes in a line. */
+    public static final int MAX_LINE_LENGTH = 1 << 13;
+    private static final int MAX_MAPPED_WINDOWS = 4;
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private final Charset charset;
+    private final Map<Long, MappedByteBuffer> windows;
+    private long currentWindowIndex = -1;
+    private MappedByteBuffer currentWindow;
+
+    /**
+     * Opens a file for memory mapped reading, decoding lines as UTF-8.
+     * @param file to be opened.
+     * @throws IOException
+     */
+    public MappedFile(File file) throws IOException {
+        this(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens a file for memory mapped reading.
+     * @param file to be opened.
+     * @param charset used to decode lines.
+     * @throws IOException
+     */
+    public MappedFile(File file, Charset charset) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = Math.min(Settings.getMappedWindowSize(), Integer.MAX_VALUE);
+        this.charset = charset;
+        this.windows = new LinkedHashMap<Long, MappedByteBuffer>(MAX_MAPPED_WINDOWS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > MAX_MAPPED_WINDOWS;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return the size of the file in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param position of a byte in the file.
+     * @return the byte at the position.
+     */
+    public byte byteAt(long position) {
+        long index = position / windowSize;
+        if (index != currentWindowIndex) {
+            currentWindow = window(index);
+            currentWindowIndex = index;
+        }
+        return currentWindow.get((int) (position - index * windowSize));
+    }
+
+    /**
+     *
+     * @param position of a byte in the file.
+     * @return the offset of the start of the line holding the position.
+     */
+    public long lineStart(long position) {
+        long limit = Math.max(0, position - MAX_LINE_LENGTH);
+        for (long i = Math.min(position, size) - 1; i >= limit; i--) {
+            if (byteAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @return the offset of the start of the next line, or the file size if
+     * this is the last line.
+     */
+    public long nextLineStart(long lineStart) {
+        long limit = Math.min(size, lineStart + MAX_LINE_LENGTH);
+        for (long i = lineStart; i < limit; i++) {
+            if (byteAt(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @return the offset of the start of the previous line, or 0 if this is
+     * the first line.
+     */
+    public long previousLineStart(long lineStart) {
+        return lineStart == 0 ? 0 : lineStart(lineStart - 1);
+    }
+
+    /**
+     *
+     * @param lineStart offset of the start of a line.
+     * @return the decoded line, without its line terminator.
+     */
+    public String readLine(long lineStart) {
+        long end = nextLineStart(lineStart);
+        int length = (int) (end - lineStart);
+        if (length > 0 && byteAt(end - 1) == '\n') {
+            length--;
+            if (length > 0 && byteAt(lineStart + length - 1) == '\r') {
+                length--;
+            }
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = byteAt(lineStart + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Closes the file. The mapped windows are released once they are garbage
+     * collected.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        windows.clear();
+        currentWindow = null;
+        currentWindowIndex = -1;
+        channel.close();
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param index of the window.
+     * @return the mapped window, mapping it if needed.
+     */
+    private MappedByteBuffer window(long index) {
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long start = index * windowSize;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            windows.put(index, window);
+        }
+        return window;
+    }
+}
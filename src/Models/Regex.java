@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers for the regular expression mode of find and replace.
+ * Compiled patterns are kept in a small LRU cache, as the same expression is
+ * compiled again for every search while the user steps through matches.
+ * Matching runs directly against a Document, which is a CharSequence, through
+ * a view which stops the search once it has read no new text for the regex
+ * timeout, so that a pattern with catastrophic backtracking cannot hang the
+ * application, while a long search which keeps moving through the text is
+ * never stopped, however large the text.
+ */
+public class Regex {
+    private static final int CACHE_SIZE = 32;
+    private static final Map<String, Pattern> PATTERNS = new LinkedHashMap<String, Pattern>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private Regex() {
+    }
+
+    /**
+     *
+     * @param regex to be compiled.
+     * @return the compiled pattern, from the cache if it was compiled lately.
+     * @throws java.util.regex.PatternSyntaxException if the expression is
+     * not valid.
+     */
+    public static Pattern compile(String regex) {
+        synchronized (PATTERNS) {
+            Pattern pattern = PATTERNS.get(regex);
+            if (pattern == null) {
+                pattern = Pattern.compile(regex, Pattern.MULTILINE);
+                PATTERNS.put(regex, pattern);
+            }
+            return pattern;
+        }
+    }
+
+    /**
+     *
+     * @param regex to be matched.
+     * @param text to be searched, for example a Document.
+     * @return a matcher of the text which throws a TimeoutException once the
+     * regex timeout has passed without the search reading any text it had not
+     * read before, and a CancellationException if the thread is interrupted.
+     */
+    public static Matcher matcher(String regex, CharSequence text) {
+        return compile(regex).matcher(new DeadlineCharSequence(text, Settings.getRegexTimeout() * 1000000L));
+    }
+
+    /**
+     * Checks that a replacement text only refers to groups of a regular
+     * expression, so a replacement fails before any text is replaced, and
+     * not at the first match, which a preview does not expand.
+     * @param regex to be replaced.
+     * @param replacement text, where $n and ${name} refer to groups and a
+     * backslash escapes the next char.
+     * @throws java.util.regex.PatternSyntaxException if the expression is
+     * not valid.
+     * @throws IllegalArgumentException if the replacement refers to a group
+     * the expression does not have, or a group name is not closed.
+     */
+    public static void checkReplacement(String regex, String replacement) {
+        int groupCount = compile(regex).matcher("").groupCount();
+        Set<String> groupNames = null;
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\' && i < replacement.length()) {
+                i++;
+            }
+            else if (c == '$' && i < replacement.length() && replacement.charAt(i) == '{') {
+                int end = replacement.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed group name in replacement.");
+                }
+                String name = replacement.substring(i + 1, end);
+                if (groupNames == null) {
+                    groupNames = groupNames(regex);
+                }
+                if (!groupNames.contains(name)) {
+                    throw new IllegalArgumentException("No group with name {" + name + "}.");
+                }
+                i = end + 1;
+            }
+            else if (c == '$' && i < replacement.length() && Character.isDigit(replacement.charAt(i))) {
+                // Later digits are only taken while they name a group.
+                int group = replacement.charAt(i++) - '0';
+                if (group > groupCount) {
+                    throw new IllegalArgumentException("No group " + group + ".");
+                }
+            }
+        }
+    }
+
+    /**
+     * Expands the references to groups of a replacement text, as
+     * Matcher.appendReplacement does, without copying the text between the
+     * matches.
+     * @param matcher positioned on a match.
+     * @param replacement text, where $n and ${name} refer to groups and a
+     * backslash escapes the next char.
+     * @return the text replacing the match.
+     */
+    public static String replacement(Matcher matcher, String replacement) {
+        StringBuilder result = new StringBuilder();
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\' && i < replacement.length()) {
+                result.append(replacement.charAt(i++));
+            }
+            else if (c == '$' && i < replacement.length() && replacement.charAt(i) == '{') {
+                int end = replacement.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed group name in replacement.");
+                }
+                appendGroup(result, matcher.group(replacement.substring(i + 1, end)));
+                i = end + 1;
+            }
+            else if (c == '$' && i < replacement.length() && Character.isDigit(replacement.charAt(i))) {
+                int group = replacement.charAt(i++) - '0';
+                // Take more digits while they still name an existing group.
+                while (i < replacement.length() && Character.isDigit(replacement.charAt(i))
+                        && group * 10 + replacement.charAt(i) - '0' <= matcher.groupCount()) {
+                    group = group * 10 + replacement.charAt(i++) - '0';
+                }
+                appendGroup(result, matcher.group(group));
+            }
+            else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param regex a valid regular expression.
+     * @return the names of its named groups, (?<name>X), skipping escapes,
+     * quotes and character classes, where the same chars are no group.
+     */
+    private static Set<String> groupNames(String regex) {
+        Set<String> names = new HashSet<>();
+        int classDepth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            if (c == '\\' && i < regex.length()) {
+                if (regex.charAt(i) == 'Q') {
+                    int end = regex.indexOf("\\E", i);
+                    i = end < 0 ? regex.length() : end + 2;
+                }
+                else {
+                    i++;
+                }
+            }
+            else if (c == '[') {
+                classDepth++;
+                // A ] right after the opening bracket is a literal.
+                if (i < regex.length() && regex.charAt(i) == '^') {
+                    i++;
+                }
+                if (i < regex.length() && regex.charAt(i) == ']') {
+                    i++;
+                }
+            }
+            else if (c == ']' && classDepth > 0) {
+                classDepth--;
+            }
+            else if (c == '(' && classDepth == 0 && regex.startsWith("?<", i)) {
+                int start = i + 2;
+                int end = start;
+                while (end < regex.length() && Character.isLetterOrDigit(regex.charAt(end))) {
+                    end++;
+                }
+                if (end > start && end < regex.length() && regex.charAt(end) == '>') {
+                    names.add(regex.substring(start, end));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     *
+     * @param result to which the group is appended.
+     * @param group text matched by the group, null if it did not match.
+     */
+    private static void appendGroup(StringBuilder result, String group) {
+        if (group != null) {
+            result.append(group);
+        }
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * Thrown when a regular expression search runs out of time.
+     */
+    public static class TimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs a new TimeoutException.
+         */
+        public TimeoutException() {
+            super("The regular expression search took too long.");
+        }
+    }
+
+    /**
+     * A view of a text which checks the time every few thousand reads, as
+     * the matcher reads chars even while it backtracks without progress.
+     * The deadline moves on whenever the matcher has read further into the
+     * text since the last check, so it only bounds the time spent going over
+     * text already read, which is where backtracking goes wrong, and not the
+     * time of the whole search, as a matcher may find many matches.
+     */
+    private static final class DeadlineCharSequence implements CharSequence {
+        private static final int CHECK_INTERVAL = 1 << 12;
+        private final CharSequence text;
+        private final long timeout;
+        private long deadline;
+        private int furthest = -1;
+        private int checkedFurthest = -1;
+        private int reads;
+
+        private DeadlineCharSequence(CharSequence text, long timeout) {
+            this.text = text;
+            this.timeout = timeout;
+            this.deadline = System.nanoTime() + timeout;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads == CHECK_INTERVAL) {
+                reads = 0;
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException();
+                }
+                long now = System.nanoTime();
+                if (furthest > checkedFurthest) {
+                    checkedFurthest = furthest;
+                    deadline = now + timeout;
+                }
+                else if (now - deadline > 0) {
+                    throw new TimeoutException();
+                }
+            }
+            if (index > furthest) {
+                furthest = index;
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
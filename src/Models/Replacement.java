@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * The replacements of a text, or of the matches of a regular expression, to
+ * be made in a document. They are found on a snapshot of the document, which
+ * may be done on a background thread, and then applied to the document on the
+ * FX thread, as one undoable edit, if it was not edited in the meantime.
+ */
+public class Replacement {
+    private final long version;
+    private final String text;
+    private final boolean regex;
+    private int[] starts;
+    private int[] ends;
+    private String[] replacements;
+    private String replacement;
+    private int count;
+
+    private Replacement(long version, String text, boolean regex) {
+        this.version = version;
+        this.text = text;
+        this.regex = regex;
+        this.starts = new int[16];
+    }
+
+    /**
+     * Finds the occurences of a text, which do not overlap, or the matches of
+     * a regular expression.
+     * @param snapshot of the document, or the document itself on the FX
+     * thread.
+     * @param searchIndex of the snapshot, used to find a text.
+     * @param text to be replaced, not empty, or a regular expression.
+     * @param replacement of each occurence. For a regular expression, $n and
+     * ${name} refer to its groups.
+     * @param regex true if the text is a regular expression.
+     * @return the replacements to be made.
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     * expression is not valid.
+     * @throws Regex.TimeoutException if matching it takes too long.
+     */
+    public static Replacement find(Document snapshot, SearchIndex searchIndex, String text, String replacement, boolean regex) {
+        Replacement result = new Replacement(snapshot.getVersion(), text, regex);
+        if (regex) {
+            result.ends = new int[16];
+            result.replacements = new String[16];
+            Matcher matcher = Regex.matcher(text, snapshot);
+            while (matcher.find()) {
+                result.add(matcher.start(), matcher.end(), Regex.replacement(matcher, replacement));
+            }
+        }
+        else {
+            result.replacement = replacement;
+            int occurence = searchIndex.indexOf(text, 0);
+            while (occurence != -1) {
+                Workers.checkCancelled();
+                result.add(occurence, occurence + text.length(), replacement);
+                occurence = searchIndex.indexOf(text, occurence + text.length());
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return the number of replacements.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     *
+     * @param index of a replacement, lower than the count.
+     * @return the offset of the replaced text in the document before the
+     * replacements, which is also the offset of the first replacement after.
+     */
+    public int getOffset(int index) {
+        return starts[index];
+    }
+
+    /**
+     *
+     * @param index of a replacement, lower than the count.
+     * @return the text replacing the occurence.
+     */
+    public String getReplacement(int index) {
+        return regex ? replacements[index] : replacement;
+    }
+
+    /**
+     * Makes the replacements in the document, as one undoable edit. This must
+     * be called on the FX thread.
+     * @param document in which the replacements were found.
+     * @return false if the document changed since the replacements were
+     * found, in which case nothing is replaced.
+     */
+    public boolean apply(Document document) {
+        if (document.getVersion() != version) {
+            return false;
+        }
+        if (!regex) {
+            document.replaceAll(starts, count, text, replacement);
+            return true;
+        }
+        document.replaceAll(starts, ends, replacements, count);
+        return true;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Adds a replacement.
+     */
+    private void add(int start, int end, String text) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            if (regex) {
+                ends = Arrays.copyOf(ends, count * 2);
+                replacements = Arrays.copyOf(replacements, count * 2);
+            }
+        }
+        starts[count] = start;
+        if (regex) {
+            ends[count] = end;
+            replacements[count] = text;
+        }
+        count++;
+    }
+}
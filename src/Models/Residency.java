@@ -0,0 +1,402 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.concurrent.Task;
+
+/**
+ * Keeps the texts of the documents of the open file tabs within a memory
+ * budget.
+ * The file tabs are kept in the order they were last selected. Once their
+ * documents hold more than Settings.getResidencyLimit() bytes, the documents
+ * of the least recently selected tabs are released, except the one of the
+ * selected tab. A saved document is read back from its file, if the file
+ * still has the size and the modification time it had when it was loaded or
+ * saved, and still hashes to the saved text. Any other document, or a saved
+ * one whose file changed, is first written to a spill file on a background
+ * thread, as raw chars, and released once it is written if it was not
+ * edited in the meantime. A released document is read back on a background
+ * thread when its tab is selected again, or by the first background task
+ * reading it before that, for example a search in all tabs. Code on the FX
+ * thread checks Document.isResident() before reading a document which may
+ * be released, and the readers of snapshots handle the
+ * UncheckedIOException thrown when the text cannot be read back.
+ */
+public class Residency {
+    private static final int CHUNK_SIZE = 1 << 15;
+    private final Map<FileTab, Boolean> fileTabs;
+    private final Map<FileTab, Eviction> evictions;
+    private FileTab selected;
+
+    /**
+     * Constructs a new Residency without file tabs.
+     */
+    public Residency() {
+        // Iterates from the least recently selected file tab.
+        this.fileTabs = new LinkedHashMap<>(16, 0.75f, true);
+        this.evictions = new HashMap<>();
+    }
+
+    /**
+     * Adds a file tab, as the most recently selected one.
+     * @param fileTab to be added.
+     */
+    public void add(FileTab fileTab) {
+        fileTabs.put(fileTab, Boolean.TRUE);
+    }
+
+    /**
+     * Removes a file tab and deletes its spill file.
+     * @param fileTab to be removed.
+     */
+    public void remove(FileTab fileTab) {
+        fileTabs.remove(fileTab);
+        if (selected == fileTab) {
+            selected = null;
+        }
+        discard(fileTab);
+    }
+
+    /**
+     * Removes every file tab and deletes their spill files.
+     */
+    public void clear() {
+        for (FileTab fileTab : fileTabs.keySet().toArray(new FileTab[0])) {
+            remove(fileTab);
+        }
+    }
+
+    /**
+     * Records that a file tab was selected, and releases the documents of the
+     * least recently selected tabs over the budget.
+     * @param fileTab which was selected.
+     * @return a task reading back the text of the document of the file tab,
+     * which is then put back with restore, or null if the document is in
+     * memory.
+     */
+    public Task<CharBuffer> select(FileTab fileTab) {
+        selected = fileTab;
+        fileTabs.get(fileTab);
+        trim();
+        Document document = fileTab.getDocument();
+        Eviction eviction = evictions.get(fileTab);
+        if (eviction == null || document.isResident()) {
+            // The text may have been read back by a read of the document.
+            document.restore(null);
+            discard(fileTab);
+            return null;
+        }
+        Callable<CharBuffer> source = eviction.source;
+        return new Task<CharBuffer>() {
+            @Override
+            protected CharBuffer call() throws Exception {
+                return source.call();
+            }
+        };
+    }
+
+    /**
+     * Puts back the text of the document of a file tab, read back by the
+     * task returned by select, and deletes its spill file.
+     * @param fileTab of the document.
+     * @param text of the document.
+     */
+    public void restore(FileTab fileTab, CharBuffer text) {
+        fileTab.getDocument().restore(text);
+        discard(fileTab);
+    }
+
+    /**
+     * Releases the documents of the least recently selected tabs, except the
+     * selected one, until the documents in memory fit in the budget.
+     */
+    public void trim() {
+        long limit = Settings.getResidencyLimit();
+        long size = 0;
+        for (FileTab fileTab : fileTabs.keySet()) {
+            size += getResidentSize(fileTab);
+        }
+        for (Iterator<FileTab> i = fileTabs.keySet().iterator(); i.hasNext() && size > limit;) {
+            FileTab fileTab = i.next();
+            long fileTabSize = getResidentSize(fileTab);
+            if (fileTab != selected && fileTabSize > 0) {
+                evict(fileTab);
+                size -= fileTabSize;
+            }
+        }
+    }
+
+    /**
+     *
+     * @return an estimate of the bytes held by the documents in memory.
+     */
+    public long getResidentSize() {
+        long size = 0;
+        for (FileTab fileTab : fileTabs.keySet()) {
+            size += getResidentSize(fileTab);
+        }
+        return size;
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @return the bytes held by the text of the document of the file tab, or
+     * 0 if it is released or being written to a spill file.
+     */
+    private long getResidentSize(FileTab fileTab) {
+        Document document = fileTab.getDocument();
+        Eviction eviction = evictions.get(fileTab);
+        if (!document.isResident() || (eviction != null && eviction.writer != null)) {
+            return 0;
+        }
+        return 2L * document.length();
+    }
+
+    /**
+     * Releases the document of a file tab, right away if it is saved in its
+     * file and the file did not change since, or once it is written to a
+     * spill file otherwise.
+     */
+    private void evict(FileTab fileTab) {
+        Document document = fileTab.getDocument();
+        document.restore(null);
+        discard(fileTab);
+        File file = fileTab.getFile();
+        if (fileTab.isFileUnchanged() && fileTab.getContentHash().isSaved()) {
+            long hash = fileTab.getContentHash().getHash();
+            int length = document.length();
+            Encoding encoding = fileTab.getEncoding();
+            long size = fileTab.getSavedFileSize();
+            long modified = fileTab.getSavedFileModified();
+            Eviction eviction = new Eviction(() -> readFile(file, encoding, size, modified, hash, length), null);
+            evictions.put(fileTab, eviction);
+            document.release(eviction.source);
+        }
+        else {
+            spill(fileTab);
+        }
+    }
+
+    /**
+     * Writes the document of a file tab to a spill file on a background
+     * thread and releases it once written, unless it was edited or selected
+     * in the meantime.
+     */
+    private void spill(FileTab fileTab) {
+        Document document = fileTab.getDocument();
+        Document snapshot = document.snapshot();
+        Path spillFile;
+        try {
+            spillFile = Files.createTempFile("simpletexteditor-", ".spill");
+        }
+        catch (IOException ex) {
+            Logger.getLogger(Residency.class.getName()).log(Level.WARNING, null, ex);
+            return;
+        }
+        int length = snapshot.length();
+        Eviction eviction = new Eviction(() -> readSpillFile(spillFile, length), spillFile);
+        SpillWriter writer = new SpillWriter(snapshot, spillFile);
+        eviction.writer = writer;
+        evictions.put(fileTab, eviction);
+        writer.setOnSucceeded((event) -> {
+            if (evictions.get(fileTab) == eviction) {
+                eviction.writer = null;
+                if (fileTab != selected && document.getVersion() == snapshot.getVersion()) {
+                    // Hash the edited blocks now, so saving the released
+                    // document does not read it back.
+                    fileTab.getContentHash().getHash();
+                    document.release(eviction.source);
+                }
+                else {
+                    discard(fileTab);
+                }
+            }
+        });
+        writer.setOnFailed((event) -> {
+            Logger.getLogger(Residency.class.getName()).log(Level.WARNING, null, writer.getException());
+            if (evictions.get(fileTab) == eviction) {
+                discard(fileTab);
+            }
+        });
+        Workers.io().execute(writer);
+    }
+
+    /**
+     * Forgets how the document of a file tab was released, stopping the
+     * write of its spill file and deleting it.
+     */
+    private void discard(FileTab fileTab) {
+        Eviction eviction = evictions.remove(fileTab);
+        if (eviction != null) {
+            if (eviction.writer != null) {
+                eviction.writer.cancel();
+            }
+            if (eviction.spillFile != null) {
+                try {
+                    Files.deleteIfExists(eviction.spillFile);
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(Residency.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads back the text of a saved document from its file.
+     * @param file of the document.
+     * @param encoding of the file.
+     * @param size of the file when the text was saved.
+     * @param modified time of the file when the text was saved.
+     * @param hash of the saved text.
+     * @param length of the saved text.
+     * @return the text of the document.
+     * @throws IOException if the file cannot be read or no longer holds the
+     * saved text.
+     */
+    private static CharBuffer readFile(File file, Encoding encoding, long size, long modified, long hash, int length) throws IOException {
+        if (file.length() != size || file.lastModified() != modified) {
+            throw new IOException(file + " changed since its text was released.");
+        }
+        FileLoader loader = new FileLoader(file, encoding);
+        loader.run();
+        CharBuffer text;
+        try {
+            text = loader.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(file + " was not read.");
+        }
+        catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+        if (text == null || text.remaining() != length || loader.getContentHash() != hash) {
+            throw new IOException(file + " changed since its text was released.");
+        }
+        return text;
+    }
+
+    /**
+     * Reads back the text of a document from its spill file.
+     * @param spillFile holding the chars of the text.
+     * @param length of the text.
+     * @return the text of the document.
+     * @throws IOException 
+     */
+    private static CharBuffer readSpillFile(Path spillFile, int length) throws IOException {
+        char[] chars = new char[length];
+        ByteBuffer bytes = ByteBuffer.allocateDirect(2 * CHUNK_SIZE).order(ByteOrder.nativeOrder());
+        try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+            for (int start = 0; start < length; start += CHUNK_SIZE) {
+                int count = Math.min(CHUNK_SIZE, length - start);
+                bytes.clear();
+                bytes.limit(2 * count);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0) {
+                        throw new EOFException(spillFile + " is shorter than the released text.");
+                    }
+                }
+                bytes.flip();
+                bytes.asCharBuffer().get(chars, start, count);
+            }
+        }
+        return CharBuffer.wrap(chars);
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * How the document of a file tab was released: the source of its text,
+     * and its spill file with the task writing it, if any.
+     */
+    private static final class Eviction {
+        private final Callable<CharBuffer> source;
+        private final Path spillFile;
+        private SpillWriter writer;
+
+        private Eviction(Callable<CharBuffer> source, Path spillFile) {
+            this.source = source;
+            this.spillFile = spillFile;
+        }
+    }
+
+    /**
+     * A background task writing the chars of a snapshot of a document to a
+     * spill file, in the native byte order, so every char is read back as
+     * it was, even an unpaired surrogate.
+     */
+    private static final class SpillWriter extends Task<Void> {
+        private final Document snapshot;
+        private final Path spillFile;
+
+        private SpillWriter(Document snapshot, Path spillFile) {
+            this.snapshot = snapshot;
+            this.spillFile = spillFile;
+        }
+
+        @Override
+        protected Void call() throws IOException {
+            int length = snapshot.length();
+            char[] chars = new char[CHUNK_SIZE];
+            ByteBuffer bytes = ByteBuffer.allocateDirect(2 * CHUNK_SIZE).order(ByteOrder.nativeOrder());
+            try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int start = 0; start < length; start += CHUNK_SIZE) {
+                    Workers.checkCancelled();
+                    int count = Math.min(CHUNK_SIZE, length - start);
+                    snapshot.getChars(start, start + count, chars, 0);
+                    bytes.clear();
+                    bytes.asCharBuffer().put(chars, 0, count);
+                    bytes.limit(2 * count);
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.concurrent.Task;
+
+/**
+ * A trigram index of a Document which lets find skip the parts of the
+ * document which cannot hold the text searched for.
+ * The document is split in blocks of about BLOCK_SIZE chars and each block
+ * keeps a signature: a bit set with one bit per hash of the trigrams
+ * starting in the block. A text of three chars or more can only occur in
+ * a block whose signature, together with the signatures of the blocks the
+ * text may run into, has the bits of all the trigrams of the text. Only
+ * those candidate blocks are scanned, so finding a rare text in a huge
+ * document reads a few blocks instead of the whole document.
+ * The index is built on a background thread from a snapshot of the document
+ * when a large document is loaded. Edits only change the lengths of the
+ * blocks they touch and mark their signatures as outdated, and outdated
+ * signatures are computed again when a search needs them. Until the index is
+ * built, and for shorter texts, searches scan the document.
+ */
+public class SearchIndex implements DocumentListener {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int SCAN_SIZE = 16 * 4096;
+    private static final int MAX_UPDATES = 256;
+    private static final int GRAM = 3;
+    private static final int SIGNATURE_SHIFT = 32 - 13;
+    private static final int SIGNATURE_WORDS = (1 << (32 - SIGNATURE_SHIFT)) / 64;
+    private final Document document;
+    private Builder builder;
+    private List<int[]> pendingEdits;
+    private boolean ready;
+    private int blockCount;
+    private int[] blockLengths;
+    private long[][] signatures;
+    private int[] blockStarts;
+    private int validBlockStarts;
+
+    /**
+     * Constructs a new SearchIndex. It must be added as a listener of the
+     * document to be kept up to date.
+     * @param document to be indexed.
+     */
+    public SearchIndex(Document document) {
+        this.document = document;
+    }
+
+    /**
+     *
+     * @return true if the index is built and used by the searches.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search forward.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    public int indexOf(String text, int fromIndex) {
+        int from = Math.max(0, fromIndex);
+        if (!ready || text.length() < GRAM || from >= document.length()) {
+            return scan(text, from);
+        }
+        int[] bits = signatureBits(text);
+        for (int block = findBlock(from); block < blockCount; block++) {
+            Workers.checkCancelled();
+            if (mayContain(block, bits, text.length())) {
+                int start = blockStarts[block];
+                int found = document.indexOf(text, Math.max(from, start), start + blockLengths[block]);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @param fromIndex offset from which to search backwards.
+     * @return the offset of the last occurence of the text, or -1.
+     */
+    public int lastIndexOf(String text, int fromIndex) {
+        int from = Math.min(fromIndex, document.length() - text.length());
+        if (!ready || text.length() < GRAM || from < 0) {
+            return scanBackwards(text, from);
+        }
+        int[] bits = signatureBits(text);
+        for (int block = findBlock(from); block >= 0; block--) {
+            Workers.checkCancelled();
+            if (mayContain(block, bits, text.length())) {
+                int start = blockStarts[block];
+                int found = document.lastIndexOf(text, Math.min(from, start + blockLengths[block] - 1), start);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the occurences of a text which do not overlap, up to a limit.
+     * @param text to be counted.
+     * @param limit at which counting stops.
+     * @return the number of occurences, or the limit if there are more.
+     */
+    public int count(String text, int limit) {
+        if (text.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        int found = indexOf(text, 0);
+        while (found >= 0 && count < limit) {
+            count++;
+            found = indexOf(text, found + text.length());
+        }
+        return count;
+    }
+
+    /**
+     * Copies the index for a snapshot of its document. The copy shares the
+     * signatures already computed, computes the outdated ones from the
+     * snapshot, and is not updated by later edits, so it can be used on
+     * another thread. This must be called on the thread editing the
+     * document.
+     * @param snapshot of the indexed document, taken at the same version.
+     * @return an index of the snapshot, which scans it if this index is not
+     * ready.
+     */
+    public SearchIndex snapshot(Document snapshot) {
+        SearchIndex copy = new SearchIndex(snapshot);
+        if (ready) {
+            updateBlockStarts();
+            copy.ready = true;
+            copy.blockCount = blockCount;
+            copy.blockLengths = Arrays.copyOf(blockLengths, blockCount);
+            copy.signatures = Arrays.copyOf(signatures, blockCount);
+            copy.blockStarts = Arrays.copyOf(blockStarts, blockCount);
+            copy.validBlockStarts = blockCount;
+        }
+        return copy;
+    }
+
+    /**
+     * Updates the lengths of the blocks touched by an edit.
+     * @param document which changed.
+     * @param offset of the edit.
+     * @param removedText by the edit.
+     * @param insertedText by the edit.
+     */
+    @Override
+    public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+        if (builder != null) {
+            pendingEdits.add(new int[] {offset, removedText.length(), insertedText.length()});
+        }
+        else if (ready) {
+            update(offset, removedText.length(), insertedText.length());
+        }
+    }
+
+    /**
+     * Updates the index for each occurence replaced, or builds it again when
+     * there are many of them: every update recomputes the start offsets of the
+     * following blocks, which costs more than a new index.
+     * @param document which changed.
+     * @param offsets of the occurences before the change.
+     * @param removedText at each offset.
+     * @param insertedText at each offset.
+     */
+    @Override
+    public void documentReplacedAll(Document document, int[] offsets, String removedText, String insertedText) {
+        if (offsets.length > MAX_UPDATES) {
+            documentReset(document);
+        }
+        else {
+            DocumentListener.super.documentReplacedAll(document, offsets, removedText, insertedText);
+        }
+    }
+
+    /**
+     * Updates the index for each range replaced, or builds it again when
+     * there are many of them, as for documentReplacedAll.
+     * @param document which changed.
+     * @param offsets of the ranges before the change.
+     * @param removedTexts at each offset.
+     * @param insertedTexts at each offset.
+     */
+    @Override
+    public void documentReplacedRanges(Document document, int[] offsets, String[] removedTexts, String[] insertedTexts) {
+        if (offsets.length > MAX_UPDATES) {
+            documentReset(document);
+        }
+        else {
+            DocumentListener.super.documentReplacedRanges(document, offsets, removedTexts, insertedTexts);
+        }
+    }
+
+    /**
+     * Drops the index and builds it again in the background if the document
+     * is large enough to need one.
+     * @param document which was reset.
+     */
+    @Override
+    public void documentReset(Document document) {
+        if (builder != null) {
+            builder.cancel();
+            builder = null;
+        }
+        ready = false;
+        blockLengths = null;
+        signatures = null;
+        blockStarts = null;
+        if (Settings.isSearchIndexEnabled() && document.length() >= Settings.getSearchIndexThreshold()) {
+            build();
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Computes the signatures of a snapshot of the document on a background
+     * thread. The edits made in the meantime are applied once it is done.
+     */
+    private void build() {
+        Builder task = new Builder(document.snapshot());
+        builder = task;
+        pendingEdits = new ArrayList<>();
+        task.setOnSucceeded((event) -> {
+            if (builder == task) {
+                builder = null;
+                install(task.snapshot.length(), task.getValue());
+                for (int[] edit : pendingEdits) {
+                    update(edit[0], edit[1], edit[2]);
+                }
+                pendingEdits = null;
+            }
+        });
+        task.setOnFailed((event) -> {
+            if (builder == task) {
+                builder = null;
+                pendingEdits = null;
+            }
+        });
+        Workers.io().execute(task);
+    }
+
+    /**
+     * Makes the built signatures the blocks of the index.
+     * @param length of the indexed snapshot.
+     * @param built signatures, one per block of BLOCK_SIZE chars.
+     */
+    private void install(int length, long[][] built) {
+        blockCount = built.length;
+        int capacity = Math.max(16, blockCount + blockCount / 8);
+        blockLengths = new int[capacity];
+        Arrays.fill(blockLengths, 0, blockCount, BLOCK_SIZE);
+        blockLengths[blockCount - 1] = length - (blockCount - 1) * BLOCK_SIZE;
+        signatures = Arrays.copyOf(built, capacity);
+        blockStarts = new int[capacity];
+        validBlockStarts = 0;
+        ready = true;
+    }
+
+    /**
+     * Merges the blocks touched by an edit into one block, marks the
+     * signatures it changed as outdated and splits the block if it grew too
+     * long.
+     * @param offset of the edit.
+     * @param removedLength of the edit.
+     * @param insertedLength of the edit.
+     */
+    private void update(int offset, int removedLength, int insertedLength) {
+        int first = findBlock(offset);
+        int last = removedLength > 0 ? findBlock(offset + removedLength - 1) : first;
+        int firstStart = blockStarts[first];
+        int lastEnd = blockStarts[last] + blockLengths[last];
+        int length = lastEnd - firstStart - removedLength + insertedLength;
+        removeBlocks(first + 1, last + 1);
+        blockLengths[first] = length;
+        signatures[first] = null;
+        // The trigrams starting just before the edit run into it.
+        int covered = 0;
+        for (int block = first - 1; block >= 0 && covered < GRAM - 1; block--) {
+            signatures[block] = null;
+            covered += blockLengths[block];
+        }
+        invalidateBlockStarts(first);
+        if (length > 2 * BLOCK_SIZE) {
+            int count = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            insertBlocks(first + 1, count - 1);
+            for (int i = 0; i < count; i++) {
+                blockLengths[first + i] = Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE);
+            }
+        }
+        else if (length == 0 && blockCount > 1) {
+            removeBlocks(first, first + 1);
+        }
+    }
+
+    /**
+     *
+     * @param block index of the block where the text would start.
+     * @param bits of the trigrams of the text.
+     * @param textLength length of the text.
+     * @return false if the text cannot start in the block.
+     */
+    private boolean mayContain(int block, int[] bits, int textLength) {
+        // Offset of the last trigram of a text starting in the block.
+        int lastTrigram = blockStarts[block] + blockLengths[block] - 1 + textLength - GRAM;
+        for (int bit : bits) {
+            boolean found = false;
+            for (int i = block; i < blockCount && blockStarts[i] <= lastTrigram && !found; i++) {
+                found = (signature(i)[bit >>> 6] & (1L << bit)) != 0;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches the document forward without the index, a range of blocks at
+     * a time so that a cancelled search stops soon.
+     * @param text to be found.
+     * @param from offset from which to search forward.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    private int scan(String text, int from) {
+        for (int start = from; start <= document.length(); start += SCAN_SIZE) {
+            Workers.checkCancelled();
+            int found = document.indexOf(text, start, (int) Math.min((long) start + SCAN_SIZE, document.length() + 1L));
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Searches the document backwards without the index, a range of blocks
+     * at a time so that a cancelled search stops soon.
+     * @param text to be found.
+     * @param from offset from which to search backwards.
+     * @return the offset of the last occurence of the text, or -1.
+     */
+    private int scanBackwards(String text, int from) {
+        for (int end = from; end >= 0; end -= SCAN_SIZE) {
+            Workers.checkCancelled();
+            int found = document.lastIndexOf(text, end, Math.max(0, end - SCAN_SIZE + 1));
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param block index of a block.
+     * @return the signature of the block, computed again if it is outdated.
+     */
+    private long[] signature(int block) {
+        if (signatures[block] == null) {
+            signatures[block] = sign(document, blockStarts[block], blockLengths[block]);
+        }
+        return signatures[block];
+    }
+
+    /**
+     *
+     * @param source document holding the block.
+     * @param start offset of the block.
+     * @param length of the block.
+     * @return the signature of the trigrams starting in the block.
+     */
+    private static long[] sign(Document source, int start, int length) {
+        long[] signature = new long[SIGNATURE_WORDS];
+        int end = Math.min(start + length + GRAM - 1, source.length());
+        char[] chars = new char[end - start];
+        source.getChars(start, end, chars, 0);
+        for (int i = 0; i + GRAM <= chars.length && i < length; i++) {
+            int bit = hash(chars[i], chars[i + 1], chars[i + 2]);
+            signature[bit >>> 6] |= 1L << bit;
+        }
+        return signature;
+    }
+
+    /**
+     *
+     * @param text to be found.
+     * @return the distinct signature bits of the trigrams of the text.
+     */
+    private static int[] signatureBits(String text) {
+        int[] bits = new int[text.length() - GRAM + 1];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = hash(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2));
+        }
+        Arrays.sort(bits);
+        int count = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (count == 0 || bits[count - 1] != bits[i]) {
+                bits[count++] = bits[i];
+            }
+        }
+        return Arrays.copyOf(bits, count);
+    }
+
+    /**
+     *
+     * @return the signature bit of a trigram.
+     */
+    private static int hash(char c0, char c1, char c2) {
+        int hash = ((c0 * 31) + c1) * 31 + c2;
+        return (hash * 0x9E3779B1) >>> SIGNATURE_SHIFT;
+    }
+
+    /**
+     *
+     * @param offset in the document.
+     * @return the index of the block holding the offset, or the last block
+     * for the end of the document.
+     */
+    private int findBlock(int offset) {
+        updateBlockStarts();
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockStarts[middle] <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes a range of blocks.
+     * @param from index of the first block, inclusive.
+     * @param to index of the last block, exclusive.
+     */
+    private void removeBlocks(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        System.arraycopy(blockLengths, to, blockLengths, from, blockCount - to);
+        System.arraycopy(signatures, to, signatures, from, blockCount - to);
+        blockCount -= to - from;
+        Arrays.fill(signatures, blockCount, blockCount + to - from, null);
+        invalidateBlockStarts(from);
+    }
+
+    /**
+     * Inserts empty blocks with outdated signatures.
+     * @param index of the first inserted block.
+     * @param count of blocks to insert.
+     */
+    private void insertBlocks(int index, int count) {
+        if (blockCount + count > blockLengths.length) {
+            int capacity = Math.max(blockCount + count, blockLengths.length * 2);
+            blockLengths = Arrays.copyOf(blockLengths, capacity);
+            signatures = Arrays.copyOf(signatures, capacity);
+            blockStarts = Arrays.copyOf(blockStarts, capacity);
+        }
+        System.arraycopy(blockLengths, index, blockLengths, index + count, blockCount - index);
+        System.arraycopy(signatures, index, signatures, index + count, blockCount - index);
+        Arrays.fill(signatures, index, index + count, null);
+        blockCount += count;
+        invalidateBlockStarts(index);
+    }
+
+    /**
+     * Marks the start offsets of the blocks from an index as outdated.
+     * @param block index of the first outdated block.
+     */
+    private void invalidateBlockStarts(int block) {
+        validBlockStarts = Math.min(validBlockStarts, block);
+    }
+
+    /**
+     * Recomputes the outdated start offsets of the blocks.
+     */
+    private void updateBlockStarts() {
+        if (validBlockStarts >= blockCount) {
+            return;
+        }
+        int offset = validBlockStarts == 0 ? 0 : blockStarts[validBlockStarts - 1] + blockLengths[validBlockStarts - 1];
+        for (int i = validBlockStarts; i < blockCount; i++) {
+            blockStarts[i] = offset;
+            offset += blockLengths[i];
+        }
+        validBlockStarts = blockCount;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * A background task computing the signatures of the blocks of a snapshot.
+     */
+    private static final class Builder extends Task<long[][]> {
+        private final Document snapshot;
+
+        private Builder(Document snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected long[][] call() {
+            int length = snapshot.length();
+            long[][] built = new long[Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE)][];
+            for (int block = 0; block < built.length; block++) {
+                if (isCancelled()) {
+                    return null;
+                }
+                int start = block * BLOCK_SIZE;
+                built[block] = sign(snapshot, start, Math.min(BLOCK_SIZE, length - start));
+            }
+            return built;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files open when the application was last closed, with the selection
+ * and the scroll position of each of them, and the selected one.
+ * The session is written on exit and read on startup. Only the selected file
+ * is loaded right away: the other tabs are created without loading their
+ * file until they are selected, so startup does not depend on the number of
+ * files in the session. Unsaved documents are not part of the session, they
+ * are recovered from their journal.
+ */
+public class Session {
+    private static final int MAGIC = 0x53545331;
+    private final List<Entry> entries;
+    private int selected;
+
+    /**
+     * Constructs a new empty Session.
+     */
+    public Session() {
+        this.entries = new ArrayList<>();
+        this.selected = -1;
+    }
+
+    /**
+     * Reads a session.
+     * @param path of the session file.
+     * @return the session, which is empty if there is no session file or if
+     * it cannot be read.
+     */
+    public static Session load(Path path) {
+        Session session = new Session();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a session file.");
+            }
+            int count = in.readInt();
+            int selected = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(in.readUTF());
+                int anchor = in.readInt();
+                int caretPosition = in.readInt();
+                int topLine = in.readInt();
+                double scrollX = in.readDouble();
+                session.add(new Entry(file, anchor, caretPosition, topLine, scrollX));
+            }
+            session.setSelected(selected);
+        }
+        catch (NoSuchFileException ex) {
+            // No session was saved yet.
+        }
+        catch (IOException ex) {
+            Logger.getLogger(Session.class.getName()).log(Level.WARNING, null, ex);
+            return new Session();
+        }
+        return session;
+    }
+
+    /**
+     * Writes the session to a temporary file which then replaces the
+     * session file, so a failed write never leaves a partial session.
+     * @param path of the session file.
+     * @throws IOException 
+     */
+    public void save(Path path) throws IOException {
+        Path target = path.toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = AtomicWrite.createTempFile(target);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(entries.size());
+                out.writeInt(selected);
+                for (Entry entry : entries) {
+                    out.writeUTF(entry.getFile().getPath());
+                    out.writeInt(entry.getAnchor());
+                    out.writeInt(entry.getCaretPosition());
+                    out.writeInt(entry.getTopLine());
+                    out.writeDouble(entry.getScrollX());
+                }
+            }
+            AtomicWrite.move(temp, target);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Adds a file at the end of the session.
+     * @param entry of the file.
+     */
+    public void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     *
+     * @return the files of the session, in the order of their tabs.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     *
+     * @return the index of the selected file, or -1 if none is selected.
+     */
+    public int getSelected() {
+        return selected;
+    }
+
+    /**
+     * Sets the selected file.
+     * @param value index of the selected file, or -1 if none is selected.
+     */
+    public void setSelected(int value) {
+        selected = value >= 0 && value < entries.size() ? value : -1;
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * A file of a session, with the selection and the scroll position of its
+     * editor.
+     */
+    public static final class Entry {
+        private final File file;
+        private final int anchor;
+        private final int caretPosition;
+        private final int topLine;
+        private final double scrollX;
+
+        /**
+         * Constructs a new Entry.
+         * @param file of the tab.
+         * @param anchor of the selection.
+         * @param caretPosition of the selection.
+         * @param topLine index of the first line shown in the editor.
+         * @param scrollX horizontal scroll of the editor, in pixels.
+         */
+        public Entry(File file, int anchor, int caretPosition, int topLine, double scrollX) {
+            this.file = file;
+            this.anchor = anchor;
+            this.caretPosition = caretPosition;
+            this.topLine = topLine;
+            this.scrollX = scrollX;
+        }
+
+        /**
+         *
+         * @return the file of the tab.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         *
+         * @return the anchor of the selection.
+         */
+        public int getAnchor() {
+            return anchor;
+        }
+
+        /**
+         *
+         * @return the caret position of the selection.
+         */
+        public int getCaretPosition() {
+            return caretPosition;
+        }
+
+        /**
+         *
+         * @return the index of the first line shown in the editor.
+         */
+        public int getTopLine() {
+            return topLine;
+        }
+
+        /**
+         *
+         * @return the horizontal scroll of the editor, in pixels.
+         */
+        public double getScrollX() {
+            return scrollX;
+        }
+    }
+}
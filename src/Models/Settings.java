@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Holds the tunable settings of the application.
+ * Every setting has a default value which can be overridden with a system
+ * property, e.g. -Dsimpletexteditor.largeFileThreshold=134217728.
+ */
+public class Settings {
+    private static final String PREFIX = "simpletexteditor.";
+
+    private Settings() {
+    }
+
+    /**
+     *
+     * @return the size in bytes above which files are opened in the read only
+     * large file viewer instead of being loaded in the editor.
+     */
+    public static long getLargeFileThreshold() {
+        return getLong("largeFileThreshold", 64L << 20);
+    }
+
+    /**
+     *
+     * @return the number of files read and decoded at the same time, so
+     * opening many files at once neither waits for each file in turn nor
+     * starts a thread per file. Twice the number of processors by default,
+     * between 2 and 16, since reading mostly waits for the disk.
+     */
+    public static int getLoadThreads() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        long value = getLong("loadThreads", Math.max(2, Math.min(16, 2 * processors)));
+        return (int) Math.max(1, Math.min(64, value));
+    }
+
+    /**
+     *
+     * @return the number of bytes at the start of a file checked to find its
+     * encoding, 64 KiB by default. The rest of the file is checked while it
+     * is decoded.
+     */
+    public static int getEncodingDetectionLimit() {
+        return (int) Math.max(16, Math.min(Integer.MAX_VALUE - 8, getLong("encodingDetectionLimit", 64 << 10)));
+    }
+
+    /**
+     *
+     * @return the charset of the files which are neither valid UTF-8 nor
+     * start with a byte order mark, windows-1252 by default, or ISO-8859-1
+     * where it is not supported.
+     */
+    public static Charset getLegacyCharset() {
+        String value = System.getProperty(PREFIX + "legacyCharset");
+        if (value != null && Charset.isSupported(value.trim())) {
+            return Charset.forName(value.trim());
+        }
+        return Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     *
+     * @return the size in bytes of each memory mapped window of the large
+     * file viewer.
+     */
+    public static long getMappedWindowSize() {
+        return getLong("mappedWindowSize", 64L << 20);
+    }
+
+    /**
+     *
+     * @return how far saves wait for the written file to reach the storage
+     * device, one of none, file or full.
+     */
+    public static SyncPolicy getSyncPolicy() {
+        String value = System.getProperty(PREFIX + "syncPolicy");
+        if (value != null) {
+            try {
+                return SyncPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            }
+            catch (IllegalArgumentException e) {
+                // Fall back to the default.
+            }
+        }
+        return SyncPolicy.FILE;
+    }
+
+    /**
+     *
+     * @return the directory holding the crash recovery journals of the open
+     * documents.
+     */
+    public static Path getJournalDirectory() {
+        String value = System.getProperty(PREFIX + "journalDirectory");
+        if (value != null && !value.trim().isEmpty()) {
+            return Paths.get(value.trim());
+        }
+        return Paths.get(System.getProperty("user.home"), ".simpletexteditor", "journal");
+    }
+
+    /**
+     *
+     * @return the time in milliseconds the edits are gathered before they are
+     * written to the journal, as one batch.
+     */
+    public static long getJournalFlushDelay() {
+        return getLong("journalFlushDelay", 200);
+    }
+
+    /**
+     *
+     * @return the time in milliseconds the find dialog waits after the last
+     * keystroke before it searches.
+     */
+    public static long getFindDelay() {
+        return getLong("findDelay", 150);
+    }
+
+    /**
+     *
+     * @return true if large documents get a search index.
+     */
+    public static boolean isSearchIndexEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(PREFIX + "searchIndex"));
+    }
+
+    /**
+     *
+     * @return the length in chars from which a loaded document gets a search
+     * index. Smaller documents are simply scanned.
+     */
+    public static long getSearchIndexThreshold() {
+        return getLong("searchIndexThreshold", 1L << 20);
+    }
+
+    /**
+     *
+     * @return the time in milliseconds a regular expression search may run
+     * before it is stopped.
+     */
+    public static long getRegexTimeout() {
+        return getLong("regexTimeout", 2000);
+    }
+
+    /**
+     *
+     * @return the size in bytes above which find in files skips a file.
+     */
+    public static long getFindInFilesMaxSize() {
+        return getLong("findInFilesMaxSize", 16L << 20);
+    }
+
+    /**
+     *
+     * @return the time in milliseconds within which typed chars are undone
+     * together.
+     */
+    public static long getUndoCoalesceDelay() {
+        return getLong("undoCoalesceDelay", 1000);
+    }
+
+    /**
+     *
+     * @return an estimate of the bytes the undo history of a document may
+     * hold before its oldest edits are forgotten.
+     */
+    public static long getUndoLimit() {
+        return getLong("undoLimit", 64L << 20);
+    }
+
+    /**
+     *
+     * @return the bytes the texts of the open documents may hold before the
+     * least recently selected ones are released, a quarter of the maximum
+     * heap by default.
+     */
+    public static long getResidencyLimit() {
+        return getLong("residencyLimit", Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     *
+     * @return true if the open files are saved in a session on exit and
+     * opened again on startup.
+     */
+    public static boolean isSessionEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty(PREFIX + "session"));
+    }
+
+    /**
+     *
+     * @return the file holding the session saved on exit.
+     */
+    public static Path getSessionFile() {
+        String value = System.getProperty(PREFIX + "sessionFile");
+        if (value != null && !value.trim().isEmpty()) {
+            return Paths.get(value.trim());
+        }
+        return Paths.get(System.getProperty("user.home"), ".simpletexteditor", "session");
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param name of the setting, without the prefix.
+     * @param defaultValue returned if the property is not set or invalid.
+     * @return the value of the setting.
+     */
+    private static long getLong(String name, long defaultValue) {
+        Long value = Long.getLong(PREFIX + name);
+        return value != null && value > 0 ? value : defaultValue;
+    }
+}
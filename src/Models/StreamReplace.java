@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+
+/**
+ * Replaces a text, or the matches of a regular expression, in a stream of
+ * chars, on the calling thread. It needs no JavaFX, so the batch mode of the
+ * command line uses it directly, and FileReplace uses it for each file.
+ * The chars are read in windows of BUFFER_SIZE chars, and the text between
+ * the replacements is copied as it is. The end of a window is kept for the
+ * next one while a match may run across it, so a regular expression match is
+ * only cut at a window if it is longer than MAX_MATCH_LENGTH chars. A
+ * StreamReplace may replace in many streams at once.
+ */
+public class StreamReplace {
+    private static final int BUFFER_SIZE = 1 << 17;
+    private static final int MAX_MATCH_LENGTH = 1 << 15;
+    private static final int CONTEXT_LENGTH = 1 << 8;
+    private final String text;
+    private final String replacement;
+    private final boolean regex;
+    private final BooleanSupplier cancelled;
+
+    /**
+     * Constructs a new StreamReplace.
+     * @param text to be replaced, not empty, or a regular expression.
+     * @param replacement of each occurence. For a regular expression, $n and
+     * ${name} refer to its groups.
+     * @param regex true if the text is a regular expression.
+     * @param cancelled tells, between two windows, whether to stop.
+     */
+    public StreamReplace(String text, String replacement, boolean regex, BooleanSupplier cancelled) {
+        this.text = text;
+        this.replacement = replacement;
+        this.regex = regex;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Copies the chars of the reader to the writer, replacing the occurences
+     * of the text or the matches of the regular expression, one window of
+     * chars at a time.
+     * @param in chars to be replaced in.
+     * @param out receiving the chars with their replacements, or null to only
+     * count them.
+     * @return the number of replacements.
+     * @throws java.util.concurrent.CancellationException if the replacement
+     * was cancelled.
+     * @throws Regex.TimeoutException if matching the regular expression
+     * takes too long.
+     * @throws IOException
+     */
+    public int replace(Reader in, Writer out) throws IOException {
+        char[] chars = new char[Math.max(BUFFER_SIZE, 2 * text.length() + CONTEXT_LENGTH)];
+        // The chars before start are copied, and some of them are kept as
+        // the context of the next matches, for lookbehinds and anchors.
+        int start = 0;
+        int limit = 0;
+        int lastEmptyMatch = -1;
+        int count = 0;
+        boolean endOfInput = false;
+        while (true) {
+            while (limit < chars.length && !endOfInput) {
+                int read = in.read(chars, limit, chars.length - limit);
+                if (read < 0) {
+                    endOfInput = true;
+                }
+                else {
+                    limit += read;
+                }
+            }
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+            // Everything before safe is searched and can be copied.
+            int safe;
+            if (regex) {
+                Matcher matcher = Regex.matcher(text, CharBuffer.wrap(chars, 0, limit));
+                matcher.useTransparentBounds(true).useAnchoringBounds(false).region(start, limit);
+                safe = limit;
+                boolean deferred = false;
+                while (matcher.find()) {
+                    if (!endOfInput && matcher.hitEnd() && matcher.start() >= limit - MAX_MATCH_LENGTH) {
+                        // The match may be longer, or another one may
+                        // start earlier, once more chars are read.
+                        deferred = true;
+                        break;
+                    }
+                    if (matcher.start() == matcher.end()) {
+                        if (matcher.start() == lastEmptyMatch) {
+                            continue;
+                        }
+                        lastEmptyMatch = matcher.start();
+                    }
+                    write(out, chars, start, matcher.start());
+                    write(out, Regex.replacement(matcher, replacement));
+                    start = matcher.end();
+                    count++;
+                }
+                if (!endOfInput && (deferred || matcher.hitEnd())) {
+                    safe = Math.max(start, limit - MAX_MATCH_LENGTH);
+                }
+            }
+            else {
+                for (int found = indexOf(chars, start, limit); found >= 0; found = indexOf(chars, start, limit)) {
+                    write(out, chars, start, found);
+                    write(out, replacement);
+                    start = found + text.length();
+                    count++;
+                }
+                safe = endOfInput ? limit : Math.max(start, limit - text.length() + 1);
+            }
+            write(out, chars, start, safe);
+            start = safe;
+            if (endOfInput) {
+                return count;
+            }
+            int keep = Math.max(0, start - CONTEXT_LENGTH);
+            System.arraycopy(chars, keep, chars, 0, limit - keep);
+            limit -= keep;
+            start -= keep;
+            lastEmptyMatch -= keep;
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param chars to be searched.
+     * @param from offset from which to search.
+     * @param limit offset of the end of the chars.
+     * @return the offset of the first occurence of the text, or -1.
+     */
+    private int indexOf(char[] chars, int from, int limit) {
+        char first = text.charAt(0);
+        int last = limit - text.length();
+        for (int i = from; i <= last; i++) {
+            if (chars[i] == first) {
+                int j = 1;
+                while (j < text.length() && chars[i + j] == text.charAt(j)) {
+                    j++;
+                }
+                if (j == text.length()) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a range of chars, if there is a writer.
+     */
+    private static void write(Writer out, char[] chars, int start, int end) throws IOException {
+        if (out != null && end > start) {
+            out.write(chars, start, end - start);
+        }
+    }
+
+    /**
+     * Writes a text, if there is a writer.
+     */
+    private static void write(Writer out, String text) throws IOException {
+        if (out != null) {
+            out.write(text);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Records the edits made to a Document so they can be undone and redone.
+ * Each edit is kept as its offset, removed text and inserted text, and a
+ * replacement of all the occurences of a text as the offsets of the
+ * occurences and the two texts. Edits made within a transaction are undone
+ * and redone as one. The history is cleared when the whole document is
+ * replaced.
+ * Typing is coalesced: a char typed, deleted or erased right where the
+ * previous one was, within the undo coalesce delay, is merged into the same
+ * edit, up to COALESCE_LIMIT chars, so a burst of typing is undone at once.
+ * A line break starts a new edit. The history is bounded by the undo limit,
+ * an estimate of the bytes it holds: once it is over the limit the oldest
+ * edits are forgotten, but never the last one.
+ */
+public class UndoManager implements DocumentListener {
+    private static final int COALESCE_LIMIT = 1 << 10;
+    private static final long EDIT_SIZE = 64;
+    private final Document document;
+    private final Deque<Edit> undoStack;
+    private final Deque<Edit> redoStack;
+    private List<Edit> transaction;
+    private int transactionDepth;
+    private boolean applying;
+    private ReplaceEdit typing;
+    private long typingTime;
+    private long size;
+
+    /**
+     * Constructs a new UndoManager recording the edits of a document.
+     * @param document to be recorded.
+     */
+    public UndoManager(Document document) {
+        this.document = document;
+        this.undoStack = new ArrayDeque<>();
+        this.redoStack = new ArrayDeque<>();
+        document.addListener(this);
+    }
+
+    /**
+     *
+     * @return true if there is an edit to undo.
+     */
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    /**
+     *
+     * @return true if there is an edit to redo.
+     */
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    /**
+     * Undoes the last edit.
+     * @return the offset after the restored text, or -1 if there was nothing
+     * to undo.
+     */
+    public int undo() {
+        Edit edit = undoStack.poll();
+        if (edit == null) {
+            return -1;
+        }
+        typing = null;
+        int caret = edit.undo();
+        redoStack.push(edit);
+        return caret;
+    }
+
+    /**
+     * Redoes the last undone edit.
+     * @return the offset after the inserted text, or -1 if there was nothing
+     * to redo.
+     */
+    public int redo() {
+        Edit edit = redoStack.poll();
+        if (edit == null) {
+            return -1;
+        }
+        typing = null;
+        int caret = edit.redo();
+        undoStack.push(edit);
+        return caret;
+    }
+
+    /**
+     * Starts recording the following edits as one, until the matching call
+     * to endTransaction. Transactions may be nested, the outermost one is
+     * recorded.
+     */
+    public void beginTransaction() {
+        if (transactionDepth++ == 0) {
+            transaction = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Ends a transaction started by beginTransaction.
+     */
+    public void endTransaction() {
+        if (--transactionDepth == 0) {
+            List<Edit> edits = transaction;
+            transaction = null;
+            if (edits.size() == 1) {
+                record(edits.get(0));
+            }
+            else if (!edits.isEmpty()) {
+                record(new CompoundEdit(edits));
+            }
+        }
+    }
+
+    /**
+     * Forgets all the recorded edits.
+     */
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        typing = null;
+        size = 0;
+    }
+
+    /**
+     *
+     * @return an estimate of the bytes held by the recorded edits.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Records an edit of the document.
+     * @param document which changed.
+     * @param offset of the edit.
+     * @param removedText by the edit.
+     * @param insertedText by the edit.
+     */
+    @Override
+    public void documentChanged(Document document, int offset, String removedText, String insertedText) {
+        if (applying) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (typing != null && transaction == null && undoStack.peek() == typing
+                && now - typingTime <= Settings.getUndoCoalesceDelay() * 1000000L) {
+            long before = typing.size();
+            if (typing.merge(offset, removedText, insertedText)) {
+                typingTime = now;
+                size += typing.size() - before;
+                trim();
+                return;
+            }
+        }
+        ReplaceEdit edit = new ReplaceEdit(offset, removedText, insertedText);
+        record(edit);
+        if (transaction == null && insertedText.length() <= 1) {
+            typing = edit;
+            typingTime = now;
+        }
+    }
+
+    /**
+     * Records the replacement of all the occurences of a text as one edit.
+     * @param document which changed.
+     * @param offsets of the occurences before the change.
+     * @param removedText at each offset.
+     * @param insertedText at each offset.
+     */
+    @Override
+    public void documentReplacedAll(Document document, int[] offsets, String removedText, String insertedText) {
+        if (!applying) {
+            record(new ReplaceAllEdit(offsets, removedText, insertedText));
+        }
+    }
+
+    /**
+     * Records the replacement of many ranges as one edit.
+     * @param document which changed.
+     * @param offsets of the ranges before the change.
+     * @param removedTexts at each offset.
+     * @param insertedTexts at each offset.
+     */
+    @Override
+    public void documentReplacedRanges(Document document, int[] offsets, String[] removedTexts, String[] insertedTexts) {
+        if (!applying) {
+            record(new ReplaceRangesEdit(offsets, removedTexts, insertedTexts));
+        }
+    }
+
+    /**
+     * Forgets the history once the whole document is replaced.
+     * @param document which was reset.
+     */
+    @Override
+    public void documentReset(Document document) {
+        clear();
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Adds an edit to the open transaction, or to the history.
+     */
+    private void record(Edit edit) {
+        typing = null;
+        if (transaction != null) {
+            transaction.add(edit);
+        }
+        else {
+            for (Edit undone : redoStack) {
+                size -= undone.size();
+            }
+            redoStack.clear();
+            undoStack.push(edit);
+            size += edit.size();
+            trim();
+        }
+    }
+
+    /**
+     * Forgets the oldest edits while the history is over the undo limit,
+     * keeping the last edit.
+     */
+    private void trim() {
+        long limit = Settings.getUndoLimit();
+        while (size > limit && undoStack.size() > 1) {
+            size -= undoStack.removeLast().size();
+        }
+    }
+
+    /**
+     * Replaces a range of the document without recording it.
+     */
+    private void apply(int start, int end, String text) {
+        applying = true;
+        try {
+            document.replace(start, end, text);
+        }
+        finally {
+            applying = false;
+        }
+    }
+
+    /**
+     * Replaces the occurences of a text without recording it.
+     */
+    private void applyAll(int[] offsets, String removedText, String text) {
+        applying = true;
+        try {
+            document.replaceAll(offsets, offsets.length, removedText, text);
+        }
+        finally {
+            applying = false;
+        }
+    }
+
+    /**
+     * Replaces many ranges without recording it.
+     */
+    private void applyRanges(int[] starts, int[] ends, String[] texts) {
+        applying = true;
+        try {
+            document.replaceAll(starts, ends, texts, starts.length);
+        }
+        finally {
+            applying = false;
+        }
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * An edit which can be undone and redone.
+     */
+    private interface Edit {
+
+        /**
+         *
+         * @return the offset after the restored text.
+         */
+        int undo();
+
+        /**
+         *
+         * @return the offset after the inserted text.
+         */
+        int redo();
+
+        /**
+         *
+         * @return an estimate of the bytes held by the edit.
+         */
+        long size();
+    }
+
+    /**
+     * A single edit of the document, or a burst of typing.
+     */
+    private final class ReplaceEdit implements Edit {
+        private int offset;
+        private String removedText;
+        private String insertedText;
+
+        private ReplaceEdit(int offset, String removedText, String insertedText) {
+            this.offset = offset;
+            this.removedText = removedText;
+            this.insertedText = insertedText;
+        }
+
+        /**
+         * Merges a char typed after the inserted text, or a char erased or
+         * deleted right before or after it.
+         * @return false if the edit does not continue this one.
+         */
+        private boolean merge(int nextOffset, String nextRemovedText, String nextInsertedText) {
+            int end = offset + insertedText.length();
+            if (removedText.length() + insertedText.length() >= COALESCE_LIMIT) {
+                return false;
+            }
+            if (nextRemovedText.isEmpty() && nextInsertedText.length() == 1) {
+                char c = nextInsertedText.charAt(0);
+                if (nextOffset != end || c == '\n' || c == '\r') {
+                    return false;
+                }
+                insertedText += nextInsertedText;
+                return true;
+            }
+            if (!nextInsertedText.isEmpty() || nextRemovedText.length() != 1) {
+                return false;
+            }
+            if (nextOffset == end) {
+                // Delete after the edit.
+                removedText += nextRemovedText;
+            }
+            else if (nextOffset + 1 == end && !insertedText.isEmpty()) {
+                // Erase the last typed char.
+                insertedText = insertedText.substring(0, insertedText.length() - 1);
+            }
+            else if (nextOffset + 1 == offset && insertedText.isEmpty()) {
+                // Erase before the erased chars.
+                offset = nextOffset;
+                removedText = nextRemovedText + removedText;
+            }
+            else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int undo() {
+            apply(offset, offset + insertedText.length(), removedText);
+            return offset + removedText.length();
+        }
+
+        @Override
+        public int redo() {
+            apply(offset, offset + removedText.length(), insertedText);
+            return offset + insertedText.length();
+        }
+
+        @Override
+        public long size() {
+            return EDIT_SIZE + 2L * (removedText.length() + insertedText.length());
+        }
+    }
+
+    /**
+     * The replacement of all the occurences of a text. Only the offsets are
+     * kept, the texts are the same at each of them.
+     */
+    private final class ReplaceAllEdit implements Edit {
+        private final int[] offsets;
+        private final String removedText;
+        private final String insertedText;
+
+        private ReplaceAllEdit(int[] offsets, String removedText, String insertedText) {
+            this.offsets = offsets;
+            this.removedText = removedText;
+            this.insertedText = insertedText;
+        }
+
+        @Override
+        public int undo() {
+            int delta = insertedText.length() - removedText.length();
+            int[] replaced = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                replaced[i] = offsets[i] + i * delta;
+            }
+            applyAll(replaced, insertedText, removedText);
+            return offsets[0] + removedText.length();
+        }
+
+        @Override
+        public int redo() {
+            applyAll(offsets, removedText, insertedText);
+            return offsets[0] + insertedText.length();
+        }
+
+        @Override
+        public long size() {
+            return EDIT_SIZE + 4L * offsets.length + 2L * (removedText.length() + insertedText.length());
+        }
+    }
+
+    /**
+     * The replacement of many ranges, each with its own text, like the
+     * matches of a regular expression.
+     */
+    private final class ReplaceRangesEdit implements Edit {
+        private final int[] offsets;
+        private final String[] removedTexts;
+        private final String[] insertedTexts;
+        private final long size;
+
+        private ReplaceRangesEdit(int[] offsets, String[] removedTexts, String[] insertedTexts) {
+            this.offsets = offsets;
+            this.removedTexts = removedTexts;
+            this.insertedTexts = insertedTexts;
+            long total = EDIT_SIZE + 4L * offsets.length;
+            for (int i = 0; i < offsets.length; i++) {
+                total += EDIT_SIZE + 2L * (removedTexts[i].length() + insertedTexts[i].length());
+            }
+            this.size = total;
+        }
+
+        @Override
+        public int undo() {
+            int[] starts = new int[offsets.length];
+            int[] ends = new int[offsets.length];
+            int delta = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                starts[i] = offsets[i] + delta;
+                ends[i] = starts[i] + insertedTexts[i].length();
+                delta += insertedTexts[i].length() - removedTexts[i].length();
+            }
+            applyRanges(starts, ends, removedTexts);
+            return offsets[0] + removedTexts[0].length();
+        }
+
+        @Override
+        public int redo() {
+            int[] ends = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                ends[i] = offsets[i] + removedTexts[i].length();
+            }
+            applyRanges(offsets, ends, insertedTexts);
+            return offsets[0] + insertedTexts[0].length();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+    }
+
+    /**
+     * The edits made within a transaction.
+     */
+    private static final class CompoundEdit implements Edit {
+        private final List<Edit> edits;
+        private final long size;
+
+        private CompoundEdit(List<Edit> edits) {
+            this.edits = edits;
+            long total = EDIT_SIZE;
+            for (Edit edit : edits) {
+                total += edit.size();
+            }
+            this.size = total;
+        }
+
+        @Override
+        public int undo() {
+            int caret = -1;
+            for (int i = edits.size() - 1; i >= 0; i--) {
+                caret = edits.get(i).undo();
+            }
+            return caret;
+        }
+
+        @Override
+        public int redo() {
+            int caret = -1;
+            for (Edit edit : edits) {
+                caret = edit.redo();
+            }
+            return caret;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+    }
+}
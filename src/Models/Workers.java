@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package Models;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the background executors shared by the application.
+ * All threads are daemon threads so they never keep the application alive
+ * after the last window is closed, except for the save thread: a save in
+ * progress when the application quits is finished first.
+ */
+public class Workers {
+    private static final ExecutorService IO = Executors.newCachedThreadPool(daemonThreadFactory("io"));
+    private static final ExecutorService LOAD = Executors.newFixedThreadPool(Settings.getLoadThreads(), daemonThreadFactory("load"));
+    private static final ExecutorService SAVE = saveExecutor();
+    private static final ForkJoinPool PARALLEL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ScheduledExecutorService JOURNAL = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("journal"));
+
+    private Workers() {
+    }
+
+    /**
+     *
+     * @return the executor used for file input and output.
+     */
+    public static ExecutorService io() {
+        return IO;
+    }
+
+    /**
+     *
+     * @return the executor loading the files opened in tabs. It runs a
+     * bounded number of loads at a time and queues the others, so a batch
+     * of files is read concurrently without a thread per file.
+     */
+    public static ExecutorService load() {
+        return LOAD;
+    }
+
+    /**
+     *
+     * @return the executor used to save files. Saves run one at a time, in
+     * the order they were submitted.
+     */
+    public static ExecutorService save() {
+        return SAVE;
+    }
+
+    /**
+     *
+     * @return the pool splitting a computation over all the processors, for
+     * example to search a large document. Its threads are daemon threads.
+     */
+    public static ForkJoinPool parallel() {
+        return PARALLEL;
+    }
+
+    /**
+     *
+     * @return the executor writing the crash recovery journals. Journal
+     * writes run one at a time, in the order they were submitted.
+     */
+    public static ScheduledExecutorService journal() {
+        return JOURNAL;
+    }
+
+    /**
+     * Stops a background computation whose task was cancelled. Cancelling a
+     * running Task interrupts its thread, so long loops call this between
+     * steps.
+     * @throws CancellationException if the current thread was interrupted.
+     */
+    public static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     *
+     * @param name prefix for the created threads.
+     * @return a thread factory creating named daemon threads.
+     */
+    public static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     *
+     * @return a single thread executor whose thread is not a daemon and
+     * stops soon after the last save, so it only keeps the application alive
+     * while saving.
+     */
+    private static ExecutorService saveExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (Runnable runnable) -> new Thread(runnable, "save"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
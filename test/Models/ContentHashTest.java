@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks a ContentHash kept up to date by random edits against the hash of
+ * the whole text computed again after each edit.
+ */
+public class ContentHashTest {
+    private static final String ALPHABET = "ab\n\tc";
+
+    /**
+     * Compares the hash with the hash of the text after each random edit,
+     * starting from the block hashes computed while loading.
+     */
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            Document document = new Document();
+            ContentHash contentHash = new ContentHash(document);
+            document.addListener(contentHash);
+            StringBuilder expected = new StringBuilder(randomText(random, random.nextInt(40000)));
+            CharBuffer loaded = CharBuffer.wrap(expected.toString());
+            document.load(loaded);
+            contentHash.setBlockHashes(ContentHash.hashBlocks(loaded));
+            for (int step = 0; step < 300; step++) {
+                edit(random, document, expected);
+                // Skip some checks, so several edits are hashed at once.
+                if (random.nextInt(3) == 0) {
+                    assertEquals(hash(expected), contentHash.getHash());
+                }
+            }
+            assertEquals(hash(expected), contentHash.getHash());
+        }
+    }
+
+    /**
+     * Checks the hash after replacing a few occurences at once, then many,
+     * which forgets the hashes of the blocks, and after a reset.
+     */
+    @Test
+    public void testReplaceAllAndReset() {
+        Random random = new Random(6);
+        Document document = new Document();
+        ContentHash contentHash = new ContentHash(document);
+        document.addListener(contentHash);
+        StringBuilder expected = new StringBuilder(randomText(random, 50000));
+        document.load(expected.toString());
+        assertEquals(hash(expected), contentHash.getHash());
+        // Few enough occurences to update the blocks one by one.
+        replaceAll(document, expected, "ab\tc", "c\n");
+        assertEquals(hash(expected), contentHash.getHash());
+        replaceAll(document, expected, "a", "xy");
+        assertEquals(hash(expected), contentHash.getHash());
+        replaceAll(document, expected, "\nb", "");
+        assertEquals(hash(expected), contentHash.getHash());
+        document.load("");
+        assertEquals(0, contentHash.getHash());
+    }
+
+    /**
+     * Checks that the document is saved again once an edit is undone, and
+     * not while it is not.
+     */
+    @Test
+    public void testSavedAfterUndo() {
+        Random random = new Random(7);
+        Document document = new Document();
+        ContentHash contentHash = new ContentHash(document);
+        document.addListener(contentHash);
+        document.load(randomText(random, 30000));
+        contentHash.markSaved();
+        for (int step = 0; step < 100; step++) {
+            int start = random.nextInt(document.length() + 1);
+            int end = Math.min(document.length(), start + random.nextInt(10000));
+            String removed = document.getText(start, end);
+            String inserted = randomText(random, end - start);
+            document.replace(start, end, inserted);
+            assertEquals(removed.equals(inserted), contentHash.isSaved());
+            document.replace(start, start + inserted.length(), removed);
+            assertTrue(contentHash.isSaved());
+        }
+        contentHash.markUnsaved();
+        assertFalse(contentHash.isSaved());
+    }
+
+    /**
+     * Checks that the hashes of the blocks of a text combine to its hash,
+     * for texts around the size of a block.
+     */
+    @Test
+    public void testBlockHashes() {
+        Random random = new Random(8);
+        for (int length : new int[] {0, 1, 4095, 4096, 4097, 8192, 100000}) {
+            CharBuffer text = CharBuffer.wrap(randomText(random, length));
+            assertEquals(ContentHash.hash(text), ContentHash.combine(ContentHash.hashBlocks(text)));
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Makes the same random edit in a document and a string: a replacement
+     * of a few chars to thousands of them, or of every occurence of a text.
+     * @param random source of the edit.
+     * @param document to be edited.
+     * @param expected text of the document, edited too.
+     */
+    private static void edit(Random random, Document document, StringBuilder expected) {
+        if (random.nextInt(4) == 0) {
+            replaceAll(document, expected, randomText(random, 1 + random.nextInt(2)), randomText(random, random.nextInt(3)));
+            return;
+        }
+        int start = random.nextInt(expected.length() + 1);
+        int end = Math.min(expected.length(), start + random.nextInt(random.nextInt(20) == 0 ? 3000 : 5));
+        String text = randomText(random, random.nextInt(20) == 0 ? random.nextInt(6000) : random.nextInt(4));
+        document.replace(start, end, text);
+        expected.replace(start, end, text);
+    }
+
+    /**
+     * Replaces every occurence of a text in a document with
+     * Document.replaceAll, and in a string one by one.
+     * @param document to be edited.
+     * @param expected text of the document, edited too.
+     * @param removed text to be replaced.
+     * @param inserted text replacing it.
+     */
+    private static void replaceAll(Document document, StringBuilder expected, String removed, String inserted) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = expected.indexOf(removed); i >= 0; i = expected.indexOf(removed, i + removed.length())) {
+            found.add(i);
+        }
+        int[] offsets = new int[found.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = found.get(i);
+        }
+        document.replaceAll(offsets, offsets.length, removed, inserted);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            expected.replace(offsets[i], offsets[i] + removed.length(), inserted);
+        }
+    }
+
+    /**
+     *
+     * @param random source of the chars.
+     * @param length of the text.
+     * @return a text of chars of a small alphabet, so replacing every
+     * occurence of a short text replaces many.
+     */
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+
+    /**
+     *
+     * @param text to be hashed.
+     * @return the hash of the whole text.
+     */
+    private static long hash(CharSequence text) {
+        return ContentHash.hash(CharBuffer.wrap(text.toString()));
+    }
+}
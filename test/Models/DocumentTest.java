@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ * Checks a Document against a StringBuilder receiving the same random edits,
+ * so every piece table operation is compared with a plain string.
+ */
+public class DocumentTest {
+    private static final String ALPHABET = "ab\n\tc";
+
+    /**
+     * Compares the text, the chars and the searches of a document with those
+     * of a string after each random edit.
+     */
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            Document document = new Document();
+            StringBuilder expected = new StringBuilder(randomText(random, random.nextInt(5000)));
+            document.load(expected.toString());
+            for (int step = 0; step < 300; step++) {
+                edit(random, document, expected);
+                assertEquals(expected.length(), document.length());
+                assertEquals(expected.toString(), document.toString());
+                int start = random.nextInt(expected.length() + 1);
+                int end = start + random.nextInt(expected.length() - start + 1);
+                assertEquals(expected.substring(start, end), document.getText(start, end));
+                if (expected.length() > 0) {
+                    int index = random.nextInt(expected.length());
+                    assertEquals(expected.charAt(index), document.charAt(index));
+                }
+                String text = randomText(random, 1 + random.nextInt(3));
+                assertEquals(expected.indexOf(text, start), document.indexOf(text, start));
+                assertEquals(expected.lastIndexOf(text, start), document.lastIndexOf(text, start));
+            }
+        }
+    }
+
+    /**
+     * Checks that a snapshot keeps the text of the document when it was
+     * taken, while the document is edited.
+     */
+    @Test
+    public void testSnapshot() {
+        Random random = new Random(2);
+        Document document = new Document();
+        StringBuilder expected = new StringBuilder(randomText(random, 10000));
+        document.load(expected.toString());
+        List<Document> snapshots = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int step = 0; step < 200; step++) {
+            edit(random, document, expected);
+            if (step % 20 == 0) {
+                snapshots.add(document.snapshot());
+                texts.add(expected.toString());
+            }
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertEquals(texts.get(i), snapshots.get(i).toString());
+        }
+        assertEquals(expected.toString(), document.toString());
+    }
+
+    /**
+     * Compares the replacement of random ranges, each with its own text, with
+     * the same replacements made one by one in a string, and checks that
+     * they are undone and redone as one edit.
+     */
+    @Test
+    public void testReplaceRanges() {
+        Random random = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            Document document = new Document();
+            document.load(randomText(random, random.nextInt(5000)));
+            UndoManager undoManager = new UndoManager(document);
+            for (int step = 0; step < 10; step++) {
+                edit(random, document, new StringBuilder(document.toString()));
+            }
+            undoManager.clear();
+            String before = document.toString();
+            StringBuilder expected = new StringBuilder(before);
+            int count = random.nextInt(200);
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            String[] texts = new String[count];
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                starts[i] = Math.min(before.length(), position + random.nextInt(50));
+                ends[i] = Math.min(before.length(), starts[i] + random.nextInt(5));
+                texts[i] = randomText(random, random.nextInt(4));
+                position = ends[i];
+            }
+            document.replaceAll(starts, ends, texts, count);
+            for (int i = count - 1; i >= 0; i--) {
+                expected.replace(starts[i], ends[i], texts[i]);
+            }
+            assertEquals(expected.toString(), document.toString());
+            if (count > 0) {
+                undoManager.undo();
+                assertEquals(before, document.toString());
+                assertFalse(undoManager.canUndo());
+                undoManager.redo();
+                assertEquals(expected.toString(), document.toString());
+            }
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Makes the same random edit in a document and a string: a replacement,
+     * an insertion, a deletion or a replacement of every occurence of a text.
+     * @param random source of the edit.
+     * @param document to be edited.
+     * @param expected text of the document, edited too.
+     */
+    private static void edit(Random random, Document document, StringBuilder expected) {
+        int length = expected.length();
+        int start = random.nextInt(length + 1);
+        int end = Math.min(length, start + random.nextInt(random.nextInt(20) == 0 ? 3000 : 5));
+        String text = randomText(random, random.nextInt(20) == 0 ? random.nextInt(6000) : random.nextInt(4));
+        switch (random.nextInt(4)) {
+            case 0:
+                document.replace(start, end, text);
+                expected.replace(start, end, text);
+                break;
+            case 1:
+                document.insert(start, text);
+                expected.insert(start, text);
+                break;
+            case 2:
+                document.delete(start, end);
+                expected.delete(start, end);
+                break;
+            default:
+                String removed = randomText(random, 1 + random.nextInt(2));
+                String inserted = randomText(random, random.nextInt(3));
+                replaceAll(document, expected, removed, inserted);
+                break;
+        }
+    }
+
+    /**
+     * Replaces every occurence of a text in a document with
+     * Document.replaceAll, and in a string one by one.
+     * @param document to be edited.
+     * @param expected text of the document, edited too.
+     * @param removed text to be replaced.
+     * @param inserted text replacing it.
+     */
+    private static void replaceAll(Document document, StringBuilder expected, String removed, String inserted) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = expected.indexOf(removed); i >= 0; i = expected.indexOf(removed, i + removed.length())) {
+            found.add(i);
+        }
+        int[] offsets = new int[found.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = found.get(i);
+        }
+        document.replaceAll(offsets, offsets.length, removed, inserted);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            expected.replace(offsets[i], offsets[i] + removed.length(), inserted);
+        }
+    }
+
+    /**
+     *
+     * @param random source of the chars.
+     * @param length of the text.
+     * @return a text of chars of a small alphabet with line feeds and tabs,
+     * so searches find something.
+     */
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
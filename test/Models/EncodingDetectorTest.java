@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the UTF-8 validation of EncodingDetector on sequences cut short at
+ * the end of the detected bytes, overlong sequences, surrogates and code
+ * points out of range, and the detection of byte order marks and of binary
+ * files.
+ */
+public class EncodingDetectorTest {
+
+    /**
+     * Checks that a sequence cut short at the end of a prefix is valid, and
+     * not valid at the end of the whole file.
+     */
+    @Test
+    public void testTruncatedSequences() {
+        int[][] sequences = {
+            {0xC3, 0xA9},
+            {0xE2, 0x82, 0xAC},
+            {0xF0, 0x9F, 0x98, 0x80},
+        };
+        for (int[] sequence : sequences) {
+            assertTrue(isUtf8(true, sequence));
+            for (int length = 1; length < sequence.length; length++) {
+                int[] truncated = new int[length + 1];
+                truncated[0] = 'a';
+                System.arraycopy(sequence, 0, truncated, 1, length);
+                assertTrue(isUtf8(false, truncated));
+                assertFalse(isUtf8(true, truncated));
+            }
+        }
+        // An invalid byte is not valid even in a prefix.
+        assertFalse(isUtf8(false, 0xC3, 'a'));
+        assertFalse(isUtf8(false, 0xE2, 0x82, 'a'));
+    }
+
+    /**
+     * Checks that overlong sequences are not valid, and that the shortest
+     * sequences next to them are.
+     */
+    @Test
+    public void testOverlongSequences() {
+        assertFalse(isUtf8(true, 0xC0, 0x80));
+        assertFalse(isUtf8(true, 0xC1, 0xBF));
+        assertTrue(isUtf8(true, 0xC2, 0x80));
+        assertFalse(isUtf8(true, 0xE0, 0x80, 0x80));
+        assertFalse(isUtf8(true, 0xE0, 0x9F, 0xBF));
+        assertTrue(isUtf8(true, 0xE0, 0xA0, 0x80));
+        assertFalse(isUtf8(true, 0xF0, 0x80, 0x80, 0x80));
+        assertFalse(isUtf8(true, 0xF0, 0x8F, 0xBF, 0xBF));
+        assertTrue(isUtf8(true, 0xF0, 0x90, 0x80, 0x80));
+        // An overlong sequence cut short is already not valid.
+        assertFalse(isUtf8(false, 0xE0, 0x80));
+        assertFalse(isUtf8(false, 0xF0, 0x80));
+    }
+
+    /**
+     * Checks that surrogates, code points above U+10FFFF and bytes which
+     * never start a sequence are not valid.
+     */
+    @Test
+    public void testInvalidCodePoints() {
+        assertTrue(isUtf8(true, 0xED, 0x9F, 0xBF));
+        assertFalse(isUtf8(true, 0xED, 0xA0, 0x80));
+        assertFalse(isUtf8(true, 0xED, 0xBF, 0xBF));
+        assertTrue(isUtf8(true, 0xF4, 0x8F, 0xBF, 0xBF));
+        assertFalse(isUtf8(true, 0xF4, 0x90, 0x80, 0x80));
+        assertFalse(isUtf8(true, 0xF5, 0x80, 0x80, 0x80));
+        assertFalse(isUtf8(true, 0x80));
+        assertFalse(isUtf8(true, 0xFF));
+    }
+
+    /**
+     * Checks the encoding detected for byte order marks, valid UTF-8 and a
+     * prefix cut inside a sequence.
+     */
+    @Test
+    public void testDetect() {
+        assertEquals(new Encoding(StandardCharsets.UTF_8, true), EncodingDetector.detect(bytes(0xEF, 0xBB, 0xBF, 'a'), true));
+        assertEquals(new Encoding(StandardCharsets.UTF_16LE, true), EncodingDetector.detect(bytes(0xFF, 0xFE, 'a', 0), true));
+        assertEquals(new Encoding(StandardCharsets.UTF_16BE, true), EncodingDetector.detect(bytes(0xFE, 0xFF, 0, 'a'), true));
+        assertNull(EncodingDetector.detectBom(bytes('a', 0xC3, 0xA9)));
+        assertEquals(Encoding.UTF_8, EncodingDetector.detect(bytes('a', 0xC3, 0xA9), true));
+        assertEquals(Encoding.UTF_8, EncodingDetector.detect(bytes('a', 0xC3), false));
+        assertEquals(EncodingDetector.legacy(), EncodingDetector.detect(bytes('a', 0xC3), true));
+    }
+
+    /**
+     * Checks that only a zero byte in the first block makes the bytes
+     * binary.
+     */
+    @Test
+    public void testIsBinary() {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * EncodingDetector.BINARY_CHECK_SIZE);
+        for (int i = 0; i < bytes.capacity(); i++) {
+            bytes.put(i, (byte) 'a');
+        }
+        assertFalse(EncodingDetector.isBinary(bytes));
+        bytes.put(EncodingDetector.BINARY_CHECK_SIZE, (byte) 0);
+        assertFalse(EncodingDetector.isBinary(bytes));
+        bytes.put(EncodingDetector.BINARY_CHECK_SIZE - 1, (byte) 0);
+        assertTrue(EncodingDetector.isBinary(bytes));
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     *
+     * @param complete true if the bytes are the whole file.
+     * @param values of the bytes.
+     * @return true if the bytes are valid UTF-8, checking that the bytes are
+     * left unchanged.
+     */
+    private static boolean isUtf8(boolean complete, int... values) {
+        ByteBuffer bytes = bytes(values);
+        boolean result = EncodingDetector.isUtf8(bytes, complete);
+        assertEquals(0, bytes.position());
+        assertEquals(values.length, bytes.limit());
+        return result;
+    }
+
+    /**
+     *
+     * @param values of the bytes.
+     * @return a buffer holding the bytes.
+     */
+    private static ByteBuffer bytes(int... values) {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            bytes.put((byte) value);
+        }
+        bytes.flip();
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks a LineIndex kept up to date by random edits against the lines
+ * found again in the text after each edit.
+ */
+public class LineIndexTest {
+    private static final String ALPHABET = "ab\n\tc";
+
+    /**
+     * Compares the line starts, ends and the line of random offsets with
+     * those of the text after each random edit.
+     */
+    @Test
+    public void testRandomEdits() {
+        Random random = new Random(3);
+        for (int round = 0; round < 20; round++) {
+            Document document = new Document();
+            LineIndex lineIndex = new LineIndex();
+            document.addListener(lineIndex);
+            StringBuilder expected = new StringBuilder(randomText(random, random.nextInt(5000)));
+            document.load(expected.toString());
+            for (int step = 0; step < 300; step++) {
+                edit(random, document, expected);
+                assertLines(expected.toString(), lineIndex, random);
+            }
+        }
+    }
+
+    /**
+     * Checks that the line starts found while loading a text are those the
+     * index finds itself.
+     */
+    @Test
+    public void testLoadedLineStarts() {
+        Random random = new Random(4);
+        String text = randomText(random, 20000);
+        int[] lineStarts = LineIndex.findLineStarts(CharBuffer.wrap(text));
+        LineIndex lineIndex = new LineIndex();
+        lineIndex.load(lineStarts, lineStarts.length, text.length());
+        assertLines(text, lineIndex, random);
+        Document document = new Document();
+        document.addListener(lineIndex);
+        document.load(text);
+        edit(random, document, new StringBuilder(text));
+        LineIndex scanned = new LineIndex();
+        document.addListener(scanned);
+        scanned.documentReset(document);
+        assertLines(document.toString(), lineIndex, random);
+        assertLines(document.toString(), scanned, random);
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Checks every line of an index, and the line of random offsets.
+     * @param text indexed.
+     * @param lineIndex of the text.
+     * @param random source of the offsets.
+     */
+    private static void assertLines(String text, LineIndex lineIndex, Random random) {
+        int line = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i == text.length() || text.charAt(i) == '\n') {
+                assertEquals(lineStart, lineIndex.getLineStart(line));
+                assertEquals(i, lineIndex.getLineEnd(line));
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        assertEquals(line, lineIndex.getLineCount());
+        for (int i = 0; i < 10; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int expected = 0;
+            for (int j = text.indexOf('\n'); j >= 0 && j < offset; j = text.indexOf('\n', j + 1)) {
+                expected++;
+            }
+            assertEquals(expected, lineIndex.getLineOfOffset(offset));
+        }
+    }
+
+    /**
+     * Makes the same random replacement in a document and a string, from a
+     * few chars to thousands of them.
+     * @param random source of the edit.
+     * @param document to be edited.
+     * @param expected text of the document, edited too.
+     */
+    private static void edit(Random random, Document document, StringBuilder expected) {
+        int start = random.nextInt(expected.length() + 1);
+        int end = Math.min(expected.length(), start + random.nextInt(random.nextInt(20) == 0 ? 3000 : 5));
+        String text = randomText(random, random.nextInt(20) == 0 ? random.nextInt(6000) : random.nextInt(4));
+        document.replace(start, end, text);
+        expected.replace(start, end, text);
+    }
+
+    /**
+     *
+     * @param random source of the chars.
+     * @param length of the text.
+     * @return a text of chars of a small alphabet with many line feeds.
+     */
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 João Guitana.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package Models;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks the replacements of a StreamReplace, which FileReplace makes in
+ * each file, against those made in the whole text at once, with matches
+ * placed across the windows of 128K chars and the last 32K chars of a window
+ * kept for the matches which may run into the next one.
+ */
+public class StreamReplaceTest {
+    private static final String ALPHABET = "ab\n\tc";
+    private static final int WINDOW = 1 << 17;
+    private static final int MAX_MATCH_LENGTH = 1 << 15;
+
+    /**
+     * Checks a text placed at every offset around the end of the first
+     * windows, so it is cut by the end of a window.
+     */
+    @Test
+    public void testTextAcrossWindows() throws IOException {
+        String text = "needle";
+        for (int window = 1; window <= 2; window++) {
+            for (int shift = -text.length(); shift <= text.length(); shift++) {
+                StringBuilder input = filler(3 * WINDOW);
+                input.replace(window * WINDOW + shift, window * WINDOW + shift + text.length(), text);
+                String expected = input.toString().replace(text, "pin");
+                assertReplaced(expected, input.toString(), text, "pin", false);
+            }
+        }
+    }
+
+    /**
+     * Checks matches of a regular expression which start in the kept end of a
+     * window and run into the next one, up to the longest match which is
+     * never cut.
+     */
+    @Test
+    public void testRegexAcrossWindows() throws IOException {
+        String regex = "<(y*)>";
+        for (int length : new int[] {10, 1000, 20000, MAX_MATCH_LENGTH - 2}) {
+            for (int shift : new int[] {-MAX_MATCH_LENGTH, -length - 1, -length / 2, -1, 0, 1}) {
+                StringBuilder input = filler(3 * WINDOW);
+                int start = WINDOW + shift;
+                input.setCharAt(start, '<');
+                for (int i = 1; i <= length; i++) {
+                    input.setCharAt(start + i, 'y');
+                }
+                input.setCharAt(start + length + 1, '>');
+                String expected = expected(input.toString(), regex, "[$1]");
+                assertReplaced(expected, input.toString(), regex, "[$1]", true);
+            }
+        }
+    }
+
+    /**
+     * Checks a lookbehind which looks at the chars before the window holding
+     * the match.
+     */
+    @Test
+    public void testLookbehindAcrossWindows() throws IOException {
+        String regex = "(?<=a)b";
+        for (int shift = -2; shift <= 2; shift++) {
+            StringBuilder input = filler(2 * WINDOW);
+            input.setCharAt(WINDOW + shift - 1, 'a');
+            input.setCharAt(WINDOW + shift, 'b');
+            String expected = expected(input.toString(), regex, "c");
+            assertReplaced(expected, input.toString(), regex, "c", true);
+        }
+    }
+
+    /**
+     * Checks random texts with many short matches, some of them across the
+     * windows, read in chunks of random sizes.
+     */
+    @Test
+    public void testRandomTexts() throws IOException {
+        Random random = new Random(9);
+        String[][] cases = {
+            {"aba", "x", "false"},
+            {"ab+a", "<$0>", "true"},
+            {"(a)(b\n)", "$2$1", "true"},
+            {"b\n+a", "", "true"},
+        };
+        for (int round = 0; round < 10; round++) {
+            String input = randomText(random, 2 * WINDOW + random.nextInt(WINDOW));
+            for (String[] c : cases) {
+                boolean regex = Boolean.parseBoolean(c[2]);
+                String expected = regex ? expected(input, c[0], c[1]) : input.replace(c[0], c[1]);
+                assertReplaced(expected, input, c[0], c[1], regex);
+            }
+        }
+    }
+
+    // PRIVATE METHODS
+
+    /**
+     * Replaces in a text, writing the result and only counting, and checks
+     * both against the expected text.
+     * @param expected text after the replacements.
+     * @param input text to be replaced in.
+     * @param text to be replaced, or a regular expression.
+     * @param replacement of each occurence.
+     * @param regex true if the text is a regular expression.
+     * @throws IOException
+     */
+    private static void assertReplaced(String expected, String input, String text, String replacement, boolean regex) throws IOException {
+        StreamReplace replace = new StreamReplace(text, replacement, regex, () -> false);
+        StringWriter out = new StringWriter();
+        int count = replace.replace(new ChunkReader(input, new Random(input.length())), out);
+        assertEquals(expected, out.toString());
+        assertEquals(count(input, text, regex), count);
+        assertEquals(count, replace.replace(new StringReader(input), null));
+    }
+
+    /**
+     *
+     * @param input text to be replaced in.
+     * @param regex regular expression to be replaced.
+     * @param replacement of each match.
+     * @return the text with every match replaced at once.
+     */
+    private static String expected(String input, String regex, String replacement) {
+        return Pattern.compile(regex, Pattern.MULTILINE).matcher(input).replaceAll(replacement);
+    }
+
+    /**
+     *
+     * @param input text to be searched.
+     * @param text to be found, or a regular expression.
+     * @param regex true if the text is a regular expression.
+     * @return the number of occurences of the text in the whole input.
+     */
+    private static int count(String input, String text, boolean regex) {
+        int count = 0;
+        if (regex) {
+            Matcher matcher = Pattern.compile(text, Pattern.MULTILINE).matcher(input);
+            while (matcher.find()) {
+                count++;
+            }
+        }
+        else {
+            for (int i = input.indexOf(text); i >= 0; i = input.indexOf(text, i + text.length())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param length of the text.
+     * @return a text of a char which is in none of the searched texts.
+     */
+    private static StringBuilder filler(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append('x');
+        }
+        return text;
+    }
+
+    /**
+     *
+     * @param random source of the chars.
+     * @param length of the text.
+     * @return a text of chars of a small alphabet, so the searched texts
+     * occur often.
+     */
+    private static String randomText(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+
+    // NESTED CLASSES
+
+    /**
+     * A reader returning a text in chunks of random sizes, as a file may be
+     * read.
+     */
+    private static final class ChunkReader extends Reader {
+        private final String text;
+        private final Random random;
+        private int position;
+
+        private ChunkReader(String text, Random random) {
+            this.text = text;
+            this.random = random;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == text.length()) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, 1 + random.nextInt(50000)), text.length() - position);
+            text.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}